@@ -1,6 +1,7 @@
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
@@ -9,11 +10,18 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowFocusListener;
-import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 import javax.swing.JFrame;
-import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 public class JSI implements MouseListener, MouseMotionListener, 
         KeyListener, WindowFocusListener {
@@ -29,9 +37,25 @@ public class JSI implements MouseListener, MouseMotionListener,
         DRAW, SELECT, SELECTED, PAN, ZOOM_ROTATE, COLOR
     }
     
-    private static final int MAX_HISTORY_SIZE = 5;
+    // Undo depth. The history's memory budget bounds the heap; the depth
+    // bounds how far the spill file can grow.
+    private static final int MAX_HISTORY_SIZE = 1000;
+    // Merge keys for edits that repeat quickly, e.g. on key repeat
+    private static final String MERGE_KEY_STROKE_WIDTH = "strokeWidth";
+    private static final String MERGE_KEY_COLOR = "color";
     private static final int DEFAULT_WINDOW_WIDTH = 800;
     private static final int DEFAULT_WINDOW_HEIGHT = 600;
+    // In screen pixels, so the simplification is invisible at the zoom
+    // level the stroke was drawn at
+    private static final double DEFAULT_SIMPLIFICATION_TOLERANCE = 0.5;
+    // In screen pixels. A selection drag that never gets farther than this
+    // from where it started is a click.
+    private static final double CLICK_TOLERANCE = 3.0;
+    // Queued drag samples are applied at most this often
+    private static final int FRAME_INTERVAL_MS = 16;
+    // Frame rate of the active render loop, e.g. -Djsi.targetFps=60;
+    // without it the canvas paints through Swing's repaint scheduling
+    private static final String TARGET_FPS_PROPERTY = "jsi.targetFps";
     
     // ====================================================================
     // Fields
@@ -44,18 +68,67 @@ public class JSI implements MouseListener, MouseMotionListener,
     
     // Drawing state
     private JSIPtCurve mCurPtCurve = null;
-    private ArrayList<JSIPtCurve> mPtCurves = null;
-    private ArrayList<JSIPtCurve> mSelectedPtCurves = null;
+    // Committed curves and the selection; replaced, never mutated, on
+    // edits
+    private JSIDocument mDocument = null;
+    
+    // Spatial index over the committed curves of mDocument, selected or
+    // not
+    private JSIRTree mPtCurveIndex = null;
+    private int mNextPtCurveId = 0;
+    private long mNextZOrder = 0L;
+    // Z-order of every committed curve by ID. Neither changes once
+    // assigned, so an ID from a selection leads to its curve in the list.
+    private long[] mZOrdersById = null;
+    private double mSimplificationTolerance = 
+            JSI.DEFAULT_SIMPLIFICATION_TOLERANCE;
     
     // Tools
     private JSISelectionBox mSelectionBox = null;
+    // IDs of the curves the current rubber band selected. Only these are
+    // deselected again when the box shrinks away from them.
+    private HashSet<Integer> mBandPtCurveIds = null;
+    // Where the current drag started and the farthest it has got from
+    // there, in screen pixels
+    private Point mPressScreenPt = null;
+    private double mMaxDragDist = 0.0;
     private JSIXform mXform = null;
     private JSIColorChooser mColorChooser = null;
     
-    // History system for undo/redo
-    private ArrayList<ArrayList<JSIPtCurve>> mHistory;
-    private int mHistoryIndex;
-    private int mHistorySize;
+    // Scratch geometry reused by every drag event, so that converting
+    // between world and screen space allocates nothing
+    private Point mDragScreenPt = null;
+    private Point mLastScreenPt = null;
+    private Point2D.Double mDragWorldPt = null;
+    private Rectangle2D.Double mDamageWorldRect = null;
+    private Rectangle mDamageScreenRect = null;
+    private Rectangle2D.Double mQueryWorldRect = null;
+    private double[] mSelectionBoxCoords = null;
+    private Path2D.Double mWorldSelectionBoxShape = null;
+    
+    // Drag samples queued by mouseDragged and applied once per frame by
+    // processInput, from mInputTimer or the canvas render loop. Every
+    // other input event applies them first, so the order of events is
+    // kept.
+    private JSIInputRing mDragSamples = null;
+    private JSIInputRing.Sink mDragSampleSink = null;
+    private Timer mInputTimer = null;
+    // MouseEvent.getWhen() of the latest applied drag sample
+    private long mLastInputWhen = 0L;
+    
+    // Screen-space damage collected while handling one input event
+    private Rectangle mDamageRect = null;
+    private boolean mIsFullyDamaged = false;
+    
+    // History system for undo/redo. Spilled edits refer to curve
+    // geometry in mCurveStore by hash.
+    private JSIHistory mHistory = null;
+    private JSICurveStore mCurveStore = null;
+    private DocumentEditor mEditor = null;
+    // Edit recorded by the open transaction, and how deeply the open
+    // transactions are nested
+    private JSIEditCmd mCurEditCmd = null;
+    private int mTransactionDepth = 0;
     
     // ====================================================================
     // Constructor & Main
@@ -69,7 +142,11 @@ public class JSI implements MouseListener, MouseMotionListener,
     }
     
     public static void main(String[] args) {
-        new JSI();
+        JSI jsi = new JSI();
+        int targetFps = Integer.getInteger(JSI.TARGET_FPS_PROPERTY, 0);
+        if (targetFps > 0) {
+            jsi.mCanvas2D.setActiveRendering(targetFps);
+        }
     }
     
     // ====================================================================
@@ -85,12 +162,26 @@ public class JSI implements MouseListener, MouseMotionListener,
         return this.mCurPtCurve;
     }
     
-    public ArrayList<JSIPtCurve> getPtCurves() {
-        return this.mPtCurves;
+    // Consistent snapshot of the sketch, safe to keep and read from
+    // other threads
+    public JSIDocument getDocument() {
+        return this.mDocument;
+    }
+    
+    public JSIPtCurveList getPtCurves() {
+        return this.mDocument.getPtCurves();
+    }
+    
+    public JSISelection getSelection() {
+        return this.mDocument.getSelection();
     }
     
-    public ArrayList<JSIPtCurve> getSelectedPtCurves() {
-        return this.mSelectedPtCurves;
+    public JSIRTree getPtCurveIndex() {
+        return this.mPtCurveIndex;
+    }
+    
+    public JSIHistory getHistory() {
+        return this.mHistory;
     }
     
     public JSISelectionBox getSelectionBox() {
@@ -105,6 +196,21 @@ public class JSI implements MouseListener, MouseMotionListener,
         return this.mColorChooser;
     }
     
+    public double getSimplificationTolerance() {
+        return this.mSimplificationTolerance;
+    }
+    
+    // Tolerance in screen pixels for simplifying finished strokes;
+    // zero keeps every sample.
+    public void setSimplificationTolerance(double tolerance) {
+        this.mSimplificationTolerance = Math.max(0.0, tolerance);
+    }
+    
+    // MouseEvent.getWhen() of the latest drag sample applied
+    public long getLastInputWhen() {
+        return this.mLastInputWhen;
+    }
+    
     // ====================================================================
     // Initialization Helpers
     // Break down constructor into focused setup functions
@@ -134,16 +240,36 @@ public class JSI implements MouseListener, MouseMotionListener,
     }
     
     private void initializeDataStructures() {
-        this.mPtCurves = new ArrayList<JSIPtCurve>();
-        this.mSelectedPtCurves = new ArrayList<JSIPtCurve>();
+        this.mDocument = JSIDocument.EMPTY;
+        this.mPtCurveIndex = new JSIRTree();
+        this.mZOrdersById = new long[16];
+        this.mBandPtCurveIds = new HashSet<Integer>();
         this.mXform = new JSIXform();
         this.mColorChooser = new JSIColorChooser();
         
-        this.mHistory = 
-                new ArrayList<ArrayList<JSIPtCurve>>(MAX_HISTORY_SIZE);
-        this.mHistoryIndex = -1;
-        this.mHistorySize = 0;
-        this.saveToHistory();
+        this.mDragScreenPt = new Point();
+        this.mPressScreenPt = new Point();
+        this.mLastScreenPt = new Point();
+        this.mDragWorldPt = new Point2D.Double();
+        this.mDamageWorldRect = new Rectangle2D.Double();
+        this.mDamageScreenRect = new Rectangle();
+        this.mQueryWorldRect = new Rectangle2D.Double();
+        this.mSelectionBoxCoords = new double[8];
+        this.mWorldSelectionBoxShape = new Path2D.Double();
+        
+        this.mDragSamples = new JSIInputRing();
+        this.mDragSampleSink = 
+                (x, y, when) -> this.applyDragSample(x, y, when);
+        this.mInputTimer = 
+                new Timer(JSI.FRAME_INTERVAL_MS, e -> this.processInput());
+        this.mInputTimer.setRepeats(false);
+        
+        this.mCurveStore = new JSICurveStore();
+        this.mEditor = new DocumentEditor();
+        this.mHistory = new JSIHistory(
+                JSI.MAX_HISTORY_SIZE, 
+                JSIHistory.DEFAULT_MEMORY_BUDGET, 
+                JSIEditCmd.createReader(this.mEditor, this.mCurveStore));
     }
     
     // ====================================================================
@@ -157,15 +283,19 @@ public class JSI implements MouseListener, MouseMotionListener,
 
     @Override
     public void mousePressed(MouseEvent e) {
+        this.processInput();
         this.mCanvas2D.requestFocusInWindow();
+        Mode prevMode = this.mMode;
         
         Point pt = e.getPoint();
+        this.mPressScreenPt.setLocation(pt);
+        this.mMaxDragDist = 0.0;
         switch (this.mMode) {
             case DRAW:
                 this.createNewPtCurve(pt);
                 break;
             case SELECT:
-                this.mSelectionBox = new JSISelectionBox(pt);
+                this.startSelectionBox(pt);
                 break;
             case SELECTED:
                 this.handleSelectedModePress(e, pt);
@@ -173,33 +303,47 @@ public class JSI implements MouseListener, MouseMotionListener,
             case PAN:
             case ZOOM_ROTATE:
                 this.mXform.setStartScreenPt(pt);
+                this.mCanvas2D.setNavigating(true);
                 break;
             case COLOR:
                 break;
         }
         
-        this.mCanvas2D.repaint();
+        this.repaintDamage(prevMode);
     }
 
     @Override
     public void mouseReleased(MouseEvent e) {
+        this.processInput();
+        Mode prevMode = this.mMode;
         switch (this.mMode) {
             case DRAW:
                 this.finishPtCurve();
                 break;
             case SELECT:
             case SELECTED:
-                this.mSelectionBox = null;
+                this.updateMaxDragDist(e);
+                if (this.mSelectionBox != null && 
+                        this.mMaxDragDist <= JSI.CLICK_TOLERANCE) {
+                    // A click rather than a drag. Whatever the jitter
+                    // selected is undone before the click is applied.
+                    this.collapseSelectionBox();
+                    this.togglePickedPtCurve(this.mPressScreenPt);
+                } else if (this.mSelectionBox != null) {
+                    this.mCanvas2D.noteInteraction();
+                }
+                this.endSelectionBox();
                 break;
             case PAN:
             case ZOOM_ROTATE:
                 this.mXform.setStartScreenPt(null);
+                this.endNavigation();
                 break;
             case COLOR:
                 this.applyColorFromChooser(e.getPoint());
                 break;
         }
-        this.mCanvas2D.repaint();
+        this.repaintDamage(prevMode);
     }
 
     @Override
@@ -212,7 +356,52 @@ public class JSI implements MouseListener, MouseMotionListener,
 
     @Override
     public void mouseDragged(MouseEvent e) {
-        Point pt = e.getPoint();
+        // Measured here, as processInput may skip samples
+        this.updateMaxDragDist(e);
+        // A full ring is applied at once, so no sample is dropped
+        if (!this.mDragSamples.offer(e.getX(), e.getY(), e.getWhen())) {
+            this.processInput();
+            this.mDragSamples.offer(e.getX(), e.getY(), e.getWhen());
+        }
+        // The render loop applies them at the start of its next frame
+        if (this.mCanvas2D.isActiveRendering()) {
+            this.mCanvas2D.requestFrame();
+        } else if (!this.mInputTimer.isRunning()) {
+            this.mInputTimer.start();
+        }
+    }
+    
+    @Override
+    public void mouseMoved(MouseEvent e) {
+    }
+    
+    private void updateMaxDragDist(MouseEvent e) {
+        this.mMaxDragDist = Math.max(
+                this.mMaxDragDist, 
+                this.mPressScreenPt.distance(e.getX(), e.getY()));
+    }
+    
+    // Applies the queued drag samples and repaints once. Strokes need
+    // every sample. The other modes place the box or the view from the
+    // drag start, so only the newest sample matters.
+    public void processInput() {
+        if (this.mDragSamples.isEmpty()) {
+            return;
+        }
+        Mode prevMode = this.mMode;
+        if (this.mMode == JSI.Mode.DRAW) {
+            this.mDragSamples.drainTo(this.mDragSampleSink);
+        } else {
+            this.mDragSamples.drainLatestTo(this.mDragSampleSink);
+        }
+        this.repaintDamage(prevMode);
+    }
+    
+    private void applyDragSample(int x, int y, long when) {
+        this.mLastInputWhen = when;
+        // Not kept beyond this sample
+        Point pt = this.mDragScreenPt;
+        pt.setLocation(x, y);
         switch (this.mMode) {
             case DRAW:
                 this.continueDrawingPtCurve(pt);
@@ -220,24 +409,27 @@ public class JSI implements MouseListener, MouseMotionListener,
             case SELECT:
             case SELECTED:
                 if (this.mSelectionBox != null) {
+                    this.mCanvas2D.noteInteraction();
+                    // Damage both the old and the new box
+                    this.addSelectionBoxDamage();
                     this.mSelectionBox.update(pt);
+                    this.addSelectionBoxDamage();
                     this.updateSelectedPtCurves();
                 }
                 break;
             case PAN:
+                this.mCanvas2D.noteInteraction();
                 this.mXform.translateTo(pt);
+                this.mIsFullyDamaged = true;
                 break;
             case ZOOM_ROTATE:
+                this.mCanvas2D.noteInteraction();
                 this.mXform.zoomRotateTo(pt);
+                this.mIsFullyDamaged = true;
                 break;
             case COLOR:
                 break;
         }
-        this.mCanvas2D.repaint();
-    }
-
-    @Override
-    public void mouseMoved(MouseEvent e) {
     }
     
     // ====================================================================
@@ -261,29 +453,47 @@ public class JSI implements MouseListener, MouseMotionListener,
             return;
         }
         
-        int size = this.mCurPtCurve.getPts().size();
-        Point2D.Double lastWorldPt = 
-                this.mCurPtCurve.getPts().get(size - 1);
-        Point lastScreenPt = 
-                this.mXform.calcPtFromWorldToScreen(lastWorldPt);
+        int size = this.mCurPtCurve.getPtNum();
+        double lastX = this.mCurPtCurve.getX(size - 1);
+        double lastY = this.mCurPtCurve.getY(size - 1);
+        Point2D.Double worldPt = this.mDragWorldPt;
+        worldPt.setLocation(lastX, lastY);
+        this.mXform.calcPtFromWorldToScreen(worldPt, this.mLastScreenPt);
         
-        if (screenPt.distance(lastScreenPt) < JSIPtCurve.MIN_DIST_BTWN_PTS) {
+        if (screenPt.distance(this.mLastScreenPt) < 
+                JSIPtCurve.MIN_DIST_BTWN_PTS) {
             return;
         }
         
-        Point2D.Double worldPt = 
-                this.mXform.calcPtFromScreenToWorld(screenPt);
-        this.mCurPtCurve.addPt(worldPt);
+        this.mXform.calcPtFromScreenToWorld(screenPt, worldPt);
+        this.mCurPtCurve.addPt(worldPt.x, worldPt.y);
+        
+        // Damage only the new segment, including the stroke outline
+        double pad = this.mCurPtCurve.getStrokePadding();
+        this.mDamageWorldRect.setRect(
+                Math.min(lastX, worldPt.x) - pad, 
+                Math.min(lastY, worldPt.y) - pad, 
+                Math.abs(worldPt.x - lastX) + 2.0 * pad, 
+                Math.abs(worldPt.y - lastY) + 2.0 * pad);
+        this.addDamage(this.mCanvas2D.calcScreenBounds(
+                this.mDamageWorldRect, this.mDamageScreenRect));
     }
     
     private void finishPtCurve() {
         if (this.mCurPtCurve != null && 
-                this.mCurPtCurve.getPts().size() >= 2) {
-            this.mPtCurves.add(this.mCurPtCurve);
-            this.saveToHistory();
+                this.mCurPtCurve.getPtNum() >= 2) {
+            // Convert the tolerance to world units at the current zoom
+            this.mCurPtCurve.simplify(
+                    this.mSimplificationTolerance / this.mXform.getCurScale());
+            this.mCurPtCurve.buildLods();
+            this.mCurPtCurve.setId(this.mNextPtCurveId++);
+            this.mCurPtCurve.setZOrder(this.mNextZOrder++);
+            this.recordZOrder(this.mCurPtCurve);
+            this.beginTransaction();
+            this.addPtCurve(this.mCurPtCurve);
+            this.commitTransaction();
         } else {
             this.deselectAll();
-            this.saveToHistory();
         }
         this.mCurPtCurve = null;
     }
@@ -296,7 +506,7 @@ public class JSI implements MouseListener, MouseMotionListener,
         
         if (isShiftPressed) {
             this.mMode = JSI.Mode.SELECT;
-            this.mSelectionBox = new JSISelectionBox(pt);
+            this.startSelectionBox(pt);
         } else {
             this.deselectAll();
             this.mMode = JSI.Mode.DRAW;
@@ -304,14 +514,23 @@ public class JSI implements MouseListener, MouseMotionListener,
     }
     
     private void deselectAll() {
-        this.mPtCurves.addAll(this.mSelectedPtCurves);
-        this.mSelectedPtCurves.clear();
+        if (!this.getSelection().isEmpty()) {
+            this.beginTransaction();
+            for (JSIPtCurve ptCurve : this.collectSelectedPtCurves()) {
+                this.deselectPtCurve(ptCurve);
+            }
+            this.commitTransaction();
+        }
     }
     
     private void deleteSelectedCurves() {
-        if (!this.mSelectedPtCurves.isEmpty()) {
-            this.mSelectedPtCurves.clear();
-            this.saveToHistory();
+        if (!this.getSelection().isEmpty()) {
+            this.beginTransaction();
+            for (JSIPtCurve ptCurve : this.collectSelectedPtCurves()) {
+                this.deselectPtCurve(ptCurve);
+                this.removePtCurve(ptCurve);
+            }
+            this.commitTransaction();
             this.mMode = JSI.Mode.DRAW;
         }
     }
@@ -325,10 +544,11 @@ public class JSI implements MouseListener, MouseMotionListener,
                 this.mCanvas2D.getHeight());
         
         if (c != null) {
-            if (!this.mSelectedPtCurves.isEmpty()) {
+            if (!this.getSelection().isEmpty()) {
                 this.setColorForSelectedCurves(c);
             } else {
                 this.mCanvas2D.setCurColorForPtCurve(c);
+                this.addDamage(this.mCanvas2D.calcPenTipBounds());
             }
         }
     }
@@ -344,7 +564,9 @@ public class JSI implements MouseListener, MouseMotionListener,
 
     @Override
     public void keyPressed(KeyEvent e) {
+        this.processInput();
         int code = e.getKeyCode();
+        Mode prevMode = this.mMode;
         
         // Handle mode switches and tool adjustments
         this.keyToMode(e);
@@ -356,28 +578,33 @@ public class JSI implements MouseListener, MouseMotionListener,
             this.redo();
         }
         
-        this.mCanvas2D.repaint();
+        this.repaintDamage(prevMode);
     }
 
     @Override
     public void keyReleased(KeyEvent e) {
+        this.processInput();
         int code = e.getKeyCode();
+        Mode prevMode = this.mMode;
         
         switch (code) {
             case KeyEvent.VK_SHIFT:
                 // Exit quasi-mode: return to persistent mode
-                this.mSelectionBox = null;
+                this.endSelectionBox();
                 this.returnToPersistentMode();
                 break;
             case KeyEvent.VK_CONTROL:
             case KeyEvent.VK_ALT:
+                // The key may be released before the mouse button
+                this.endNavigation();
+                this.returnToPersistentMode();
+                break;
             case KeyEvent.VK_C:
                 // Exit quasi-modes: return to persistent mode
                 this.returnToPersistentMode();
                 break;
             case KeyEvent.VK_ESCAPE:
                 this.deselectAll();
-                this.saveToHistory();
                 this.mMode = JSI.Mode.DRAW;
                 break;
             case KeyEvent.VK_DELETE:
@@ -385,9 +612,10 @@ public class JSI implements MouseListener, MouseMotionListener,
                 break;
             case KeyEvent.VK_H:
                 this.mXform.home();
+                this.mIsFullyDamaged = true;
                 break;
         }
-        this.mCanvas2D.repaint();
+        this.repaintDamage(prevMode);
     }
     
     // ====================================================================
@@ -430,12 +658,22 @@ public class JSI implements MouseListener, MouseMotionListener,
         if (this.mMode == JSI.Mode.SELECTED) {
             this.adjustStrokeWidthForSelectedCurves(delta);
         } else {
+            // Damage both the old and the new pen tip
+            this.addDamage(this.mCanvas2D.calcPenTipBounds());
             this.mCanvas2D.increaseStrokeWidthForCurPtCurve(delta);
+            this.addDamage(this.mCanvas2D.calcPenTipBounds());
         }
     }
     
+    // Leaves the bitmap fast path of PAN/ZOOM_ROTATE drags, so that the
+    // exact vector scene is rendered again at full quality.
+    private void endNavigation() {
+        this.mCanvas2D.setNavigating(false);
+        this.mIsFullyDamaged = true;
+    }
+    
     private void returnToPersistentMode() {
-        if (!this.mSelectedPtCurves.isEmpty()) {
+        if (!this.getSelection().isEmpty()) {
             this.mMode = JSI.Mode.SELECTED;
         } else {
             this.mMode = JSI.Mode.DRAW;
@@ -447,22 +685,136 @@ public class JSI implements MouseListener, MouseMotionListener,
     // Functions for selecting curves and modifying selected curves
     // ====================================================================
     
+    // A rubber band drag is one transaction, so one undo step
+    private void startSelectionBox(Point pt) {
+        this.endSelectionBox();
+        this.mSelectionBox = new JSISelectionBox(pt);
+        this.mBandPtCurveIds.clear();
+        this.addSelectionBoxDamage();
+        this.beginTransaction();
+    }
+    
+    // Shrinks the box back to its anchor, deselecting what it selected
+    private void collapseSelectionBox() {
+        this.addSelectionBoxDamage();
+        this.mSelectionBox.update(this.mPressScreenPt);
+        this.updateSelectedPtCurves();
+    }
+    
+    private void endSelectionBox() {
+        if (this.mSelectionBox != null) {
+            this.addSelectionBoxDamage();
+            this.mSelectionBox = null;
+            this.mBandPtCurveIds.clear();
+            this.commitTransaction();
+        }
+    }
+    
+    // Only curves near the area the box gained or lost since the last
+    // drag event are tested, so the cost follows the swept area rather
+    // than the size of the box or of the document.
     private void updateSelectedPtCurves() {
-        AffineTransform at = this.mXform.getCurXformFromScreenToWorld();
-        Shape worldSelectionBoxShape = 
-                at.createTransformedShape(this.mSelectionBox);
+        Shape worldSelectionBoxShape = this.calcWorldSelectionBoxShape();
+        Set<JSIPtCurve> gainedPtCurves = 
+                this.queryPtCurves(this.mSelectionBox.calcGainedRects());
+        Set<JSIPtCurve> lostPtCurves = 
+                this.queryPtCurves(this.mSelectionBox.calcLostRects());
         
-        ArrayList<JSIPtCurve> newlySelectedPtCurves = 
-                new ArrayList<JSIPtCurve>();
-        
-        for (JSIPtCurve ptCurve : this.mPtCurves) {
-            if (this.isCurveInSelection(ptCurve, worldSelectionBoxShape)) {
-                newlySelectedPtCurves.add(ptCurve);
+        // Nested in the transaction of the whole rubber band drag.
+        // Curves already selected are skipped by an O(1) bit test.
+        this.beginTransaction();
+        for (JSIPtCurve ptCurve : gainedPtCurves) {
+            if (!this.getSelection().contains(ptCurve) && 
+                    this.isCurveInSelection(ptCurve, worldSelectionBoxShape)) {
+                this.selectPtCurve(ptCurve);
+                this.mBandPtCurveIds.add(ptCurve.getId());
+            }
+        }
+        for (JSIPtCurve ptCurve : lostPtCurves) {
+            if (this.mBandPtCurveIds.contains(ptCurve.getId()) && 
+                    this.getSelection().contains(ptCurve) && 
+                    !this.isCurveInSelection(
+                            ptCurve, worldSelectionBoxShape)) {
+                this.deselectPtCurve(ptCurve);
+                this.mBandPtCurveIds.remove(ptCurve.getId());
             }
         }
+        this.commitTransaction();
+    }
+    
+    // The selection box in world space, rebuilt in the retained path.
+    // Under rotation it is a general quadrilateral.
+    private Shape calcWorldSelectionBoxShape() {
+        double[] c = this.mSelectionBoxCoords;
+        c[0] = this.mSelectionBox.getMinX();
+        c[1] = this.mSelectionBox.getMinY();
+        c[2] = this.mSelectionBox.getMaxX();
+        c[3] = this.mSelectionBox.getMinY();
+        c[4] = this.mSelectionBox.getMaxX();
+        c[5] = this.mSelectionBox.getMaxY();
+        c[6] = this.mSelectionBox.getMinX();
+        c[7] = this.mSelectionBox.getMaxY();
+        this.mXform.calcPtsFromScreenToWorld(c, 0, c, 0, 4);
         
-        this.mPtCurves.removeAll(newlySelectedPtCurves);
-        this.mSelectedPtCurves.addAll(newlySelectedPtCurves);
+        Path2D.Double shape = this.mWorldSelectionBoxShape;
+        shape.reset();
+        shape.moveTo(c[0], c[1]);
+        shape.lineTo(c[2], c[3]);
+        shape.lineTo(c[4], c[5]);
+        shape.lineTo(c[6], c[7]);
+        shape.closePath();
+        return shape;
+    }
+    
+    // Committed curves whose bounding boxes meet any of the screen
+    // rectangles
+    private Set<JSIPtCurve> queryPtCurves(List<Rectangle> screenRects) {
+        Set<JSIPtCurve> ptCurves = JSI.createIdentitySet();
+        ArrayList<JSIPtCurve> candidates = new ArrayList<JSIPtCurve>();
+        for (Rectangle screenRect : screenRects) {
+            Rectangle2D worldRect = this.mXform.calcRectFromScreenToWorld(
+                    screenRect, this.mQueryWorldRect);
+            candidates.clear();
+            this.mPtCurveIndex.query(worldRect, candidates);
+            ptCurves.addAll(candidates);
+        }
+        return ptCurves;
+    }
+    
+    // Selected curves in z-order, which is ID order. Only the set bits
+    // of the selection are visited, each followed by one lookup in the
+    // curve list.
+    private ArrayList<JSIPtCurve> collectSelectedPtCurves() {
+        JSISelection selection = this.getSelection();
+        ArrayList<JSIPtCurve> selectedPtCurves = 
+                new ArrayList<JSIPtCurve>(selection.size());
+        selection.forEachId(id -> {
+            JSIPtCurve ptCurve = this.findPtCurve(id);
+            if (ptCurve != null) {
+                selectedPtCurves.add(ptCurve);
+            }
+        });
+        return selectedPtCurves;
+    }
+    
+    // Committed curve of the given ID in the current document, or null
+    private JSIPtCurve findPtCurve(int id) {
+        if (id < 0 || id >= this.mNextPtCurveId) {
+            return null;
+        }
+        JSIPtCurve ptCurve = 
+                this.getPtCurves().get(this.mZOrdersById[id]);
+        return ptCurve != null && ptCurve.getId() == id ? ptCurve : null;
+    }
+    
+    private void recordZOrder(JSIPtCurve ptCurve) {
+        int id = ptCurve.getId();
+        if (id >= this.mZOrdersById.length) {
+            this.mZOrdersById = Arrays.copyOf(
+                    this.mZOrdersById, 
+                    Math.max(id + 1, 2 * this.mZOrdersById.length));
+        }
+        this.mZOrdersById[id] = ptCurve.getZOrder();
     }
     
     private boolean isCurveInSelection(
@@ -473,132 +825,265 @@ public class JSI implements MouseListener, MouseMotionListener,
             return false;
         }
         
-        for (Point2D.Double pt : ptCurve.getPts()) {
-            if (selectionShape.contains(pt)) {
-                return true;
+        return ptCurve.hasPtIn(selectionShape);
+    }
+    
+    private void togglePickedPtCurve(Point screenPt) {
+        JSIPtCurve ptCurve = this.pickPtCurve(screenPt);
+        if (ptCurve != null) {
+            this.beginTransaction();
+            if (this.getSelection().contains(ptCurve)) {
+                this.deselectPtCurve(ptCurve);
+            } else {
+                this.selectPtCurve(ptCurve);
             }
+            this.commitTransaction();
         }
-        return false;
     }
     
+    // Topmost curve whose stroke passes within PICK_TOLERANCE of the
+    // point, or null, read from the canvas pick buffer. Only when the
+    // buffer cannot tell is each candidate from the index measured
+    // through its segment tree.
+    private JSIPtCurve pickPtCurve(Point screenPt) {
+        int pickedId = this.mCanvas2D.pickPtCurveId(screenPt);
+        if (pickedId == JSIPickBuffer.NO_ID) {
+            return null;
+        }
+        if (pickedId != JSIPickBuffer.UNKNOWN_ID) {
+            return this.mCanvas2D.getPickPtCurve(pickedId);
+        }
+        
+        Point2D.Double worldPt = 
+                this.mXform.calcPtFromScreenToWorld(screenPt);
+        double tolerance = 
+                JSICanvas2D.PICK_TOLERANCE / this.mXform.getCurScale();
+        ArrayList<JSIPtCurve> candidates = new ArrayList<JSIPtCurve>();
+        this.mPtCurveIndex.query(
+                new Rectangle2D.Double(
+                        worldPt.x - tolerance, 
+                        worldPt.y - tolerance, 
+                        2.0 * tolerance, 
+                        2.0 * tolerance), 
+                candidates);
+        JSIPtCurve pickedPtCurve = null;
+        for (JSIPtCurve ptCurve : candidates) {
+            double maxDist = tolerance + 
+                    ((BasicStroke) ptCurve.getStroke()).getLineWidth() / 2.0;
+            if (ptCurve.calcDistance(worldPt.x, worldPt.y, maxDist) <= 
+                    maxDist && (pickedPtCurve == null || 
+                    ptCurve.getZOrder() > pickedPtCurve.getZOrder())) {
+                pickedPtCurve = ptCurve;
+            }
+        }
+        return pickedPtCurve;
+    }
+    
+    // Restyled curves keep their IDs, so they stay selected
     private void adjustStrokeWidthForSelectedCurves(float delta) {
-        for (JSIPtCurve curve : this.mSelectedPtCurves) {
-            curve.adjustStrokeWidth(delta);
+        this.beginTransaction();
+        for (JSIPtCurve curve : this.collectSelectedPtCurves()) {
+            this.removePtCurve(curve);
+            this.addPtCurve(curve.withAdjustedStrokeWidth(delta));
         }
-        this.saveToHistory();
-        this.forceCanvasRepaint();
+        this.commitTransaction(JSI.MERGE_KEY_STROKE_WIDTH);
     }
     
     private void setColorForSelectedCurves(Color color) {
-        for (JSIPtCurve curve : this.mSelectedPtCurves) {
-            curve.setColor(color);
+        this.beginTransaction();
+        for (JSIPtCurve curve : this.collectSelectedPtCurves()) {
+            this.removePtCurve(curve);
+            this.addPtCurve(curve.withColor(color));
         }
-        this.saveToHistory();
-        this.forceCanvasRepaint();
+        this.commitTransaction(JSI.MERGE_KEY_COLOR);
+    }
+    
+    // ====================================================================
+    // Damage Tracking
+    // Collect what changed on screen and repaint only that region
+    // ====================================================================
+    
+    // Marks a committed curve as changed, both in the canvas caches
+    // and in the screen-space damage.
+    private void invalidatePtCurve(JSIPtCurve ptCurve) {
+        this.mCanvas2D.invalidatePtCurve(ptCurve);
+        this.addDamage(this.mCanvas2D.calcScreenBounds(ptCurve));
+    }
+    
+    private void invalidatePtCurveSelection(JSIPtCurve ptCurve) {
+        this.mCanvas2D.invalidatePtCurveSelection(ptCurve);
+        this.addDamage(this.mCanvas2D.calcScreenBounds(ptCurve));
     }
     
-    private void forceCanvasRepaint() {
-        SwingUtilities.invokeLater(() -> {
+    private void addSelectionBoxDamage() {
+        if (this.mSelectionBox != null) {
+            this.addDamage(this.mCanvas2D.calcSelectionBoxBounds(
+                    this.mSelectionBox, this.mDamageScreenRect));
+        }
+    }
+    
+    private void addDamage(Rectangle r) {
+        if (this.mDamageRect == null) {
+            this.mDamageRect = new Rectangle(r);
+        } else {
+            this.mDamageRect.add(r);
+        }
+    }
+    
+    private void repaintDamage(Mode prevMode) {
+        if (prevMode != this.mMode) {
+            this.addDamage(this.mCanvas2D.calcInfoBounds());
+            if (prevMode == JSI.Mode.ZOOM_ROTATE || 
+                    this.mMode == JSI.Mode.ZOOM_ROTATE) {
+                this.addDamage(this.mCanvas2D.calcCrossHairBounds());
+            }
+            if (prevMode == JSI.Mode.COLOR || 
+                    this.mMode == JSI.Mode.COLOR) {
+                this.mIsFullyDamaged = true;
+            }
+        }
+        
+        if (this.mIsFullyDamaged) {
             this.mCanvas2D.repaint();
-            this.mCanvas2D.invalidate();
-            this.mCanvas2D.revalidate();
-        });
+        } else if (this.mDamageRect != null) {
+            this.mCanvas2D.repaint(this.mDamageRect);
+        }
+        this.mDamageRect = null;
+        this.mIsFullyDamaged = false;
     }
     
     // ====================================================================
     // History System (Undo/Redo)
-    // Manage undo/redo functionality with deep copy snapshots
+    // Manage undo/redo functionality with reversible commands
     // ====================================================================
     
-    private void saveToHistory() {
-        this.clearFutureHistory();
-        
-        ArrayList<JSIPtCurve> currentState = 
-                this.deepCopyPtCurves(this.mPtCurves);
-        
-        if (this.mHistorySize < MAX_HISTORY_SIZE) {
-            this.mHistory.add(currentState);
-            this.mHistorySize++;
-        } else {
-            this.mHistory.remove(0);
-            this.mHistory.add(currentState);
+    // Document edits must happen inside a transaction. Transactions
+    // nest, and only the outermost commit pushes the recorded edit.
+    private void beginTransaction() {
+        if (this.mTransactionDepth == 0) {
+            this.mCurEditCmd = new JSIEditCmd(
+                    this.mEditor, this.mCurveStore, this.mDocument);
         }
-        
-        this.mHistoryIndex = this.mHistorySize - 1;
+        this.mTransactionDepth++;
     }
     
-    private void clearFutureHistory() {
-        while (this.mHistorySize > this.mHistoryIndex + 1) {
-            this.mHistory.remove(this.mHistorySize - 1);
-            this.mHistorySize--;
-        }
+    private void commitTransaction() {
+        this.commitTransaction(null);
     }
     
-    private ArrayList<JSIPtCurve> deepCopyPtCurves(
-            ArrayList<JSIPtCurve> original) {
-        ArrayList<JSIPtCurve> copy = new ArrayList<JSIPtCurve>();
-        for (JSIPtCurve curve : original) {
-            copy.add(this.deepCopyPtCurve(curve));
+    // Edits committed with the same merge key in a quick burst become one
+    // history entry. Edits that change nothing are not recorded.
+    private void commitTransaction(String mergeKey) {
+        if (this.mTransactionDepth == 0) {
+            // Already flushed by undo or redo
+            return;
+        }
+        this.mTransactionDepth--;
+        if (this.mTransactionDepth == 0) {
+            this.mCurEditCmd.setNewDocument(this.mDocument);
+            this.mHistory.push(this.mCurEditCmd, mergeKey);
+            this.mCurEditCmd = null;
         }
-        return copy;
     }
     
-    private JSIPtCurve deepCopyPtCurve(JSIPtCurve original) {
-        ArrayList<Point2D.Double> originalPts = original.getPts();
-        if (originalPts.isEmpty()) {
-            return null;
+    // Commits the open transactions early, so that undo and redo start
+    // from a recorded state
+    private void flushTransactions() {
+        if (this.mTransactionDepth > 0) {
+            this.mTransactionDepth = 1;
+            this.commitTransaction();
         }
-        
-        Point2D.Double firstPt = new Point2D.Double(
-                originalPts.get(0).x, 
-                originalPts.get(0).y);
-        JSIPtCurve copy = new JSIPtCurve(
-                firstPt, 
-                original.getColor(), 
-                original.getStroke());
-        
-        for (int i = 1; i < originalPts.size(); i++) {
-            Point2D.Double pt = originalPts.get(i);
-            copy.addPt(new Point2D.Double(pt.x, pt.y));
-        }
-        
-        return copy;
+    }
+    
+    // --- Document Edits ---
+    // Each replaces mDocument, keeps mPtCurveIndex in sync, and records
+    // the change in the open edit
+    
+    private void addPtCurve(JSIPtCurve ptCurve) {
+        this.mDocument = this.mDocument.withPtCurves(
+                this.mDocument.getPtCurves().insert(ptCurve));
+        this.mPtCurveIndex.insert(ptCurve);
+        this.mCurEditCmd.noteAdded(ptCurve);
+        this.invalidatePtCurve(ptCurve);
+    }
+    
+    private void removePtCurve(JSIPtCurve ptCurve) {
+        this.mDocument = this.mDocument.withPtCurves(
+                this.mDocument.getPtCurves().remove(ptCurve));
+        this.mPtCurveIndex.remove(ptCurve);
+        this.mCurEditCmd.noteRemoved(ptCurve);
+        this.invalidatePtCurve(ptCurve);
+    }
+    
+    // Selection only flips the curve's bit; the curve stays in place in
+    // the list and the index
+    private void selectPtCurve(JSIPtCurve ptCurve) {
+        this.mDocument = this.mDocument.withSelection(
+                this.getSelection().add(ptCurve.getId()));
+        this.mCurEditCmd.noteSelected(ptCurve);
+        this.invalidatePtCurveSelection(ptCurve);
+    }
+    
+    private void deselectPtCurve(JSIPtCurve ptCurve) {
+        this.mDocument = this.mDocument.withSelection(
+                this.getSelection().remove(ptCurve.getId()));
+        this.mCurEditCmd.noteDeselected(ptCurve);
+        this.invalidatePtCurveSelection(ptCurve);
     }
     
     private void undo() {
-        if (this.mHistoryIndex > 0) {
-            this.mHistoryIndex--;
-            this.restoreFromHistory();
+        this.flushTransactions();
+        if (this.mHistory.undo()) {
+            this.returnToPersistentMode();
+        } else if (this.mHistory.getForgottenNum() > 0) {
+            System.out.println("Nothing more to undo: older edits were " 
+                    + "dropped to stay within the history limits");
         } else {
-             System.out.println("You can only undo up to " 
-                     + MAX_HISTORY_SIZE + " times.");
+            System.out.println("Nothing to undo");
         }
     }
     
     private void redo() {
-        if (this.mHistoryIndex < this.mHistorySize - 1) {
-            this.mHistoryIndex++;
-            this.restoreFromHistory();
+        this.flushTransactions();
+        if (this.mHistory.redo()) {
+            this.returnToPersistentMode();
         } else {
             System.out.println("Nothing to redo");
         }
     }
     
-    private void restoreFromHistory() {
-        if (this.mHistoryIndex < 0 || 
-                this.mHistoryIndex >= this.mHistorySize) {
-            return;
+    // Lets edits replace the document when they are undone or redone,
+    // keeping the canvas and the damage in step with the curves
+    private class DocumentEditor implements JSIEditCmd.Editor {
+        @Override
+        public JSIDocument getDocument() {
+            return JSI.this.mDocument;
+        }
+        
+        @Override
+        public void setDocument(JSIDocument document) {
+            JSI.this.mDocument = document;
         }
         
-        this.mPtCurves.clear();
-        this.mSelectedPtCurves.clear();
+        @Override
+        public JSIRTree getPtCurveIndex() {
+            return JSI.this.mPtCurveIndex;
+        }
         
-        ArrayList<JSIPtCurve> historyState = 
-                this.mHistory.get(this.mHistoryIndex);
-        this.mPtCurves.addAll(this.deepCopyPtCurves(historyState));
+        @Override
+        public void invalidatePtCurve(JSIPtCurve ptCurve) {
+            JSI.this.invalidatePtCurve(ptCurve);
+        }
         
-        this.mMode = JSI.Mode.DRAW;
-        this.mCanvas2D.repaint();
+        @Override
+        public void invalidatePtCurveSelection(JSIPtCurve ptCurve) {
+            JSI.this.invalidatePtCurveSelection(ptCurve);
+        }
+    }
+    
+    private static Set<JSIPtCurve> createIdentitySet() {
+        return Collections.newSetFromMap(
+                new IdentityHashMap<JSIPtCurve, Boolean>());
     }
     
     // ====================================================================
@@ -1,19 +1,34 @@
+import java.awt.AlphaComposite;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Shape;
 import java.awt.Stroke;
+import java.awt.Toolkit;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Line2D;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
-public class JSICanvas2D extends JPanel {
+public final class JSICanvas2D extends JPanel {
     
     private static final Color COLOR_PT_CURVE_DEFAULT = Color.BLACK;
     private static final Color COLOR_SELECTION_BOX = new Color(255, 0, 0, 64);
@@ -35,11 +50,64 @@ public class JSICanvas2D extends JPanel {
     
     public static final float STROKE_WIDTH_INCREMENT = 1f;
     private static final float STROKE_MIN_WIDTH = 1f;
+    private static final int DAMAGE_PADDING = 2;
+    // In screen pixels from the edge of the stroke
+    public static final double PICK_TOLERANCE = 4.0;
+    // Draft rendering picks levels of detail for pixels this much larger
+    private static final double DRAFT_LOD_FACTOR = 4.0;
+    // Draft tiles redrawn per refinement step
+    private static final int REFINE_TILE_NUM = 4;
+    // Visible curves from which a cold redraw is spread over time slices
+    private static final int PROGRESSIVE_MIN_PT_CURVE_NUM = 20000;
+    // EDT time per slice, and the pause between slices for input
+    private static final long SLICE_BUDGET_NANOS = 8000000L;
+    private static final int SLICE_INTERVAL_MS = 1;
+    
+    public static final Comparator<JSIPtCurve> Z_ORDER_COMPARATOR = 
+            Comparator.comparingLong(JSIPtCurve::getZOrder);
+    // Largest first
+    private static final Comparator<JSIPtCurve> AREA_COMPARATOR = 
+            Comparator.comparingDouble(
+                    (JSIPtCurve ptCurve) -> -JSICanvas2D.calcArea(ptCurve));
     
     private JSI mJSI = null;
     private Color mCurColorForPtCurve = null;
     private Stroke mCurStrokeForPtCurve = null;
     
+    // Retained raster of the committed curves, composited from mTileCache
+    private transient BufferedImage mSceneImage = null;
+    private AffineTransform mSceneXform = null;
+    private boolean mIsSceneDirty = true;
+    private transient Rectangle2D mSceneDirtyWorldRect = null;
+    // While navigating, the scene image is kept as a snapshot
+    private boolean mIsNavigating = false;
+    private transient JSITileCache mTileCache = null;
+    // Tile grid of the last scene render, for refinement
+    private transient JSITileGrid mSceneGrid = null;
+    private int mSceneOffsetX = 0;
+    private int mSceneOffsetY = 0;
+    private transient JSIQualityScheduler mQualityScheduler = null;
+    private boolean mIsDraftFrame = false;
+    // Cold redraw of a large scene in progress
+    private transient JSISceneJob mSceneJob = null;
+    private Timer mSceneJobTimer = null;
+    private transient JSIPickBuffer mPickBuffer = null;
+    private transient HashMap<Integer, JSIPtCurve> mPickPtCurves = null;
+    
+    // Scratch geometry reused by every paint
+    private AffineTransform mWorldToDeviceXform = null;
+    private AffineTransform mDeltaXform = null;
+    private AffineTransform mImageXform = null;
+    private Rectangle mScreenRect = null;
+    private Rectangle mDeviceClip = null;
+    private Rectangle2D.Double mVisibleWorldRect = null;
+    private Rectangle2D.Double mClipWorldRect = null;
+    
+    // When set, repaint requests only collect damage in mFrameDamageRect
+    private transient JSIFrameScheduler mFrameScheduler = null;
+    private transient VolatileImage mBackBuffer = null;
+    private Rectangle mFrameDamageRect = null;
+    
     public Color getCurColorForPtCurve() {
         return this.mCurColorForPtCurve;
     }
@@ -56,26 +124,744 @@ public class JSICanvas2D extends JPanel {
         this.mJSI = jsi;
         this.mCurStrokeForPtCurve = JSICanvas2D.STROKE_PT_CURVE_DEFAULT;
         this.mCurColorForPtCurve = JSICanvas2D.COLOR_PT_CURVE_DEFAULT;
+        this.mSceneXform = new AffineTransform();
+        this.mTileCache = new JSITileCache();
+        this.mQualityScheduler = 
+                new JSIQualityScheduler(() -> this.refineDraftTiles());
+        this.mSceneJobTimer = new Timer(
+                JSICanvas2D.SLICE_INTERVAL_MS, e -> this.runSceneJobSlice());
+        this.mPickBuffer = new JSIPickBuffer();
+        this.mPickPtCurves = new HashMap<Integer, JSIPtCurve>();
+        
+        this.mWorldToDeviceXform = new AffineTransform();
+        this.mDeltaXform = new AffineTransform();
+        this.mImageXform = new AffineTransform();
+        this.mScreenRect = new Rectangle();
+        this.mDeviceClip = new Rectangle();
+        this.mVisibleWorldRect = new Rectangle2D.Double();
+        this.mClipWorldRect = new Rectangle2D.Double();
     }
-
+    
+    // Drops every cached tile, e.g. after the whole document is replaced.
+    public void invalidateScene() {
+        this.cancelSceneJob();
+        this.mTileCache.clear();
+        this.mIsSceneDirty = true;
+        this.mPickBuffer.invalidateAll();
+        this.mPickPtCurves.clear();
+    }
+    
+    // Called whenever a committed curve is added, removed or restyled
+    public void invalidatePtCurve(JSIPtCurve ptCurve) {
+        this.invalidatePtCurveSelection(ptCurve);
+        this.mPickPtCurves.remove(ptCurve.getId(), ptCurve);
+        Rectangle screenRect = 
+                this.calcScreenBounds(ptCurve.calcStrokedBoundingBox());
+        int pad = (int) Math.ceil(JSICanvas2D.PICK_TOLERANCE);
+        screenRect.grow(pad, pad);
+        this.mPickBuffer.invalidate(screenRect);
+    }
+    
+    // Called whenever a committed curve is selected or deselected
+    public void invalidatePtCurveSelection(JSIPtCurve ptCurve) {
+        Rectangle2D box = ptCurve.calcStrokedBoundingBox();
+        this.mTileCache.invalidate(box);
+        if (this.mSceneJob != null) {
+            this.mSceneJob.invalidate(box);
+        }
+        if (this.mSceneDirtyWorldRect == null) {
+            this.mSceneDirtyWorldRect = box;
+        } else {
+            this.mSceneDirtyWorldRect.add(box);
+        }
+    }
+    
+    // JSIPickBuffer.NO_ID if no curve passes within PICK_TOLERANCE,
+    // JSIPickBuffer.UNKNOWN_ID if the buffer cannot tell
+    public int pickPtCurveId(Point screenPt) {
+        this.mPickBuffer.resize(
+                this.getWidth(), 
+                this.getHeight(), 
+                this.mJSI.getXform().getCurXformFromWorldToScreen());
+        return this.mPickBuffer.getId(
+                screenPt.x, 
+                screenPt.y, 
+                (g2, dirtyRect) -> this.renderPickBuffer(g2, dirtyRect));
+    }
+    
+    // The curve with the ID as last drawn into the pick buffer, or null
+    public JSIPtCurve getPickPtCurve(int id) {
+        return this.mPickPtCurves.get(id);
+    }
+    
+    // Called for each input event of a drag in PAN, ZOOM_ROTATE or
+    // SELECT, so the view is drawn at draft quality until input idles
+    public void noteInteraction() {
+        this.mQualityScheduler.noteInteraction();
+    }
+    
+    // Called when a PAN or ZOOM_ROTATE drag starts (true) or ends (false)
+    public void setNavigating(boolean isNavigating) {
+        this.mIsNavigating = isNavigating;
+        if (!isNavigating) {
+            this.mQualityScheduler.endInteraction();
+        }
+    }
+    
+    // ====================================================================
+    // Damage Bounds
+    // ====================================================================
+    
+    public Rectangle calcScreenBounds(Rectangle2D worldRect) {
+        return this.calcScreenBounds(worldRect, new Rectangle());
+    }
+    
+    // Writes the bounds into r and returns it
+    public Rectangle calcScreenBounds(Rectangle2D worldRect, Rectangle r) {
+        this.mJSI.getXform().calcRectFromWorldToScreen(worldRect, r);
+        r.grow(JSICanvas2D.DAMAGE_PADDING, JSICanvas2D.DAMAGE_PADDING);
+        return r;
+    }
+    
+    public Rectangle calcScreenBounds(JSIPtCurve ptCurve) {
+        return this.calcScreenBounds(ptCurve.calcStrokedBoundingBox());
+    }
+    
+    public Rectangle calcSelectionBoxBounds(Rectangle selectionBox) {
+        return this.calcSelectionBoxBounds(selectionBox, new Rectangle());
+    }
+    
+    // Writes the bounds into r and returns it
+    public Rectangle calcSelectionBoxBounds(
+            Rectangle selectionBox, Rectangle r) {
+        r.setBounds(selectionBox);
+        int pad = (int) Math.ceil(
+                ((BasicStroke) JSICanvas2D.STROKE_SELECTION_BOX)
+                        .getLineWidth() / 2f) + JSICanvas2D.DAMAGE_PADDING;
+        r.grow(pad, pad);
+        return r;
+    }
+    
+    public Rectangle calcInfoBounds() {
+        FontMetrics fm = this.getFontMetrics(JSICanvas2D.FONT_INFO);
+        int width = 0;
+        for (JSI.Mode mode : JSI.Mode.values()) {
+            width = Math.max(width, fm.stringWidth(
+                    JSICanvas2D.calcInfoText(mode, 99)));
+        }
+        Rectangle r = new Rectangle(
+                (int) JSICanvas2D.INFO_TOP_ALIGNMENT_X, 
+                (int) JSICanvas2D.INFO_TOP_ALIGNMENT_Y - fm.getAscent(), 
+                width, 
+                fm.getHeight());
+        r.grow(JSICanvas2D.DAMAGE_PADDING, JSICanvas2D.DAMAGE_PADDING);
+        return r;
+    }
+    
+    public Rectangle calcPenTipBounds() {
+        return this.calcPenTipShape().getBounds();
+    }
+    
+    public Rectangle calcCrossHairBounds() {
+        int r = (int) Math.ceil(JSICanvas2D.CROSS_HAIR_RADIUS + 
+                ((BasicStroke) JSICanvas2D.STROKE_CROSS_HAIR).getLineWidth());
+        return new Rectangle(
+                JSIXform.PIVOT_PT.x - r, 
+                JSIXform.PIVOT_PT.y - r, 
+                2 * r, 
+                2 * r);
+    }
+    
+    // ====================================================================
+    // Progressive Rendering
+    // ====================================================================
+    
+    public boolean isRenderingProgressively() {
+        return this.mSceneJob != null;
+    }
+    
+    // Percentage of the progressive redraw done, or 100 if there is none
+    public int getRenderProgress() {
+        if (this.mSceneJob == null) {
+            return 100;
+        }
+        return (int) (100.0 * this.mSceneJob.calcProgress());
+    }
+    
+    // Starts a progressive redraw if the view holds enough curves and
+    // tiles are missing
+    private boolean startSceneJob(Graphics2D sceneG2, 
+            AffineTransform worldToDeviceXform, JSITileGrid grid, 
+            int offsetX, int offsetY, Rectangle gridRect) {
+        JSISceneJob job = new JSISceneJob(this, this.mJSI, this.mTileCache, 
+                this.mQualityScheduler, worldToDeviceXform, grid, 
+                offsetX, offsetY, gridRect);
+        if (!job.hasMissingTiles()) {
+            return false;
+        }
+        ArrayList<JSIPtCurve> ptCurves = new ArrayList<JSIPtCurve>();
+        this.mJSI.getPtCurveIndex().query(
+                this.calcVisibleWorldRect(this.mVisibleWorldRect), ptCurves);
+        if (ptCurves.size() < JSICanvas2D.PROGRESSIVE_MIN_PT_CURVE_NUM) {
+            return false;
+        }
+        
+        ptCurves.sort(JSICanvas2D.AREA_COMPARATOR);
+        job.setPreviewPtCurves(ptCurves);
+        this.compositeTiles(
+                sceneG2, grid, offsetX, offsetY, gridRect, false);
+        this.mSceneJob = job;
+        this.mSceneJobTimer.start();
+        return true;
+    }
+    
+    private void cancelSceneJob() {
+        this.mSceneJob = null;
+        this.mSceneJobTimer.stop();
+    }
+    
+    private void runSceneJobSlice() {
+        JSISceneJob job = this.mSceneJob;
+        if (job == null || this.mSceneImage == null) {
+            this.cancelSceneJob();
+            return;
+        }
+        long deadline = System.nanoTime() + JSICanvas2D.SLICE_BUDGET_NANOS;
+        boolean isWorkLeft = job.runSlice(this.mSceneImage, deadline);
+        if (!isWorkLeft) {
+            this.cancelSceneJob();
+            job.finish();
+        }
+        
+        Rectangle dirtyDeviceRect = job.getDirtyDeviceRect();
+        if (!this.mIsNavigating && !this.mIsSceneDirty && 
+                this.mJSI.getXform().getCurXformFromWorldToScreen()
+                        .equals(this.mSceneXform)) {
+            if (!dirtyDeviceRect.isEmpty()) {
+                this.repaint(
+                        this.calcDeviceRectScreenBounds(dirtyDeviceRect));
+            }
+        } else {
+            this.repaint();
+        }
+        this.repaint(this.calcInfoBounds());
+    }
+    
+    private Rectangle calcDeviceRectScreenBounds(Rectangle deviceRect) {
+        double sx = (double) this.getWidth() / this.mSceneImage.getWidth();
+        double sy = (double) this.getHeight() / this.mSceneImage.getHeight();
+        int x0 = (int) Math.floor(deviceRect.x * sx);
+        int y0 = (int) Math.floor(deviceRect.y * sy);
+        int x1 = (int) Math.ceil((deviceRect.x + deviceRect.width) * sx);
+        int y1 = (int) Math.ceil((deviceRect.y + deviceRect.height) * sy);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+    
+    private static double calcArea(JSIPtCurve ptCurve) {
+        Rectangle2D.Double box = ptCurve.getBoundingBox();
+        return box.width * box.height;
+    }
+    
+    private static String calcInfoText(JSI.Mode mode, int progress) {
+        if (progress >= 100) {
+            return String.valueOf(mode);
+        }
+        return mode + " " + progress + "%";
+    }
+    
+    // ====================================================================
+    // Active Rendering
+    // ====================================================================
+    
+    public boolean isActiveRendering() {
+        return this.mFrameScheduler != null;
+    }
+    
+    // Passive painting again when targetFps is 0
+    public void setActiveRendering(int targetFps) {
+        if (this.mFrameScheduler != null) {
+            this.mFrameScheduler.stop();
+            this.mFrameScheduler = null;
+            this.mBackBuffer = null;
+        }
+        if (targetFps > 0) {
+            this.mFrameScheduler = new JSIFrameScheduler(
+                    () -> this.runFrame(), targetFps);
+            this.mFrameScheduler.start();
+        }
+        this.repaint();
+    }
+    
+    // Wakes the render loop, e.g. for queued input with no damage yet
+    public void requestFrame() {
+        JSIFrameScheduler frameScheduler = this.mFrameScheduler;
+        if (frameScheduler != null) {
+            frameScheduler.requestFrame();
+        }
+    }
+    
+    // repaint(), repaint(Rectangle) and the other variants end up here
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+        JSIFrameScheduler frameScheduler = this.mFrameScheduler;
+        if (frameScheduler == null) {
+            super.repaint(tm, x, y, width, height);
+            return;
+        }
+        this.addFrameDamage(new Rectangle(x, y, width, height));
+        frameScheduler.requestFrame();
+    }
+    
+    private synchronized void addFrameDamage(Rectangle r) {
+        if (this.mFrameDamageRect == null) {
+            this.mFrameDamageRect = r;
+        } else {
+            this.mFrameDamageRect.add(r);
+        }
+    }
+    
+    private synchronized Rectangle takeFrameDamage() {
+        Rectangle r = this.mFrameDamageRect;
+        this.mFrameDamageRect = null;
+        return r;
+    }
+    
+    // The scheduler stops at a frame that throws
+    private void runFrame() {
+        try {
+            this.renderFrame();
+        } catch (RuntimeException | Error ex) {
+            this.setActiveRendering(0);
+            throw ex;
+        }
+    }
+    
+    private void renderFrame() {
+        if (this.mFrameScheduler == null || !this.isShowing()) {
+            return;
+        }
+        this.mJSI.processInput();
+        Rectangle damage = this.takeFrameDamage();
+        int w = this.getWidth();
+        int h = this.getHeight();
+        if (damage == null || w <= 0 || h <= 0) {
+            return;
+        }
+        
+        GraphicsConfiguration gc = this.getGraphicsConfiguration();
+        Rectangle bounds = new Rectangle(0, 0, w, h);
+        do {
+            int status = this.mBackBuffer == null ? 
+                    VolatileImage.IMAGE_INCOMPATIBLE : 
+                    this.mBackBuffer.validate(gc);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE || 
+                    this.mBackBuffer.getWidth() != w || 
+                    this.mBackBuffer.getHeight() != h) {
+                this.mBackBuffer = this.createVolatileImage(w, h);
+                if (this.mBackBuffer == null) {
+                    return;
+                }
+                damage = bounds;
+            } else if (status == VolatileImage.IMAGE_RESTORED) {
+                damage = bounds;
+            }
+            damage = damage.intersection(bounds);
+            
+            Graphics2D g2 = this.mBackBuffer.createGraphics();
+            g2.clip(damage);
+            g2.setColor(this.getBackground());
+            g2.fill(damage);
+            this.paintFrame(g2);
+            g2.dispose();
+        } while (this.mBackBuffer.contentsLost());
+        
+        Graphics g = this.getGraphics();
+        if (g != null) {
+            g.drawImage(
+                    this.mBackBuffer, 
+                    damage.x, 
+                    damage.y, 
+                    damage.x + damage.width, 
+                    damage.y + damage.height, 
+                    damage.x, 
+                    damage.y, 
+                    damage.x + damage.width, 
+                    damage.y + damage.height, 
+                    null);
+            g.dispose();
+            Toolkit.getDefaultToolkit().sync();
+        }
+    }
+    
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
-        Graphics2D g2 = (Graphics2D) g;
-        
+        this.paintFrame((Graphics2D) g);
+    }
+    
+    private void paintFrame(Graphics2D g2) {
+        this.mIsDraftFrame = this.mQualityScheduler.isDraft();
         g2.setRenderingHint(
                 RenderingHints.KEY_ANTIALIASING, 
-                RenderingHints.VALUE_ANTIALIAS_ON);
+                this.mIsDraftFrame ? 
+                        RenderingHints.VALUE_ANTIALIAS_OFF : 
+                        RenderingHints.VALUE_ANTIALIAS_ON);
+        
+        Rectangle clip = g2.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, this.getWidth(), this.getHeight());
+        }
         
-        this.drawWorldSpaceElements(g2);
+        this.drawScene(g2);
+        this.drawWorldSpaceElements(g2, clip);
         this.drawScreenSpaceElements(g2);
     }
     
-    private void drawWorldSpaceElements(Graphics2D g2) {
+    // Composites the retained raster of committed curves
+    private void drawScene(Graphics2D g2) {
+        AffineTransform deviceXform = 
+                g2.getDeviceConfiguration().getDefaultTransform();
+        int imageWidth = (int) Math.ceil(
+                this.getWidth() * deviceXform.getScaleX());
+        int imageHeight = (int) Math.ceil(
+                this.getHeight() * deviceXform.getScaleY());
+        if (imageWidth <= 0 || imageHeight <= 0) {
+            return;
+        }
+        
+        AffineTransform curXform = 
+                this.mJSI.getXform().getCurXformFromWorldToScreen();
+        if (this.mSceneImage == null || 
+                this.mSceneImage.getWidth() != imageWidth || 
+                this.mSceneImage.getHeight() != imageHeight) {
+            this.mSceneImage = 
+                    JSICanvas2D.createTranslucentImage(
+                            this.getGraphicsConfiguration(), 
+                            imageWidth, 
+                            imageHeight);
+            this.mIsSceneDirty = true;
+        }
+        if (this.mIsNavigating && !this.mIsSceneDirty && 
+                this.mSceneDirtyWorldRect == null && 
+                !curXform.equals(this.mSceneXform)) {
+            this.drawNavigationSnapshot(g2, deviceXform, curXform);
+            return;
+        }
+        if (this.mIsSceneDirty || !curXform.equals(this.mSceneXform)) {
+            this.renderScene(deviceXform, curXform, null);
+        } else if (this.mSceneDirtyWorldRect != null) {
+            this.renderScene(
+                    deviceXform, curXform, this.mSceneDirtyWorldRect);
+        }
+        
+        g2.drawImage(
+                this.mSceneImage, 
+                0, 
+                0, 
+                this.getWidth(), 
+                this.getHeight(), 
+                null);
+    }
+    
+    // Draws the snapshot under the change of transform during a drag,
+    // filling the strips a pan exposes from the tile cache
+    private void drawNavigationSnapshot(Graphics2D g2, 
+            AffineTransform deviceXform, AffineTransform curXform) {
+        AffineTransform deltaXform = this.mDeltaXform;
+        deltaXform.setTransform(this.mSceneXform);
+        try {
+            deltaXform.invert();
+        } catch (NoninvertibleTransformException ex) {
+            return;
+        }
+        deltaXform.preConcatenate(curXform);
+        
+        AffineTransform imageXform = this.mImageXform;
+        imageXform.setTransform(deltaXform);
+        imageXform.scale(
+                1.0 / deviceXform.getScaleX(), 1.0 / deviceXform.getScaleY());
+        boolean isTranslation = JSICanvas2D.isTranslation(deltaXform);
+        boolean isPixelShift = isTranslation && 
+                JSICanvas2D.isWhole(
+                        deltaXform.getTranslateX() * deviceXform.getScaleX()) && 
+                JSICanvas2D.isWhole(
+                        deltaXform.getTranslateY() * deviceXform.getScaleY());
+        Object oldInterpolation = 
+                g2.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        g2.setRenderingHint(
+                RenderingHints.KEY_INTERPOLATION, 
+                isPixelShift ? 
+                        RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR : 
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.drawImage(this.mSceneImage, imageXform, null);
+        if (oldInterpolation != null) {
+            g2.setRenderingHint(
+                    RenderingHints.KEY_INTERPOLATION, oldInterpolation);
+        }
+        
+        if (!isTranslation) {
+            return;
+        }
+        
+        int w = this.mSceneImage.getWidth();
+        int h = this.mSceneImage.getHeight();
+        double dx = deltaXform.getTranslateX() * deviceXform.getScaleX();
+        double dy = deltaXform.getTranslateY() * deviceXform.getScaleY();
+        ArrayList<Rectangle> strips = new ArrayList<Rectangle>();
+        if (dx > 0.0) {
+            strips.add(new Rectangle(0, 0, (int) Math.ceil(dx), h));
+        } else if (dx < 0.0) {
+            int x = (int) Math.floor(w + dx);
+            strips.add(new Rectangle(x, 0, w - x, h));
+        }
+        if (dy > 0.0) {
+            strips.add(new Rectangle(0, 0, w, (int) Math.ceil(dy)));
+        } else if (dy < 0.0) {
+            int y = (int) Math.floor(h + dy);
+            strips.add(new Rectangle(0, y, w, h - y));
+        }
+        
+        AffineTransform worldToDeviceXform = 
+                this.calcWorldToDeviceXform(deviceXform, curXform);
+        JSITileGrid grid = new JSITileGrid(worldToDeviceXform);
+        int offsetX = 
+                JSITileGrid.calcOffset(worldToDeviceXform.getTranslateX());
+        int offsetY = 
+                JSITileGrid.calcOffset(worldToDeviceXform.getTranslateY());
+        AffineTransform oldXform = g2.getTransform();
+        g2.scale(1.0 / deviceXform.getScaleX(), 1.0 / deviceXform.getScaleY());
+        Shape oldClip = g2.getClip();
+        for (Rectangle strip : strips) {
+            g2.clip(strip);
+            strip.translate(-offsetX, -offsetY);
+            this.compositeTiles(g2, grid, offsetX, offsetY, strip, true);
+            g2.setClip(oldClip);
+        }
+        g2.setTransform(oldXform);
+    }
+    
+    private static boolean isWhole(double d) {
+        return Math.abs(d - Math.rint(d)) < 1e-9;
+    }
+    
+    private static boolean isTranslation(AffineTransform at) {
+        double eps = 1e-9;
+        return Math.abs(at.getScaleX() - 1.0) < eps && 
+                Math.abs(at.getScaleY() - 1.0) < eps && 
+                Math.abs(at.getShearX()) < eps && 
+                Math.abs(at.getShearY()) < eps;
+    }
+    
+    // Only the part covering dirtyWorldRect when it is given
+    private void renderScene(AffineTransform deviceXform, 
+            AffineTransform curXform, Rectangle2D dirtyWorldRect) {
+        if (dirtyWorldRect == null) {
+            this.cancelSceneJob();
+        }
+        
+        AffineTransform worldToDeviceXform = 
+                this.calcWorldToDeviceXform(deviceXform, curXform);
+        JSITileGrid grid = new JSITileGrid(worldToDeviceXform);
+        int offsetX = 
+                JSITileGrid.calcOffset(worldToDeviceXform.getTranslateX());
+        int offsetY = 
+                JSITileGrid.calcOffset(worldToDeviceXform.getTranslateY());
+        
+        Rectangle deviceClip = this.mDeviceClip;
+        deviceClip.setBounds(
+                0, 0, this.mSceneImage.getWidth(), this.mSceneImage.getHeight());
+        if (dirtyWorldRect != null) {
+            Rectangle dirtyDeviceRect = new Rectangle();
+            JSIXform.calcTransformedBounds(
+                    worldToDeviceXform, dirtyWorldRect, dirtyDeviceRect);
+            dirtyDeviceRect.grow(
+                    JSICanvas2D.DAMAGE_PADDING, JSICanvas2D.DAMAGE_PADDING);
+            Rectangle2D.intersect(deviceClip, dirtyDeviceRect, deviceClip);
+        }
+        this.mSceneGrid = grid;
+        this.mSceneOffsetX = offsetX;
+        this.mSceneOffsetY = offsetY;
+        this.mSceneXform.setTransform(curXform);
+        this.mIsSceneDirty = false;
+        this.mSceneDirtyWorldRect = null;
+        if (deviceClip.isEmpty()) {
+            return;
+        }
+        
+        Graphics2D sceneG2 = this.mSceneImage.createGraphics();
+        sceneG2.setClip(deviceClip);
+        sceneG2.setComposite(AlphaComposite.Clear);
+        sceneG2.fill(deviceClip);
+        sceneG2.setComposite(AlphaComposite.SrcOver);
+        
+        Rectangle gridRect = new Rectangle(deviceClip);
+        gridRect.translate(-offsetX, -offsetY);
+        boolean hasDraftTiles = false;
+        if (this.mSceneJob != null) {
+            hasDraftTiles = this.compositeTiles(
+                    sceneG2, grid, offsetX, offsetY, gridRect, false);
+        } else if (dirtyWorldRect != null || !this.startSceneJob(sceneG2, 
+                worldToDeviceXform, grid, offsetX, offsetY, gridRect)) {
+            hasDraftTiles = this.compositeTiles(
+                    sceneG2, grid, offsetX, offsetY, gridRect, true);
+        }
+        sceneG2.dispose();
+        if (hasDraftTiles) {
+            this.mQualityScheduler.startRefinement();
+        }
+    }
+    
+    private AffineTransform calcWorldToDeviceXform(
+            AffineTransform deviceXform, AffineTransform curXform) {
+        AffineTransform worldToDeviceXform = this.mWorldToDeviceXform;
+        worldToDeviceXform.setToScale(
+                deviceXform.getScaleX(), deviceXform.getScaleY());
+        worldToDeviceXform.concatenate(curXform);
+        return worldToDeviceXform;
+    }
+    
+    // Missing tiles are rendered first if isRenderingMissing and skipped
+    // otherwise. Returns whether any drawn tile is a draft.
+    private boolean compositeTiles(Graphics2D g2, JSITileGrid grid, 
+            int offsetX, int offsetY, Rectangle gridRect, 
+            boolean isRenderingMissing) {
+        Rectangle tileRange = 
+                JSITileGrid.calcTileRange(gridRect, new Rectangle());
+        int tx0 = tileRange.x;
+        int ty0 = tileRange.y;
+        int colNum = tileRange.width;
+        int rowNum = tileRange.height;
+        boolean isDraft = this.mQualityScheduler.isDraft();
+        BufferedImage[] tiles = new BufferedImage[colNum * rowNum];
+        int[] missingIndices = new int[tiles.length];
+        int missingNum = 0;
+        boolean hasDraftTiles = false;
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = this.mTileCache.get(
+                    grid, tx0 + i % colNum, ty0 + i / colNum);
+            if (tiles[i] != null && this.mTileCache.isDraft(
+                    grid, tx0 + i % colNum, ty0 + i / colNum)) {
+                if (isRenderingMissing && !isDraft) {
+                    tiles[i] = null;
+                } else {
+                    hasDraftTiles = true;
+                }
+            }
+            if (tiles[i] == null) {
+                missingIndices[missingNum++] = i;
+            }
+        }
+        
+        if (missingNum > 0 && isRenderingMissing) {
+            this.renderTiles(grid, isDraft, tx0, ty0, colNum, 
+                    missingIndices, tiles, missingNum);
+            hasDraftTiles |= isDraft;
+        }
+        
+        int size = JSITileCache.TILE_SIZE;
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                g2.drawImage(
+                        tiles[i], 
+                        offsetX + (tx0 + i % colNum) * size, 
+                        offsetY + (ty0 + i / colNum) * size, 
+                        null);
+            }
+        }
+        return hasDraftTiles;
+    }
+    
+    // The EDT waits, so the document stays unchanged
+    private void renderTiles(JSITileGrid grid, boolean isDraft, 
+            int tx0, int ty0, int colNum, 
+            int[] indices, BufferedImage[] tiles, int indexNum) {
+        JSITileRenderTask.POOL.invoke(new JSITileRenderTask(
+                this.mJSI, this.getGraphicsConfiguration(), 
+                grid, isDraft, tx0, ty0, colNum, 
+                indices, tiles, 0, indexNum));
+        for (int j = 0; j < indexNum; j++) {
+            int i = indices[j];
+            this.mTileCache.put(
+                    grid, 
+                    tx0 + i % colNum, 
+                    ty0 + i / colNum, 
+                    tiles[i], 
+                    isDraft);
+        }
+    }
+    
+    // Re-renders up to REFINE_TILE_NUM visible draft tiles and returns
+    // whether any remain
+    private boolean refineDraftTiles() {
+        if (this.mIsDraftFrame) {
+            this.repaint();
+        }
+        JSITileGrid grid = this.mSceneGrid;
+        if (grid == null || this.mSceneImage == null) {
+            return false;
+        }
+        Rectangle tileRange = JSITileGrid.calcTileRange(
+                new Rectangle(
+                        -this.mSceneOffsetX, 
+                        -this.mSceneOffsetY, 
+                        this.mSceneImage.getWidth(), 
+                        this.mSceneImage.getHeight()), 
+                new Rectangle());
+        int tx0 = tileRange.x;
+        int ty0 = tileRange.y;
+        int colNum = tileRange.width;
+        int rowNum = tileRange.height;
+        BufferedImage[] tiles = new BufferedImage[colNum * rowNum];
+        int[] draftIndices = new int[JSICanvas2D.REFINE_TILE_NUM];
+        int draftNum = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            if (this.mTileCache.isDraft(
+                    grid, tx0 + i % colNum, ty0 + i / colNum)) {
+                if (draftNum == draftIndices.length) {
+                    break;
+                }
+                draftIndices[draftNum++] = i;
+            }
+        }
+        if (draftNum == 0) {
+            return false;
+        }
+        
+        this.renderTiles(grid, false, tx0, ty0, colNum, 
+                draftIndices, tiles, draftNum);
+        for (int j = 0; j < draftNum; j++) {
+            int i = draftIndices[j];
+            Rectangle2D tileWorldRect = grid.calcTileWorldBounds(
+                    tx0 + i % colNum, 
+                    ty0 + i / colNum, 
+                    0.0, 
+                    new Rectangle2D.Double());
+            if (this.mSceneDirtyWorldRect == null) {
+                this.mSceneDirtyWorldRect = tileWorldRect;
+            } else {
+                this.mSceneDirtyWorldRect.add(tileWorldRect);
+            }
+            this.repaint(this.calcScreenBounds(tileWorldRect));
+        }
+        return draftNum == draftIndices.length;
+    }
+    
+    public static BufferedImage createTranslucentImage(
+            GraphicsConfiguration gc, int width, int height) {
+        if (gc == null) {
+            return new BufferedImage(
+                    width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        return gc.createCompatibleImage(
+                width, height, Transparency.TRANSLUCENT);
+    }
+    
+    private void drawWorldSpaceElements(Graphics2D g2, Rectangle clip) {
+        Rectangle2D clipWorldRect = this.mJSI.getXform()
+                .calcRectFromScreenToWorld(clip, this.mClipWorldRect);
         g2.transform(this.mJSI.getXform().getCurXformFromWorldToScreen());
-        this.drawPtCurves(g2);
-        this.drawSelectedPtCurve(g2);
-        this.drawCurPtCurve(g2);
+        this.drawCurPtCurve(
+                g2, clipWorldRect, 1.0 / this.mJSI.getXform().getCurScale());
         g2.transform(this.mJSI.getXform().getCurXformFromScreenToWorld());
     }
     
@@ -86,49 +872,127 @@ public class JSICanvas2D extends JPanel {
         this.drawPenTip(g2);
         this.drawInfo(g2);
     }
-
-    private void drawPtCurves(Graphics2D g2) {
-        for (JSIPtCurve ptCurve : this.mJSI.getPtCurves()) {
-            this.drawPtCurve(
+    
+    private Rectangle2D calcVisibleWorldRect(Rectangle2D worldRect) {
+        this.mScreenRect.setBounds(0, 0, this.getWidth(), this.getHeight());
+        return this.mJSI.getXform()
+                .calcRectFromScreenToWorld(this.mScreenRect, worldRect);
+    }
+    
+    // pixelSize is the world length of one device pixel
+    public static void drawCommittedPtCurve(Graphics2D g2, 
+            JSISelection selection, JSIPtCurve ptCurve, double pixelSize, 
+            boolean isDraft) {
+        Color c = selection.contains(ptCurve) ? 
+                JSICanvas2D.COLOR_SELECTED_PT_CURVE : 
+                ptCurve.getColor();
+        if (isDraft) {
+            JSICanvas2D.drawPtCurve(
+                    g2, 
+                    ptCurve, 
+                    c, 
+                    JSICanvas2D.calcDraftStroke(ptCurve.getStroke()), 
+                    pixelSize * JSICanvas2D.DRAFT_LOD_FACTOR);
+        } else {
+            JSICanvas2D.drawPtCurve(
                     g2, 
                     ptCurve, 
-                    ptCurve.getColor(), 
-                    ptCurve.getStroke());
+                    c, 
+                    ptCurve.getStroke(), 
+                    pixelSize);
         }
     }
-
-    private void drawCurPtCurve(Graphics2D g2) {
+    
+    // Same width without the cost of round joins and caps
+    private static Stroke calcDraftStroke(Stroke s) {
+        return new BasicStroke(
+                ((BasicStroke) s).getLineWidth(), 
+                BasicStroke.CAP_BUTT, 
+                BasicStroke.JOIN_BEVEL);
+    }
+    
+    // Strokes are widened by PICK_TOLERANCE on each side
+    private void renderPickBuffer(Graphics2D g2, Rectangle dirtyRect) {
+        JSIXform xform = this.mJSI.getXform();
+        double pixelSize = 1.0 / xform.getCurScale();
+        double tolerance = JSICanvas2D.PICK_TOLERANCE * pixelSize;
+        Rectangle2D.Double dirtyWorldRect = new Rectangle2D.Double();
+        xform.calcRectFromScreenToWorld(dirtyRect, dirtyWorldRect);
+        dirtyWorldRect.setRect(
+                dirtyWorldRect.x - tolerance, 
+                dirtyWorldRect.y - tolerance, 
+                dirtyWorldRect.width + 2.0 * tolerance, 
+                dirtyWorldRect.height + 2.0 * tolerance);
+        ArrayList<JSIPtCurve> ptCurves = new ArrayList<JSIPtCurve>();
+        this.mJSI.getPtCurveIndex().query(dirtyWorldRect, ptCurves);
+        ptCurves.sort(JSICanvas2D.Z_ORDER_COMPARATOR);
+        
+        g2.transform(xform.getCurXformFromWorldToScreen());
+        for (JSIPtCurve ptCurve : ptCurves) {
+            JSICanvas2D.drawPtCurve(
+                    g2, 
+                    ptCurve, 
+                    JSIPickBuffer.calcColor(ptCurve.getId()), 
+                    new BasicStroke(
+                            ((BasicStroke) ptCurve.getStroke())
+                                    .getLineWidth() + 
+                            (float) (2.0 * tolerance), 
+                            BasicStroke.CAP_ROUND, 
+                            BasicStroke.JOIN_ROUND), 
+                    pixelSize);
+            this.mPickPtCurves.put(ptCurve.getId(), ptCurve);
+        }
+    }
+    
+    private void drawCurPtCurve(Graphics2D g2, 
+            Rectangle2D clipWorldRect, double pixelSize) {
         JSIPtCurve ptCurve = this.mJSI.getCurPtCurve();
-        if (ptCurve != null) {
-            this.drawPtCurve(
+        if (ptCurve != null && ptCurve.mayIntersect(clipWorldRect)) {
+            JSICanvas2D.drawPtCurve(
                     g2, 
                     ptCurve, 
                     ptCurve.getColor(),
-                    ptCurve.getStroke());
+                    ptCurve.getStroke(), 
+                    pixelSize);
         }
     }
     
-    private void drawPtCurve(
-            Graphics2D g2, JSIPtCurve ptCurve, Color c, Stroke s) {
-        ArrayList<Point2D.Double> pts = ptCurve.getPts();
-        if (pts.size() < 2) {
+    private static void drawPtCurve(Graphics2D g2, 
+            JSIPtCurve ptCurve, Color c, Stroke s, double pixelSize) {
+        if (ptCurve.getPtNum() < 2) {
             return;
         }
         
-        Path2D.Double path = new Path2D.Double();
-        Point2D.Double pt0 = pts.get(0);
-        path.moveTo(pt0.x, pt0.y);
+        // Curves within a pixel collapse to a dot
+        Rectangle2D.Double box = ptCurve.getBoundingBox();
+        if (Math.max(box.width, box.height) < pixelSize) {
+            double d = Math.max(
+                    pixelSize, ((BasicStroke) s).getLineWidth());
+            g2.setColor(c);
+            g2.fill(new Rectangle2D.Double(
+                    box.getCenterX() - d / 2.0, 
+                    box.getCenterY() - d / 2.0, 
+                    d, 
+                    d));
+            return;
+        }
         
-        for (int i = 1; i < pts.size(); i++) {
-            Point2D.Double pt = pts.get(i);
-            path.lineTo(pt.x, pt.y);
+        // Coarsest level of detail that stays within one pixel of error
+        int lod = ptCurve.findLod(pixelSize);
+        int ptNum = ptCurve.getLodPtNum(lod);
+        double[] coords = ptCurve.getLodCoords(lod);
+        Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO, ptNum);
+        path.moveTo(coords[0], coords[1]);
+        
+        for (int i = 1; i < ptNum; i++) {
+            path.lineTo(coords[2 * i], coords[2 * i + 1]);
         }
         
         g2.setColor(c);
         g2.setStroke(s);
         g2.draw(path);
     }
-
+    
     private void drawSelectionBox(Graphics2D g2) {
         if (this.mJSI.getSelectionBox() != null) {
             g2.setColor(JSICanvas2D.COLOR_SELECTION_BOX);
@@ -136,19 +1000,10 @@ public class JSICanvas2D extends JPanel {
             g2.draw(this.mJSI.getSelectionBox());
         }
     }
-
-    private void drawSelectedPtCurve(Graphics2D g2) {
-        for (JSIPtCurve selectedPtCurve : this.mJSI.getSelectedPtCurves()) {
-            this.drawPtCurve(
-                    g2, 
-                    selectedPtCurve, 
-                    JSICanvas2D.COLOR_SELECTED_PT_CURVE, 
-                    selectedPtCurve.getStroke());
-        }
-    }
-
+    
     private void drawInfo(Graphics2D g2) {
-        String modeText = String.valueOf(this.mJSI.getMode());
+        String modeText = JSICanvas2D.calcInfoText(
+                this.mJSI.getMode(), this.getRenderProgress());
         g2.setColor(JSICanvas2D.COLOR_INFO);
         g2.setFont(JSICanvas2D.FONT_INFO);
         g2.drawString(
@@ -156,7 +1011,7 @@ public class JSICanvas2D extends JPanel {
                 JSICanvas2D.INFO_TOP_ALIGNMENT_X, 
                 JSICanvas2D.INFO_TOP_ALIGNMENT_Y);
     }
-
+    
     private void drawCrossHair(Graphics2D g2) {
         if (this.mJSI.getMode() != JSI.Mode.ZOOM_ROTATE) {
             return;
@@ -168,13 +1023,13 @@ public class JSICanvas2D extends JPanel {
                 ctr.x - r, ctr.y, ctr.x + r, ctr.y);
         Line2D vline = new Line2D.Double(
                 ctr.x, ctr.y - r, ctr.x, ctr.y + r);
-
+        
         g2.setColor(COLOR_CROSS_HAIR);
         g2.setStroke(STROKE_CROSS_HAIR);
         g2.draw(hline);
         g2.draw(vline);
     }
-
+    
     void increaseStrokeWidthForCurPtCurve(float delta) {
         BasicStroke bs = (BasicStroke) this.mCurStrokeForPtCurve;
         float newWidth = bs.getLineWidth() + delta;
@@ -188,8 +1043,13 @@ public class JSICanvas2D extends JPanel {
                 bs.getEndCap(),
                 bs.getLineJoin());
     }
-
+    
     private void drawPenTip(Graphics2D g2) {
+        g2.setColor(this.mCurColorForPtCurve);
+        g2.fill(this.calcPenTipShape());
+    }
+    
+    private Ellipse2D.Double calcPenTipShape() {
         BasicStroke bs = (BasicStroke) this.mCurStrokeForPtCurve;
         double diameter = this.calcPenTipDiameter(bs.getLineWidth());
         double radius = diameter / 2.0;
@@ -198,26 +1058,17 @@ public class JSICanvas2D extends JPanel {
                 this.getWidth() - JSICanvas2D.PEN_TIP_OFFSET,
                 JSICanvas2D.PEN_TIP_OFFSET);
         
-        Ellipse2D.Double penTip = new Ellipse2D.Double(
+        return new Ellipse2D.Double(
                 center.x - radius, 
                 center.y - radius, 
                 diameter, 
                 diameter);
-        
-        g2.setColor(this.mCurColorForPtCurve);
-        g2.fill(penTip);
     }
     
     private double calcPenTipDiameter(float strokeWidth) {
-        Point2D.Double worldPt0 = new Point2D.Double(0.0, 0.0);
-        Point2D.Double worldPt1 = new Point2D.Double(strokeWidth, 0.0);
-        Point screenPt0 = 
-                this.mJSI.getXform().calcPtFromWorldToScreen(worldPt0);
-        Point screenPt1 = 
-                this.mJSI.getXform().calcPtFromWorldToScreen(worldPt1);
-        return screenPt0.distance(screenPt1);
+        return strokeWidth * this.mJSI.getXform().getCurScale();
     }
-
+    
     private void drawColorChooser(Graphics2D g2) {
         if (this.mJSI.getMode() == JSI.Mode.COLOR) {
             this.mJSI.getColorChooser().drawCells(
@@ -0,0 +1,26 @@
+import java.io.DataOutput;
+import java.io.IOException;
+
+// A reversible change to the document. A command keeps only the curves
+// and attributes it changed, so undoing or redoing it costs O(size of
+// the change) rather than O(size of the document).
+public interface JSICmd {
+    
+    public void undo();
+    
+    public void redo();
+    
+    // Whether applying the command leaves the document as it was
+    public boolean isNoOp();
+    
+    // Folds a command applied right after this one into this one, so
+    // both are undone as one step. Returns false if they cannot merge.
+    public boolean mergeWith(JSICmd next);
+    
+    // Approximate heap bytes kept alive by the command
+    public long calcByteSize();
+    
+    // Compact form for the history's disk spill, read back by the
+    // JSIHistory.Reader given to the history
+    public void writeTo(DataOutput out) throws IOException;
+}
@@ -0,0 +1,179 @@
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+// Bulk kernels over packed (x, y) coordinate arrays, as kept by
+// JSIPtCurve. Long runs go through the incubating Vector API when the
+// JVM was started with --add-modules jdk.incubator.vector, and through
+// plain loops otherwise. Both paths round identically, so results do not
+// depend on the JVM flags.
+public class JSICoordKernel {
+    
+    // Shorter runs are not worth the vector setup
+    private static final int MIN_VECTOR_PT_NUM = 32;
+    private static final boolean IS_VECTORIZED =
+            JSICoordKernel.detectVectorSupport();
+    
+    public static boolean isVectorized() {
+        return JSICoordKernel.IS_VECTORIZED;
+    }
+    
+    // Same as at.transform(src, srcOffset, dst, dstOffset, ptNum).
+    // src and dst may be the same array.
+    public static void transform(AffineTransform at,
+            double[] src, int srcOffset,
+            double[] dst, int dstOffset, int ptNum) {
+        int doneNum = 0;
+        // Going forward, a shift to the right within one array would
+        // overwrite points before they are read
+        if (JSICoordKernel.IS_VECTORIZED &&
+                ptNum >= JSICoordKernel.MIN_VECTOR_PT_NUM &&
+                (src != dst || srcOffset >= dstOffset)) {
+            doneNum = Vectorized.transform(
+                    at.getScaleX(), at.getShearX(), at.getTranslateX(),
+                    at.getShearY(), at.getScaleY(), at.getTranslateY(),
+                    src, srcOffset, dst, dstOffset, ptNum);
+        }
+        if (doneNum < ptNum) {
+            JSICoordKernel.transformScalar(at,
+                    src, srcOffset + 2 * doneNum,
+                    dst, dstOffset + 2 * doneNum, ptNum - doneNum);
+        }
+    }
+    
+    // Bounding box of ptNum points, written into dst and returned
+    public static Rectangle2D calcBounds(
+            double[] coords, int offset, int ptNum, Rectangle2D dst) {
+        double[] minMax = {
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        int doneNum = 0;
+        if (JSICoordKernel.IS_VECTORIZED &&
+                ptNum >= JSICoordKernel.MIN_VECTOR_PT_NUM) {
+            doneNum = Vectorized.calcBounds(coords, offset, ptNum, minMax);
+        }
+        for (int i = offset + 2 * doneNum; i < offset + 2 * ptNum; i += 2) {
+            minMax[0] = Math.min(minMax[0], coords[i]);
+            minMax[1] = Math.min(minMax[1], coords[i + 1]);
+            minMax[2] = Math.max(minMax[2], coords[i]);
+            minMax[3] = Math.max(minMax[3], coords[i + 1]);
+        }
+        dst.setRect(
+                minMax[0],
+                minMax[1],
+                minMax[2] - minMax[0],
+                minMax[3] - minMax[1]);
+        return dst;
+    }
+    
+    // The general case of AffineTransform.transform, term by term in the
+    // same order as the vector loop
+    private static void transformScalar(AffineTransform at,
+            double[] src, int srcOffset,
+            double[] dst, int dstOffset, int ptNum) {
+        if (src == dst && srcOffset < dstOffset) {
+            // The JDK handles overlapping shifts to the right
+            at.transform(src, srcOffset, dst, dstOffset, ptNum);
+            return;
+        }
+        double m00 = at.getScaleX();
+        double m01 = at.getShearX();
+        double m02 = at.getTranslateX();
+        double m10 = at.getShearY();
+        double m11 = at.getScaleY();
+        double m12 = at.getTranslateY();
+        for (int k = 0; k < ptNum; k++) {
+            double x = src[srcOffset + 2 * k];
+            double y = src[srcOffset + 2 * k + 1];
+            dst[dstOffset + 2 * k] = m00 * x + m01 * y + m02;
+            dst[dstOffset + 2 * k + 1] = m10 * x + m11 * y + m12;
+        }
+    }
+    
+    // Only touched when the module is present, so the vector classes are
+    // never loaded without it
+    private static boolean detectVectorSupport() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            return Vectorized.LANE_NUM >= 2;
+        } catch (LinkageError ex) {
+            return false;
+        }
+    }
+    
+    // Each vector holds LANE_NUM / 2 interleaved points: x in the even
+    // lanes, y in the odd ones. Swapping neighboring lanes and blending
+    // spreads each point's x and y over both of its lanes, so one
+    // multiply-add pattern serves both rows of the matrix.
+    private static final class Vectorized {
+        private static final VectorSpecies<Double> SPECIES =
+                DoubleVector.SPECIES_PREFERRED;
+        private static final int LANE_NUM = Vectorized.SPECIES.length();
+        private static final VectorShuffle<Double> SWAP =
+                VectorShuffle.fromOp(Vectorized.SPECIES, i -> i ^ 1);
+        private static final VectorMask<Double> X_LANES =
+                VectorMask.fromLong(Vectorized.SPECIES, 0x5555555555555555L);
+        private static final VectorMask<Double> Y_LANES =
+                Vectorized.X_LANES.not();
+        
+        // Transforms whole vectors of points and returns how many points
+        // were done; the caller finishes the rest
+        private static int transform(
+                double m00, double m01, double m02,
+                double m10, double m11, double m12,
+                double[] src, int srcOffset,
+                double[] dst, int dstOffset, int ptNum) {
+            // (m00, m10, ...) times (x, x, ...) plus (m01, m11, ...)
+            // times (y, y, ...) plus (m02, m12, ...), the JDK's order
+            DoubleVector col0 = DoubleVector.broadcast(Vectorized.SPECIES, m00)
+                    .blend(m10, Vectorized.Y_LANES);
+            DoubleVector col1 = DoubleVector.broadcast(Vectorized.SPECIES, m01)
+                    .blend(m11, Vectorized.Y_LANES);
+            DoubleVector trans = DoubleVector.broadcast(Vectorized.SPECIES, m02)
+                    .blend(m12, Vectorized.Y_LANES);
+            int bound = Vectorized.SPECIES.loopBound(2 * ptNum);
+            for (int i = 0; i < bound; i += Vectorized.LANE_NUM) {
+                DoubleVector v = DoubleVector.fromArray(
+                        Vectorized.SPECIES, src, srcOffset + i);
+                DoubleVector w = v.rearrange(Vectorized.SWAP);
+                DoubleVector xs = v.blend(w, Vectorized.Y_LANES);
+                DoubleVector ys = w.blend(v, Vectorized.Y_LANES);
+                xs.mul(col0).add(ys.mul(col1)).add(trans)
+                        .intoArray(dst, dstOffset + i);
+            }
+            return bound / 2;
+        }
+        
+        // Folds whole vectors of points into minMax (minX, minY, maxX,
+        // maxY) and returns how many points were done
+        private static int calcBounds(
+                double[] coords, int offset, int ptNum, double[] minMax) {
+            DoubleVector min = DoubleVector.broadcast(
+                    Vectorized.SPECIES, Double.POSITIVE_INFINITY);
+            DoubleVector max = DoubleVector.broadcast(
+                    Vectorized.SPECIES, Double.NEGATIVE_INFINITY);
+            int bound = Vectorized.SPECIES.loopBound(2 * ptNum);
+            for (int i = 0; i < bound; i += Vectorized.LANE_NUM) {
+                DoubleVector v = DoubleVector.fromArray(
+                        Vectorized.SPECIES, coords, offset + i);
+                min = min.min(v);
+                max = max.max(v);
+            }
+            minMax[0] = Math.min(minMax[0], min.reduceLanes(
+                    VectorOperators.MIN, Vectorized.X_LANES));
+            minMax[1] = Math.min(minMax[1], min.reduceLanes(
+                    VectorOperators.MIN, Vectorized.Y_LANES));
+            minMax[2] = Math.max(minMax[2], max.reduceLanes(
+                    VectorOperators.MAX, Vectorized.X_LANES));
+            minMax[3] = Math.max(minMax[3], max.reduceLanes(
+                    VectorOperators.MAX, Vectorized.Y_LANES));
+            return bound / 2;
+        }
+    }
+}
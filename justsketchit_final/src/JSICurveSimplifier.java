@@ -0,0 +1,94 @@
+import java.util.Arrays;
+
+// Ramer-Douglas-Peucker simplification over packed x, y coordinates.
+// Kept points never deviate from the original polyline by more than the
+// tolerance, and both end points are always kept.
+public class JSICurveSimplifier {
+    
+    private JSICurveSimplifier() {
+    }
+    
+    // Returns the packed coordinates of the kept points.
+    public static double[] simplify(
+            double[] coords, int ptNum, double tolerance) {
+        if (ptNum <= 2 || !(tolerance > 0.0)) {
+            return Arrays.copyOf(coords, 2 * ptNum);
+        }
+        
+        boolean[] isKept = new boolean[ptNum];
+        isKept[0] = true;
+        isKept[ptNum - 1] = true;
+        double toleranceSq = tolerance * tolerance;
+        
+        // Explicit stack of [first, last] ranges instead of recursion,
+        // so that very long strokes cannot overflow the call stack
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = ptNum - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            
+            int farthest = -1;
+            double farthestDistSq = toleranceSq;
+            for (int i = first + 1; i < last; i++) {
+                double distSq = JSICurveSimplifier.calcSegmentDistSq(
+                        coords, i, first, last);
+                if (distSq > farthestDistSq) {
+                    farthestDistSq = distSq;
+                    farthest = i;
+                }
+            }
+            if (farthest < 0) {
+                continue;
+            }
+            
+            isKept[farthest] = true;
+            if (top + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[top++] = first;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = last;
+        }
+        
+        int keptNum = 0;
+        for (int i = 0; i < ptNum; i++) {
+            if (isKept[i]) {
+                keptNum++;
+            }
+        }
+        double[] kept = new double[2 * keptNum];
+        int j = 0;
+        for (int i = 0; i < ptNum; i++) {
+            if (isKept[i]) {
+                kept[j++] = coords[2 * i];
+                kept[j++] = coords[2 * i + 1];
+            }
+        }
+        return kept;
+    }
+    
+    // Squared distance from point i to the segment between points a and b
+    private static double calcSegmentDistSq(
+            double[] coords, int i, int a, int b) {
+        double px = coords[2 * i];
+        double py = coords[2 * i + 1];
+        double ax = coords[2 * a];
+        double ay = coords[2 * a + 1];
+        double dx = coords[2 * b] - ax;
+        double dy = coords[2 * b + 1] - ay;
+        
+        double lengthSq = dx * dx + dy * dy;
+        double t = 0.0;
+        if (lengthSq > 0.0) {
+            t = ((px - ax) * dx + (py - ay) * dy) / lengthSq;
+            t = Math.max(0.0, Math.min(1.0, t));
+        }
+        double ex = px - (ax + t * dx);
+        double ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+}
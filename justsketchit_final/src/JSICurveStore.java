@@ -0,0 +1,367 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Stroke;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+// Content-addressed store of curve geometry. Curves are written as their
+// ID, z-order, style and a reference to their geometry, and the geometry
+// itself is written to the store's file only the first time it is seen.
+// Records are found by geometry hash and then compared point by point,
+// with a live curve or with the bytes on disk, so a hash collision gets
+// a record of its own instead of another curve's points. Reading a curve
+// back shares the geometry, including its LOD pyramid, with any live
+// curve of the same record instead of allocating a copy.
+// Each written reference counts towards its record until it is released.
+// A record without references is dead: its slot is kept so that the
+// indices of its neighbors stay valid, and its bytes are compacted away
+// once dead records take up most of the file.
+public class JSICurveStore {
+    
+    // Dead records are compacted away once the file is this large and
+    // mostly dead
+    private static final long MIN_COMPACTION_SIZE = 1024L * 1024L;
+    // ID, z-order, color, width, cap and join of a written reference
+    private static final int STYLE_BYTES = 4 + 8 + 4 + 4 + 1 + 1;
+    
+    private static final class Record {
+        private long mOffset;
+        private final int mLength;
+        private final int mPtNum;
+        private int mRefNum = 0;
+        
+        private Record(long offset, int length, int ptNum) {
+            this.mOffset = offset;
+            this.mLength = length;
+            this.mPtNum = ptNum;
+        }
+    }
+    
+    // Cleared once the curve holding a record's geometry is collected,
+    // and then queued for removal from mLivePtCurves
+    private static final class LiveRef extends WeakReference<JSIPtCurve> {
+        private final Record mRecord;
+        
+        private LiveRef(JSIPtCurve ptCurve, Record record,
+                ReferenceQueue<JSIPtCurve> queue) {
+            super(ptCurve, queue);
+            this.mRecord = record;
+        }
+    }
+    
+    // Geometry already in the file, by geometry hash. Records with the
+    // same hash but different points share a list.
+    private HashMap<Long, ArrayList<Record>> mRecords = null;
+    // Live records and their bytes in the file
+    private int mRecordNum = 0;
+    private long mLiveDiskUsage = 0L;
+    // A curve holding each record's geometry, while one is alive
+    private HashMap<Record, LiveRef> mLivePtCurves = null;
+    private ReferenceQueue<JSIPtCurve> mClearedRefs = null;
+    // Created on the first write, and replaced by compaction
+    private File mFilePath = null;
+    private RandomAccessFile mFile = null;
+    
+    public JSICurveStore() {
+        this.mRecords = new HashMap<Long, ArrayList<Record>>();
+        this.mLivePtCurves = new HashMap<Record, LiveRef>();
+        this.mClearedRefs = new ReferenceQueue<JSIPtCurve>();
+    }
+    
+    // Number of distinct geometries with unreleased references
+    public int size() {
+        return this.mRecordNum;
+    }
+    
+    // Size of the file, including records not yet compacted away
+    public long getDiskUsage() {
+        if (this.mFile == null) {
+            return 0L;
+        }
+        try {
+            return this.mFile.length();
+        } catch (IOException ex) {
+            return 0L;
+        }
+    }
+    
+    // Writes a reference to a committed curve
+    public void writePtCurve(JSIPtCurve ptCurve, DataOutput out)
+            throws IOException {
+        this.pruneLivePtCurves();
+        long hash = ptCurve.getGeometryHash();
+        ArrayList<Record> records = this.mRecords.get(hash);
+        if (records == null) {
+            records = new ArrayList<Record>(1);
+            this.mRecords.put(hash, records);
+        }
+        int index = this.findLiveRecord(records, ptCurve);
+        byte[] bytes = null;
+        if (index < 0) {
+            bytes = JSICurveStore.toGeometryBytes(ptCurve);
+            index = this.findStoredRecord(records, ptCurve, bytes);
+        }
+        if (index < 0) {
+            RandomAccessFile file = this.getFile();
+            long offset = file.length();
+            file.seek(offset);
+            file.write(bytes);
+            Record record = 
+                    new Record(offset, bytes.length, ptCurve.getPtNum());
+            index = JSICurveStore.findDeadRecord(records);
+            if (index < 0) {
+                index = records.size();
+                records.add(record);
+            } else {
+                records.set(index, record);
+            }
+            this.mRecordNum++;
+            this.mLiveDiskUsage += record.mLength;
+        }
+        records.get(index).mRefNum++;
+        this.registerLivePtCurve(records.get(index), ptCurve);
+        
+        BasicStroke bs = (BasicStroke) ptCurve.getStroke();
+        out.writeInt(ptCurve.getId());
+        out.writeLong(ptCurve.getZOrder());
+        out.writeInt(ptCurve.getColor().getRGB());
+        out.writeFloat(bs.getLineWidth());
+        out.writeByte(bs.getEndCap());
+        out.writeByte(bs.getLineJoin());
+        out.writeLong(hash);
+        out.writeInt(index);
+    }
+    
+    // Reads a curve written by writePtCurve
+    public JSIPtCurve readPtCurve(DataInput in) throws IOException {
+        int id = in.readInt();
+        long zOrder = in.readLong();
+        Color c = new Color(in.readInt(), true);
+        float width = in.readFloat();
+        int cap = in.readByte();
+        int join = in.readByte();
+        long hash = in.readLong();
+        int index = in.readInt();
+        Stroke s = new BasicStroke(width, cap, join);
+        
+        this.pruneLivePtCurves();
+        Record record = this.getRecord(hash, index);
+        JSIPtCurve livePtCurve = this.getLivePtCurve(record);
+        if (livePtCurve != null) {
+            return livePtCurve.derive(c, s, id, zOrder);
+        }
+        
+        JSIPtCurve ptCurve = JSIPtCurve.readGeometryFrom(
+                new DataInputStream(new ByteArrayInputStream(
+                        this.readRecordBytes(record))),
+                c,
+                s,
+                id,
+                zOrder);
+        if (ptCurve.getPtNum() != record.mPtNum) {
+            throw new IOException("Corrupt curve geometry " + hash);
+        }
+        this.registerLivePtCurve(record, ptCurve);
+        return ptCurve;
+    }
+    
+    // Releases a reference written by writePtCurve. The record dies with
+    // its last reference.
+    public void releasePtCurve(DataInput in) throws IOException {
+        if (in.skipBytes(JSICurveStore.STYLE_BYTES) != 
+                JSICurveStore.STYLE_BYTES) {
+            throw new EOFException();
+        }
+        long hash = in.readLong();
+        int index = in.readInt();
+        
+        this.pruneLivePtCurves();
+        Record record = this.getRecord(hash, index);
+        record.mRefNum--;
+        if (record.mRefNum > 0) {
+            return;
+        }
+        this.mLivePtCurves.remove(record);
+        this.mRecordNum--;
+        this.mLiveDiskUsage -= record.mLength;
+        if (JSICurveStore.isDead(this.mRecords.get(hash))) {
+            this.mRecords.remove(hash);
+        }
+        this.compact();
+    }
+    
+    private Record getRecord(long hash, int index) throws IOException {
+        ArrayList<Record> records = this.mRecords.get(hash);
+        if (records == null || index < 0 || index >= records.size() || 
+                records.get(index).mRefNum == 0) {
+            throw new IOException(
+                    "Unknown curve geometry " + hash + "/" + index);
+        }
+        return records.get(index);
+    }
+    
+    // Index of the record whose live curve has exactly the points of
+    // ptCurve, or -1
+    private int findLiveRecord(
+            ArrayList<Record> records, JSIPtCurve ptCurve) {
+        for (int i = 0; i < records.size(); i++) {
+            JSIPtCurve livePtCurve = this.getLivePtCurve(records.get(i));
+            if (livePtCurve != null && 
+                    livePtCurve.hasSameGeometry(ptCurve)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    // Index of the record without a live curve whose bytes on disk are
+    // the geometry of ptCurve, or -1
+    private int findStoredRecord(ArrayList<Record> records,
+            JSIPtCurve ptCurve, byte[] bytes) throws IOException {
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            if (record.mRefNum > 0 && 
+                    record.mPtNum == ptCurve.getPtNum() &&
+                    record.mLength == bytes.length &&
+                    this.getLivePtCurve(record) == null &&
+                    Arrays.equals(this.readRecordBytes(record), bytes)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    // Index of a dead record whose slot can be reused, or -1
+    private static int findDeadRecord(ArrayList<Record> records) {
+        for (int i = 0; i < records.size(); i++) {
+            if (records.get(i).mRefNum == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static boolean isDead(ArrayList<Record> records) {
+        for (Record record : records) {
+            if (record.mRefNum > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static byte[] toGeometryBytes(JSIPtCurve ptCurve)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream geometryOut = new DataOutputStream(bytes);
+        ptCurve.writeGeometryTo(geometryOut);
+        geometryOut.flush();
+        return bytes.toByteArray();
+    }
+    
+    private byte[] readRecordBytes(Record record) throws IOException {
+        byte[] bytes = new byte[record.mLength];
+        this.mFile.seek(record.mOffset);
+        this.mFile.readFully(bytes);
+        return bytes;
+    }
+    
+    private JSIPtCurve getLivePtCurve(Record record) {
+        LiveRef ref = this.mLivePtCurves.get(record);
+        return ref == null ? null : ref.get();
+    }
+    
+    private void registerLivePtCurve(Record record, JSIPtCurve ptCurve) {
+        if (this.getLivePtCurve(record) == null) {
+            this.mLivePtCurves.put(
+                    record, new LiveRef(ptCurve, record, this.mClearedRefs));
+        }
+    }
+    
+    // Drops the entries whose curves were collected. An entry replaced
+    // after its curve died is kept.
+    private void pruneLivePtCurves() {
+        Reference<? extends JSIPtCurve> ref;
+        while ((ref = this.mClearedRefs.poll()) != null) {
+            LiveRef liveRef = (LiveRef) ref;
+            this.mLivePtCurves.remove(liveRef.mRecord, liveRef);
+        }
+    }
+    
+    private RandomAccessFile getFile() throws IOException {
+        if (this.mFile == null) {
+            this.mFilePath = File.createTempFile("jsi-curves", ".bin");
+            this.mFilePath.deleteOnExit();
+            this.mFile = new RandomAccessFile(this.mFilePath, "rw");
+        }
+        return this.mFile;
+    }
+    
+    // Copies the live records to a new file once dead records take up
+    // most of the old one. The old file stays in use until the copy is
+    // complete, so a failed copy loses nothing.
+    private void compact() {
+        try {
+            if (this.mLiveDiskUsage == 0L) {
+                this.mFile.setLength(0L);
+            } else if (this.mFile.length() >= 
+                    JSICurveStore.MIN_COMPACTION_SIZE && 
+                    this.mFile.length() >= 2L * this.mLiveDiskUsage) {
+                this.copyLiveRecords();
+            }
+        } catch (IOException ex) {
+            System.err.println("Could not compact curve store: " + ex);
+        }
+    }
+    
+    private void copyLiveRecords() throws IOException {
+        ArrayList<Record> live = new ArrayList<Record>(this.mRecordNum);
+        for (ArrayList<Record> records : this.mRecords.values()) {
+            for (Record record : records) {
+                if (record.mRefNum > 0) {
+                    live.add(record);
+                }
+            }
+        }
+        live.sort(Comparator.comparingLong(r -> r.mOffset));
+        File path = File.createTempFile("jsi-curves", ".bin");
+        path.deleteOnExit();
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        long[] offsets = new long[live.size()];
+        try {
+            long offset = 0L;
+            for (int i = 0; i < live.size(); i++) {
+                file.write(this.readRecordBytes(live.get(i)));
+                offsets[i] = offset;
+                offset += live.get(i).mLength;
+            }
+        } catch (IOException ex) {
+            file.close();
+            path.delete();
+            throw ex;
+        }
+        
+        for (int i = 0; i < live.size(); i++) {
+            live.get(i).mOffset = offsets[i];
+        }
+        this.mFile.close();
+        this.mFilePath.delete();
+        this.mFile = file;
+        this.mFilePath = path;
+    }
+}
@@ -0,0 +1,54 @@
+// Immutable snapshot of the sketch: the committed curves, sorted by
+// z-order, and the IDs of the selected ones. Selecting a curve leaves it
+// in place in the curve list. Edits produce a new document that shares
+// every unchanged curve, so the history and renderers can hold on to a
+// document without locking or copying.
+public class JSIDocument {
+    
+    public static final JSIDocument EMPTY =
+            new JSIDocument(JSIPtCurveList.EMPTY, JSISelection.EMPTY);
+    
+    private final JSIPtCurveList mPtCurves;
+    private final JSISelection mSelection;
+    
+    private JSIDocument(JSIPtCurveList ptCurves, JSISelection selection) {
+        this.mPtCurves = ptCurves;
+        this.mSelection = selection;
+    }
+    
+    public JSIPtCurveList getPtCurves() {
+        return this.mPtCurves;
+    }
+    
+    public JSISelection getSelection() {
+        return this.mSelection;
+    }
+    
+    public boolean isSelected(JSIPtCurve ptCurve) {
+        return this.mSelection.contains(ptCurve.getId());
+    }
+    
+    // Documents with the same curves, selected the same way, have the
+    // same hash whatever edits produced them
+    public long getContentHash() {
+        return JSIPtCurve.mixHash(this.mPtCurves.getContentHash()) +
+                this.mSelection.getContentHash();
+    }
+    
+    // Differing hashes reject in O(1); equal ones are confirmed by
+    // comparing the curves and the selections, skipping shared parts.
+    public boolean hasSameContent(JSIDocument other) {
+        return this == other ||
+                this.getContentHash() == other.getContentHash() &&
+                this.mPtCurves.hasSameContent(other.mPtCurves) &&
+                this.mSelection.hasSameContent(other.mSelection);
+    }
+    
+    public JSIDocument withPtCurves(JSIPtCurveList ptCurves) {
+        return new JSIDocument(ptCurves, this.mSelection);
+    }
+    
+    public JSIDocument withSelection(JSISelection selection) {
+        return new JSIDocument(this.mPtCurves, selection);
+    }
+}
@@ -0,0 +1,364 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// An edit between two document snapshots, kept both as the snapshots
+// and as the net curves it added, removed, selected and deselected.
+// Undo and redo swap in the snapshot when the current document is the
+// one the edit starts from. Otherwise, e.g. once an older edit has
+// been read back from disk as new curve objects, they replay the
+// changes by z-order and ID. Either way the canvas caches are updated
+// per changed curve only. So is the index, unless the edit changes a
+// large part of the sketch and a bulk load is cheaper.
+public class JSIEditCmd implements JSICmd {
+    
+    // Rough heap costs used to estimate the size of an edit
+    private static final long SET_ENTRY_BYTES = 48L;
+    private static final long TREAP_NODE_BYTES = 48L;
+    private static final long SELECTION_PATH_BYTES = 512L;
+    // Changing more than this fraction of the indexed curves rebuilds the
+    // index by bulk load instead of updating it curve by curve
+    private static final double BULK_LOAD_FRACTION = 0.25;
+    
+    // The owner of the document that edits are undone and redone on
+    public interface Editor {
+        public JSIDocument getDocument();
+        
+        public void setDocument(JSIDocument document);
+        
+        // Index of the committed curves, kept in sync with the document
+        public JSIRTree getPtCurveIndex();
+        
+        // Called for every curve an undo or redo adds or removes
+        public void invalidatePtCurve(JSIPtCurve ptCurve);
+        
+        // Called for every curve whose selection an undo or redo changes
+        public void invalidatePtCurveSelection(JSIPtCurve ptCurve);
+    }
+    
+    private final Editor mEditor;
+    private final JSICurveStore mCurveStore;
+    // null for an edit read back from disk
+    private JSIDocument mOldDocument = null;
+    private JSIDocument mNewDocument = null;
+    // Net changes to the committed curves, mirrored in the index
+    private Set<JSIPtCurve> mAddedPtCurves = null;
+    private Set<JSIPtCurve> mRemovedPtCurves = null;
+    // Net changes to the selection, by ID, as restyling a selected curve
+    // replaces its object
+    private Map<Integer, JSIPtCurve> mSelectedPtCurves = null;
+    private Map<Integer, JSIPtCurve> mDeselectedPtCurves = null;
+    
+    // Starts recording an edit of oldDocument, the editor's current
+    // document. Spilled curves are written to curveStore.
+    public JSIEditCmd(Editor editor, JSICurveStore curveStore, 
+            JSIDocument oldDocument) {
+        this.mEditor = editor;
+        this.mCurveStore = curveStore;
+        this.mOldDocument = oldDocument;
+        this.mAddedPtCurves = JSIEditCmd.createIdentitySet();
+        this.mRemovedPtCurves = JSIEditCmd.createIdentitySet();
+        this.mSelectedPtCurves = new HashMap<Integer, JSIPtCurve>();
+        this.mDeselectedPtCurves = new HashMap<Integer, JSIPtCurve>();
+    }
+    
+    // Ends the recording with the document the edit produced
+    public void setNewDocument(JSIDocument newDocument) {
+        this.mNewDocument = newDocument;
+    }
+    
+    // Restyling a curve to its own style still swaps in a new object, so
+    // curves are compared by content: in O(1) by the document hashes if
+    // both snapshots are known. Net selection changes always change
+    // something.
+    @Override
+    public boolean isNoOp() {
+        if (this.mOldDocument != null && this.mNewDocument != null) {
+            return this.mOldDocument.hasSameContent(this.mNewDocument);
+        }
+        return JSIEditCmd.isSameContent(
+                this.mAddedPtCurves, this.mRemovedPtCurves) && 
+                this.mSelectedPtCurves.isEmpty() && 
+                this.mDeselectedPtCurves.isEmpty();
+    }
+    
+    @Override
+    public boolean mergeWith(JSICmd next) {
+        if (!(next instanceof JSIEditCmd)) {
+            return false;
+        }
+        JSIEditCmd cmd = (JSIEditCmd) next;
+        for (JSIPtCurve ptCurve : cmd.mRemovedPtCurves) {
+            this.noteRemoved(ptCurve);
+        }
+        for (JSIPtCurve ptCurve : cmd.mAddedPtCurves) {
+            this.noteAdded(ptCurve);
+        }
+        for (JSIPtCurve ptCurve : cmd.mDeselectedPtCurves.values()) {
+            this.noteDeselected(ptCurve);
+        }
+        for (JSIPtCurve ptCurve : cmd.mSelectedPtCurves.values()) {
+            this.noteSelected(ptCurve);
+        }
+        // An edit read back from disk has no snapshots to swap in
+        if (this.mOldDocument != null) {
+            this.mNewDocument = cmd.mNewDocument;
+        }
+        return true;
+    }
+    
+    public void noteAdded(JSIPtCurve ptCurve) {
+        if (!this.mRemovedPtCurves.remove(ptCurve)) {
+            this.mAddedPtCurves.add(ptCurve);
+        }
+    }
+    
+    public void noteRemoved(JSIPtCurve ptCurve) {
+        if (!this.mAddedPtCurves.remove(ptCurve)) {
+            this.mRemovedPtCurves.add(ptCurve);
+        }
+    }
+    
+    public void noteSelected(JSIPtCurve ptCurve) {
+        if (this.mDeselectedPtCurves.remove(ptCurve.getId()) == null) {
+            this.mSelectedPtCurves.put(ptCurve.getId(), ptCurve);
+        }
+    }
+    
+    public void noteDeselected(JSIPtCurve ptCurve) {
+        if (this.mSelectedPtCurves.remove(ptCurve.getId()) == null) {
+            this.mDeselectedPtCurves.put(ptCurve.getId(), ptCurve);
+        }
+    }
+    
+    @Override
+    public void undo() {
+        this.apply(
+                this.mNewDocument, 
+                this.mOldDocument, 
+                this.mAddedPtCurves, 
+                this.mRemovedPtCurves, 
+                this.mSelectedPtCurves.values(), 
+                this.mDeselectedPtCurves.values());
+    }
+    
+    @Override
+    public void redo() {
+        this.apply(
+                this.mOldDocument, 
+                this.mNewDocument, 
+                this.mRemovedPtCurves, 
+                this.mAddedPtCurves, 
+                this.mDeselectedPtCurves.values(), 
+                this.mSelectedPtCurves.values());
+    }
+    
+    // Removals go first, as a restyled curve is removed and added under
+    // the same z-order. A selection change redraws the curve as it is
+    // once the curves are replayed.
+    private void apply(JSIDocument from, JSIDocument to, 
+            Set<JSIPtCurve> removed, Set<JSIPtCurve> added, 
+            Collection<JSIPtCurve> deselected, 
+            Collection<JSIPtCurve> selected) {
+        JSIDocument document = this.mEditor.getDocument();
+        JSIRTree ptCurveIndex = this.mEditor.getPtCurveIndex();
+        boolean isSwap = from != null && to != null && from == document;
+        JSIPtCurveList ptCurves = document.getPtCurves();
+        JSISelection selection = document.getSelection();
+        boolean isBulkLoad = removed.size() + added.size() > 
+                ptCurveIndex.size() * JSIEditCmd.BULK_LOAD_FRACTION;
+        for (JSIPtCurve ptCurve : removed) {
+            JSIPtCurve curPtCurve = ptCurves.get(ptCurve.getZOrder());
+            if (curPtCurve == null) {
+                // Only if the history is out of step with the document;
+                // there is nothing left to remove
+                System.err.println("Edit to replay removes a missing "
+                        + "curve at z-order " + ptCurve.getZOrder());
+                continue;
+            }
+            if (!isSwap) {
+                ptCurves = ptCurves.remove(curPtCurve);
+            }
+            if (!isBulkLoad) {
+                ptCurveIndex.remove(curPtCurve);
+            }
+            this.mEditor.invalidatePtCurve(curPtCurve);
+        }
+        for (JSIPtCurve ptCurve : added) {
+            if (!isSwap) {
+                ptCurves = ptCurves.insert(ptCurve);
+            }
+            if (!isBulkLoad) {
+                ptCurveIndex.insert(ptCurve);
+            }
+            this.mEditor.invalidatePtCurve(ptCurve);
+        }
+        if (isSwap) {
+            ptCurves = to.getPtCurves();
+        }
+        if (isBulkLoad) {
+            ArrayList<JSIPtCurve> indexed = 
+                    new ArrayList<JSIPtCurve>(ptCurves.size());
+            for (JSIPtCurve ptCurve : ptCurves) {
+                indexed.add(ptCurve);
+            }
+            ptCurveIndex.bulkLoad(indexed);
+        }
+        for (JSIPtCurve ptCurve : deselected) {
+            if (!isSwap) {
+                selection = selection.remove(ptCurve.getId());
+            }
+            this.invalidateCurPtCurve(ptCurves, ptCurve);
+        }
+        for (JSIPtCurve ptCurve : selected) {
+            if (!isSwap) {
+                selection = selection.add(ptCurve.getId());
+            }
+            this.invalidateCurPtCurve(ptCurves, ptCurve);
+        }
+        
+        if (isSwap) {
+            this.mEditor.setDocument(to);
+        } else {
+            this.mEditor.setDocument(
+                    document.withPtCurves(ptCurves).withSelection(selection));
+        }
+    }
+    
+    private void invalidateCurPtCurve(
+            JSIPtCurveList ptCurves, JSIPtCurve ptCurve) {
+        JSIPtCurve curPtCurve = ptCurves.get(ptCurve.getZOrder());
+        this.mEditor.invalidatePtCurveSelection(
+                curPtCurve != null ? curPtCurve : ptCurve);
+    }
+    
+    // Counts the added and removed curves as if only this edit kept them
+    // alive, plus the treap nodes path-copied for each change. Selection
+    // changes only copy a path of the selection bitset.
+    @Override
+    public long calcByteSize() {
+        long bytes = 0L;
+        int depth = 2 * (64 - Long.numberOfLeadingZeros(
+                this.mEditor.getDocument().getPtCurves().size() + 1L));
+        for (Set<JSIPtCurve> ptCurves : Arrays.asList(
+                this.mAddedPtCurves, this.mRemovedPtCurves)) {
+            for (JSIPtCurve ptCurve : ptCurves) {
+                bytes += ptCurve.calcByteSize();
+            }
+            bytes += ptCurves.size() * (JSIEditCmd.SET_ENTRY_BYTES + 
+                    depth * JSIEditCmd.TREAP_NODE_BYTES);
+        }
+        int selectionChangeNum = this.mSelectedPtCurves.size() + 
+                this.mDeselectedPtCurves.size();
+        bytes += selectionChangeNum * 
+                (JSIEditCmd.SET_ENTRY_BYTES + JSIEditCmd.SELECTION_PATH_BYTES);
+        return bytes;
+    }
+    
+    @Override
+    public void writeTo(DataOutput out) throws IOException {
+        for (Collection<JSIPtCurve> ptCurves : Arrays.asList(
+                this.mAddedPtCurves, 
+                this.mRemovedPtCurves, 
+                this.mSelectedPtCurves.values(), 
+                this.mDeselectedPtCurves.values())) {
+            out.writeInt(ptCurves.size());
+            for (JSIPtCurve ptCurve : ptCurves) {
+                this.mCurveStore.writePtCurve(ptCurve, out);
+            }
+        }
+    }
+    
+    // Reads an edit spilled by the history, in the order writeTo writes
+    // it. It has no snapshots, so it always replays its changes.
+    public static JSIEditCmd readFrom(DataInput in, Editor editor, 
+            JSICurveStore curveStore) throws IOException {
+        JSIEditCmd cmd = new JSIEditCmd(editor, curveStore, null);
+        for (JSIPtCurve ptCurve : JSIEditCmd.readPtCurves(in, curveStore)) {
+            cmd.noteAdded(ptCurve);
+        }
+        for (JSIPtCurve ptCurve : JSIEditCmd.readPtCurves(in, curveStore)) {
+            cmd.noteRemoved(ptCurve);
+        }
+        for (JSIPtCurve ptCurve : JSIEditCmd.readPtCurves(in, curveStore)) {
+            cmd.noteSelected(ptCurve);
+        }
+        for (JSIPtCurve ptCurve : JSIEditCmd.readPtCurves(in, curveStore)) {
+            cmd.noteDeselected(ptCurve);
+        }
+        return cmd;
+    }
+    
+    // Releases the curve store references of an edit spilled by the
+    // history once the history discards it
+    public static void releaseFrom(DataInput in, JSICurveStore curveStore)
+            throws IOException {
+        for (int group = 0; group < 4; group++) {
+            int num = in.readInt();
+            for (int i = 0; i < num; i++) {
+                curveStore.releasePtCurve(in);
+            }
+        }
+    }
+    
+    // The history reader for edits of editor
+    public static JSIHistory.Reader createReader(
+            Editor editor, JSICurveStore curveStore) {
+        return new JSIHistory.Reader() {
+            @Override
+            public JSICmd read(DataInput in) throws IOException {
+                return JSIEditCmd.readFrom(in, editor, curveStore);
+            }
+            
+            @Override
+            public void release(DataInput in) throws IOException {
+                JSIEditCmd.releaseFrom(in, curveStore);
+            }
+        };
+    }
+    
+    private static ArrayList<JSIPtCurve> readPtCurves(
+            DataInput in, JSICurveStore curveStore) throws IOException {
+        int num = in.readInt();
+        ArrayList<JSIPtCurve> ptCurves = new ArrayList<JSIPtCurve>(num);
+        for (int i = 0; i < num; i++) {
+            ptCurves.add(curveStore.readPtCurve(in));
+        }
+        return ptCurves;
+    }
+    
+    // Whether the added curves are the removed ones with the same content
+    private static boolean isSameContent(
+            Set<JSIPtCurve> added, Set<JSIPtCurve> removed) {
+        if (added.size() != removed.size()) {
+            return false;
+        }
+        HashMap<Long, JSIPtCurve> removedByZOrder = 
+                new HashMap<Long, JSIPtCurve>();
+        for (JSIPtCurve ptCurve : removed) {
+            removedByZOrder.put(ptCurve.getZOrder(), ptCurve);
+        }
+        for (JSIPtCurve ptCurve : added) {
+            JSIPtCurve removedPtCurve = 
+                    removedByZOrder.get(ptCurve.getZOrder());
+            if (removedPtCurve == null || 
+                    !ptCurve.hasSameContent(removedPtCurve)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static Set<JSIPtCurve> createIdentitySet() {
+        return Collections.newSetFromMap(
+                new IdentityHashMap<JSIPtCurve, Boolean>());
+    }
+}
@@ -0,0 +1,105 @@
+import java.awt.EventQueue;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives an active render loop at a target frame rate. A daemon thread
+// waits for frame requests and runs the frame task on the EDT, where
+// the document and the view live, at most once per frame interval.
+// While nothing is requested the thread stays parked, so an idle
+// sketch costs no CPU. A frame task that throws would throw again on
+// every frame, so the loop stops and hands the exception to the
+// thread's uncaught exception handler.
+public class JSIFrameScheduler {
+    
+    private final Runnable mFrameTask;
+    private final long mFrameIntervalNanos;
+    private final AtomicBoolean mIsFrameRequested;
+    // The loop thread; a stopped or replaced thread sees another value
+    // here and exits
+    private volatile Thread mThread = null;
+    
+    public JSIFrameScheduler(Runnable frameTask, int targetFps) {
+        this.mFrameTask = frameTask;
+        this.mFrameIntervalNanos = 1000000000L / Math.max(1, targetFps);
+        this.mIsFrameRequested = new AtomicBoolean(false);
+    }
+    
+    public boolean isRunning() {
+        return this.mThread != null;
+    }
+    
+    public void start() {
+        if (this.mThread != null) {
+            return;
+        }
+        Thread thread = new Thread(() -> this.run(), "JSI Frame Scheduler");
+        thread.setDaemon(true);
+        this.mThread = thread;
+        thread.start();
+    }
+    
+    // Does not wait for the thread, which may be waiting on the EDT
+    public void stop() {
+        Thread thread = this.mThread;
+        this.mThread = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+    
+    // Safe from any thread. Requests made before a frame starts are
+    // served by that one frame.
+    public void requestFrame() {
+        if (!this.mIsFrameRequested.getAndSet(true)) {
+            Thread thread = this.mThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+    
+    private void run() {
+        long nextFrameTime = System.nanoTime();
+        while (this.mThread == Thread.currentThread()) {
+            if (!this.mIsFrameRequested.get()) {
+                // Idle: sleep until requestFrame or stop wakes us
+                LockSupport.park(this);
+                continue;
+            }
+            
+            // Pace frames; an early unpark just sleeps again
+            long now = System.nanoTime();
+            while (now < nextFrameTime) {
+                LockSupport.parkNanos(this, nextFrameTime - now);
+                now = System.nanoTime();
+            }
+            if (this.mThread != Thread.currentThread()) {
+                return;
+            }
+            this.mIsFrameRequested.set(false);
+            try {
+                EventQueue.invokeAndWait(this.mFrameTask);
+            } catch (InterruptedException ex) {
+                return;
+            } catch (InvocationTargetException ex) {
+                Thread thread = Thread.currentThread();
+                if (this.mThread == thread) {
+                    this.mThread = null;
+                }
+                thread.getUncaughtExceptionHandler().uncaughtException(
+                        thread, ex.getCause());
+                return;
+            }
+            
+            // Keep to the schedule despite sleep overshoot, but after a
+            // slow frame or an idle spell count from the start of this
+            // frame, so no burst of catch-up frames follows
+            if (now - nextFrameTime < this.mFrameIntervalNanos) {
+                nextFrameTime += this.mFrameIntervalNanos;
+            } else {
+                nextFrameTime = now + this.mFrameIntervalNanos;
+            }
+        }
+    }
+}
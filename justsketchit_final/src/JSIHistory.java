@@ -0,0 +1,422 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Comparator;
+
+// Undo history governed by a memory budget. Commands before mCurIndex
+// have been applied and can be undone; the rest can be redone. Only a
+// window of commands around mCurIndex stays on the heap. Commands farther
+// away are written to a temp file and read back when undo or redo gets to
+// them. Beyond the depth limit the oldest commands are forgotten. If the
+// file fails, the commands that cannot be read back are forgotten too, so
+// that undo and redo never step over a missing command.
+// Commands pushed in a quick burst with the same merge key, such as
+// repeated stroke width key presses, become one entry. When a written
+// record is discarded, the Reader releases what it refers to, such as
+// the curve store records of the curves in it.
+public class JSIHistory {
+    
+    public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024L * 1024L;
+    // Dead records are compacted away once the file is this large and
+    // mostly dead
+    private static final long MIN_COMPACTION_SIZE = 1024L * 1024L;
+    // Longest pause between two pushes that still merges them
+    private static final long MERGE_WINDOW_MILLIS = 500L;
+    
+    // Reads a command written by JSICmd.writeTo, and releases what such
+    // a record refers to outside the spill file once it is discarded
+    public interface Reader {
+        public JSICmd read(DataInput in) throws IOException;
+        
+        public void release(DataInput in) throws IOException;
+    }
+    
+    private static final class Entry {
+        // null while the command is only on disk
+        private JSICmd mCmd = null;
+        private long mByteSize = 0L;
+        // Offset of the record in the spill file, or -1 if not written yet.
+        // Commands never change, so a written record stays valid.
+        private long mDiskOffset = -1L;
+        private int mDiskLength = 0;
+    }
+    
+    private ArrayList<Entry> mEntries = null;
+    private int mCurIndex = 0;
+    // Entries in [mHeapBegin, mHeapEnd) are on the heap
+    private int mHeapBegin = 0;
+    private int mHeapEnd = 0;
+    private int mMaxDepth = 0;
+    private long mMemoryBudget = 0L;
+    private long mMemoryUsage = 0L;
+    private Reader mReader = null;
+    // Number of the oldest commands forgotten to stay within the limits
+    private int mForgottenNum = 0;
+    // Merge key and time of the last push, if nothing was undone since
+    private String mLastMergeKey = null;
+    private long mLastPushTime = 0L;
+    
+    // Created on the first spill
+    private RandomAccessFile mSpillFile = null;
+    private long mLiveDiskUsage = 0L;
+    
+    public JSIHistory(int maxDepth, long memoryBudget, Reader reader) {
+        this.mEntries = new ArrayList<Entry>();
+        this.mMaxDepth = maxDepth;
+        this.mMemoryBudget = memoryBudget;
+        this.mReader = reader;
+    }
+    
+    public int getMaxDepth() {
+        return this.mMaxDepth;
+    }
+    
+    public int getUndoNum() {
+        return this.mCurIndex;
+    }
+    
+    public int getRedoNum() {
+        return this.mEntries.size() - this.mCurIndex;
+    }
+    
+    public int getForgottenNum() {
+        return this.mForgottenNum;
+    }
+    
+    public long getMemoryBudget() {
+        return this.mMemoryBudget;
+    }
+    
+    // Approximate heap bytes of the commands kept on the heap
+    public long getMemoryUsage() {
+        return this.mMemoryUsage;
+    }
+    
+    // Size of the spill file, including records not yet compacted away
+    public long getDiskUsage() {
+        if (this.mSpillFile == null) {
+            return 0L;
+        }
+        try {
+            return this.mSpillFile.length();
+        } catch (IOException ex) {
+            return 0L;
+        }
+    }
+    
+    public void push(JSICmd cmd) {
+        this.push(cmd, null);
+    }
+    
+    // Records a command the caller has just applied. Any redoable
+    // commands are discarded, as they no longer follow from this state.
+    // No-op commands are ignored. A non-null merge key lets the command
+    // merge into the last one if that was pushed with the same key
+    // within the merge window.
+    public void push(JSICmd cmd, String mergeKey) {
+        if (cmd.isNoOp()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        boolean canMerge = mergeKey != null && 
+                mergeKey.equals(this.mLastMergeKey) && 
+                now - this.mLastPushTime <= JSIHistory.MERGE_WINDOW_MILLIS;
+        this.mLastMergeKey = mergeKey;
+        this.mLastPushTime = now;
+        if (canMerge && this.mergeIntoLast(cmd)) {
+            return;
+        }
+        
+        while (this.mEntries.size() > this.mCurIndex) {
+            this.drop(this.mEntries.size() - 1);
+        }
+        this.mHeapEnd = this.mCurIndex;
+        
+        Entry entry = new Entry();
+        entry.mCmd = cmd;
+        entry.mByteSize = cmd.calcByteSize();
+        this.mEntries.add(entry);
+        this.mMemoryUsage += entry.mByteSize;
+        this.mCurIndex++;
+        this.mHeapEnd++;
+        
+        while (this.mEntries.size() > this.mMaxDepth) {
+            this.drop(0);
+            this.mForgottenNum++;
+        }
+        this.fitToBudget();
+        this.compactSpillFile();
+    }
+    
+    public boolean undo() {
+        this.mLastMergeKey = null;
+        if (this.mCurIndex == 0) {
+            return false;
+        }
+        if (this.mCurIndex - 1 < this.mHeapBegin) {
+            if (!this.pageIn(this.mCurIndex - 1)) {
+                this.forgetBefore(this.mCurIndex);
+                return false;
+            }
+            this.mHeapBegin--;
+        }
+        this.mEntries.get(this.mCurIndex - 1).mCmd.undo();
+        this.mCurIndex--;
+        this.fitToBudget();
+        return true;
+    }
+    
+    public boolean redo() {
+        this.mLastMergeKey = null;
+        if (this.mCurIndex == this.mEntries.size()) {
+            return false;
+        }
+        if (this.mCurIndex >= this.mHeapEnd) {
+            if (!this.pageIn(this.mCurIndex)) {
+                this.forgetFrom(this.mCurIndex);
+                return false;
+            }
+            this.mHeapEnd++;
+        }
+        this.mEntries.get(this.mCurIndex).mCmd.redo();
+        this.mCurIndex++;
+        this.fitToBudget();
+        return true;
+    }
+    
+    public void clear() {
+        for (Entry entry : this.mEntries) {
+            this.releaseRecord(entry);
+        }
+        this.mEntries.clear();
+        this.mForgottenNum = 0;
+        this.mCurIndex = 0;
+        this.mHeapBegin = 0;
+        this.mHeapEnd = 0;
+        this.mMemoryUsage = 0L;
+        this.mLiveDiskUsage = 0L;
+        this.compactSpillFile();
+    }
+    
+    // Merges into the last command, which must still be on the heap.
+    // The last command is dropped if the two cancel out.
+    private boolean mergeIntoLast(JSICmd cmd) {
+        if (this.mCurIndex == 0 || 
+                this.mCurIndex != this.mEntries.size()) {
+            return false;
+        }
+        Entry entry = this.mEntries.get(this.mCurIndex - 1);
+        if (entry.mCmd == null || !entry.mCmd.mergeWith(cmd)) {
+            return false;
+        }
+        
+        if (entry.mCmd.isNoOp()) {
+            // Nothing left to merge further commands into
+            this.drop(this.mCurIndex - 1);
+            this.mLastMergeKey = null;
+        } else {
+            // The written record no longer matches the command
+            this.releaseRecord(entry);
+            this.mMemoryUsage -= entry.mByteSize;
+            entry.mByteSize = entry.mCmd.calcByteSize();
+            this.mMemoryUsage += entry.mByteSize;
+            this.fitToBudget();
+        }
+        return true;
+    }
+    
+    // Removes the entry at either end of the list
+    private void drop(int i) {
+        Entry entry = this.mEntries.remove(i);
+        if (entry.mCmd != null) {
+            this.mMemoryUsage -= entry.mByteSize;
+        }
+        this.releaseRecord(entry);
+        if (i < this.mCurIndex) {
+            this.mCurIndex--;
+        }
+        if (i < this.mHeapBegin) {
+            this.mHeapBegin--;
+        }
+        if (i < this.mHeapEnd) {
+            this.mHeapEnd--;
+        }
+        this.mHeapBegin = Math.min(this.mHeapBegin, this.mHeapEnd);
+    }
+    
+    // Spills the heap entries farthest from the current position until
+    // the heap usage fits the budget
+    private void fitToBudget() {
+        while (this.mMemoryUsage > this.mMemoryBudget &&
+                this.mHeapBegin < this.mHeapEnd) {
+            if (this.mHeapEnd - this.mCurIndex >
+                    this.mCurIndex - this.mHeapBegin) {
+                if (!this.spill(this.mHeapEnd - 1)) {
+                    return;
+                }
+                this.mHeapEnd--;
+            } else {
+                if (!this.spill(this.mHeapBegin)) {
+                    return;
+                }
+                this.mHeapBegin++;
+            }
+        }
+    }
+    
+    private boolean spill(int i) {
+        Entry entry = this.mEntries.get(i);
+        if (entry.mDiskOffset < 0L) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                entry.mCmd.writeTo(out);
+                out.flush();
+                
+                RandomAccessFile file = this.getSpillFile();
+                long offset = file.length();
+                file.seek(offset);
+                file.write(bytes.toByteArray());
+                entry.mDiskOffset = offset;
+                entry.mDiskLength = bytes.size();
+                this.mLiveDiskUsage += entry.mDiskLength;
+            } catch (IOException ex) {
+                // Keep the command on the heap
+                System.err.println("Could not spill history: " + ex);
+                return false;
+            }
+        }
+        entry.mCmd = null;
+        this.mMemoryUsage -= entry.mByteSize;
+        return true;
+    }
+    
+    private boolean pageIn(int i) {
+        Entry entry = this.mEntries.get(i);
+        try {
+            entry.mCmd = this.mReader.read(this.readRecord(entry));
+        } catch (IOException ex) {
+            System.err.println("Could not read history: " + ex);
+            return false;
+        }
+        entry.mByteSize = entry.mCmd.calcByteSize();
+        this.mMemoryUsage += entry.mByteSize;
+        return true;
+    }
+    
+    // Turns the entry's record, if any, into dead space in the spill file,
+    // after the reader has released what it refers to
+    private void releaseRecord(Entry entry) {
+        if (entry.mDiskOffset < 0L) {
+            return;
+        }
+        try {
+            this.mReader.release(this.readRecord(entry));
+        } catch (IOException ex) {
+            System.err.println("Could not release history record: " + ex);
+        }
+        this.mLiveDiskUsage -= entry.mDiskLength;
+        entry.mDiskOffset = -1L;
+    }
+    
+    private DataInput readRecord(Entry entry) throws IOException {
+        byte[] bytes = new byte[entry.mDiskLength];
+        this.mSpillFile.seek(entry.mDiskOffset);
+        this.mSpillFile.readFully(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+    
+    private RandomAccessFile getSpillFile() throws IOException {
+        if (this.mSpillFile == null) {
+            File file = File.createTempFile("jsi-history", ".bin");
+            file.deleteOnExit();
+            this.mSpillFile = new RandomAccessFile(file, "rw");
+        }
+        return this.mSpillFile;
+    }
+    
+    // Moves live records to the front of the spill file once dead records
+    // from dropped entries take up most of it
+    private void compactSpillFile() {
+        if (this.mSpillFile == null) {
+            return;
+        }
+        try {
+            long size = this.mSpillFile.length();
+            if (this.mLiveDiskUsage == 0L) {
+                this.mSpillFile.setLength(0L);
+                return;
+            }
+            if (size < JSIHistory.MIN_COMPACTION_SIZE ||
+                    size < 2L * this.mLiveDiskUsage) {
+                return;
+            }
+            
+            ArrayList<Entry> written = new ArrayList<Entry>();
+            for (Entry entry : this.mEntries) {
+                if (entry.mDiskOffset >= 0L) {
+                    written.add(entry);
+                }
+            }
+            // Records only move towards the front, so in offset order
+            // none is overwritten before it is moved
+            written.sort(Comparator.comparingLong(e -> e.mDiskOffset));
+            long offset = 0L;
+            for (Entry entry : written) {
+                if (entry.mDiskOffset != offset) {
+                    byte[] bytes = new byte[entry.mDiskLength];
+                    this.mSpillFile.seek(entry.mDiskOffset);
+                    this.mSpillFile.readFully(bytes);
+                    this.mSpillFile.seek(offset);
+                    this.mSpillFile.write(bytes);
+                    entry.mDiskOffset = offset;
+                }
+                offset += entry.mDiskLength;
+            }
+            this.mSpillFile.setLength(offset);
+        } catch (IOException ex) {
+            System.err.println("Could not compact history: " + ex);
+            this.discardSpillFile();
+        }
+    }
+    
+    // Drops the entries before index end, which undo can no longer reach
+    private void forgetBefore(int end) {
+        for (int i = 0; i < end; i++) {
+            this.drop(0);
+            this.mForgottenNum++;
+        }
+    }
+    
+    // Drops the entries from index begin on, which redo can no longer
+    // reach
+    private void forgetFrom(int begin) {
+        while (this.mEntries.size() > begin) {
+            this.drop(this.mEntries.size() - 1);
+        }
+    }
+    
+    // Called when records may have been left half moved. Commands only
+    // on disk are forgotten, and those on the heap are written again
+    // when spilled. The records cannot be trusted to say what they
+    // refer to, so nothing is released for them.
+    private void discardSpillFile() {
+        for (Entry entry : this.mEntries) {
+            entry.mDiskOffset = -1L;
+        }
+        this.mLiveDiskUsage = 0L;
+        this.forgetFrom(this.mHeapEnd);
+        this.forgetBefore(this.mHeapBegin);
+        try {
+            this.mSpillFile.setLength(0L);
+        } catch (IOException ex) {
+            System.err.println("Could not reset history file: " + ex);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+// Bounded queue of pointer samples (x, y, MouseEvent.getWhen()) that
+// coalesces drag events between frames. Both sides run on the EDT, so it
+// is not thread-safe. Samples sit in parallel primitive arrays, so
+// queuing allocates nothing.
+public class JSIInputRing {
+    
+    public static final int DEFAULT_CAPACITY = 1024;
+    
+    // Receives drained samples, oldest first
+    public interface Sink {
+        public void accept(int x, int y, long when);
+    }
+    
+    private final int[] mXs;
+    private final int[] mYs;
+    private final long[] mWhens;
+    private final int mMask;
+    // Sequence numbers of the next sample to read and to write
+    private long mHead = 0L;
+    private long mTail = 0L;
+    
+    public JSIInputRing() {
+        this(JSIInputRing.DEFAULT_CAPACITY);
+    }
+    
+    // The capacity is rounded up to a power of two
+    public JSIInputRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mXs = new int[size];
+        this.mYs = new int[size];
+        this.mWhens = new long[size];
+        this.mMask = size - 1;
+    }
+    
+    public boolean isEmpty() {
+        return this.mHead == this.mTail;
+    }
+    
+    // Producer side. False if the ring is full, in which case the caller
+    // must drain it and retry rather than drop the sample.
+    public boolean offer(int x, int y, long when) {
+        if (this.mTail - this.mHead > this.mMask) {
+            return false;
+        }
+        int i = (int) this.mTail & this.mMask;
+        this.mXs[i] = x;
+        this.mYs[i] = y;
+        this.mWhens[i] = when;
+        this.mTail++;
+        return true;
+    }
+    
+    // Consumer side. Passes every queued sample to the sink in order and
+    // returns how many there were.
+    public int drainTo(Sink sink) {
+        int num = (int) (this.mTail - this.mHead);
+        for (; this.mHead < this.mTail; this.mHead++) {
+            int i = (int) this.mHead & this.mMask;
+            sink.accept(this.mXs[i], this.mYs[i], this.mWhens[i]);
+        }
+        return num;
+    }
+    
+    // Consumer side. Passes only the newest queued sample to the sink,
+    // discarding the older ones, and returns how many were queued.
+    public int drainLatestTo(Sink sink) {
+        int num = (int) (this.mTail - this.mHead);
+        if (num == 0) {
+            return 0;
+        }
+        int i = (int) (this.mTail - 1L) & this.mMask;
+        this.mHead = this.mTail;
+        sink.accept(this.mXs[i], this.mYs[i], this.mWhens[i]);
+        return num;
+    }
+}
@@ -0,0 +1,127 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+// Offscreen buffer holding, for each screen pixel, the ID of the topmost
+// committed curve whose stroke covers it, so a click on a clean pixel
+// finds its curve with one array read. Pixels hold ID + 1 in 24 bits,
+// drawn without antialiasing; 0 means no curve.
+// Changes only mark screen regions dirty, and a dirty region is redrawn
+// when a pixel in it is next read. After a view or size change the whole
+// buffer is stale, so the next read costs a full render of the pick IDs.
+public class JSIPickBuffer {
+    
+    public static final int NO_ID = -1;
+    // For pixels whose curve ID does not fit in 24 bits
+    public static final int UNKNOWN_ID = -2;
+    private static final int OVERFLOW_VALUE = 0xFFFFFF;
+    
+    // Draws the curves within dirtyRect, each in calcColor(its ID). g2 is
+    // in screen coordinates and clipped to dirtyRect.
+    public interface Renderer {
+        public void render(Graphics2D g2, Rectangle dirtyRect);
+    }
+    
+    private BufferedImage mImage = null;
+    private int[] mPixels = null;
+    // World-to-screen transform the buffer is drawn with
+    private AffineTransform mXform = null;
+    // Screen region whose pixels are stale, or null
+    private Rectangle mDirtyRect = null;
+    // Whether mDirtyRect is the whole buffer
+    private boolean mIsAllDirty = false;
+    
+    public JSIPickBuffer() {
+        this.mXform = new AffineTransform();
+    }
+    
+    public static Color calcColor(int id) {
+        return new Color(Math.min(id + 1, JSIPickBuffer.OVERFLOW_VALUE));
+    }
+    
+    // Reallocates the buffer for a new screen size, and marks it all
+    // dirty if the size or the transform changed
+    public void resize(int width, int height, AffineTransform xform) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (this.mImage == null ||
+                this.mImage.getWidth() != width ||
+                this.mImage.getHeight() != height) {
+            this.mImage = new BufferedImage(
+                    width, height, BufferedImage.TYPE_INT_RGB);
+            this.mPixels = ((DataBufferInt) this.mImage.getRaster()
+                    .getDataBuffer()).getData();
+            this.invalidateAll();
+        }
+        if (!xform.equals(this.mXform)) {
+            this.mXform.setTransform(xform);
+            this.invalidateAll();
+        }
+    }
+    
+    public void invalidate(Rectangle screenRect) {
+        if (this.mDirtyRect == null) {
+            this.mDirtyRect = new Rectangle(screenRect);
+        } else {
+            this.mDirtyRect.add(screenRect);
+        }
+    }
+    
+    public void invalidateAll() {
+        if (this.mImage != null) {
+            this.mDirtyRect = new Rectangle(
+                    0, 0, this.mImage.getWidth(), this.mImage.getHeight());
+            this.mIsAllDirty = true;
+        }
+    }
+    
+    // ID of the topmost curve at the screen pixel, NO_ID if there is
+    // none, or UNKNOWN_ID if the buffer cannot tell. Redraws the dirty
+    // region first if the pixel lies in it.
+    public int getId(int x, int y, Renderer renderer) {
+        if (this.mImage == null || x < 0 || y < 0 ||
+                x >= this.mImage.getWidth() ||
+                y >= this.mImage.getHeight()) {
+            return JSIPickBuffer.NO_ID;
+        }
+        if (this.mDirtyRect != null && this.mDirtyRect.contains(x, y)) {
+            this.redrawDirtyRect(renderer);
+        }
+        
+        int value = this.mPixels[y * this.mImage.getWidth() + x] &
+                JSIPickBuffer.OVERFLOW_VALUE;
+        if (value == 0) {
+            return JSIPickBuffer.NO_ID;
+        }
+        if (value == JSIPickBuffer.OVERFLOW_VALUE) {
+            return JSIPickBuffer.UNKNOWN_ID;
+        }
+        return value - 1;
+    }
+    
+    private void redrawDirtyRect(Renderer renderer) {
+        Rectangle dirtyRect = this.mDirtyRect.intersection(new Rectangle(
+                0, 0, this.mImage.getWidth(), this.mImage.getHeight()));
+        this.mDirtyRect = null;
+        this.mIsAllDirty = false;
+        if (dirtyRect.isEmpty()) {
+            return;
+        }
+        
+        Graphics2D g2 = this.mImage.createGraphics();
+        g2.setClip(dirtyRect);
+        g2.setColor(Color.BLACK);
+        g2.fill(dirtyRect);
+        // IDs must not blend with their neighbors
+        g2.setRenderingHint(
+                RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_OFF);
+        renderer.render(g2, dirtyRect);
+        g2.dispose();
+    }
+}
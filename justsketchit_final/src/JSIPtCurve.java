@@ -1,33 +1,357 @@
 import java.awt.BasicStroke;
 import java.awt.Color;
+import java.awt.Shape;
 import java.awt.Stroke;
+import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
+// A curve is built in two steps. While it is drawn, addPt appends
+// samples; when the stroke is finished, simplify, buildLods, setId and
+// setZOrder prepare it for the document. JSI calls these mutators, so
+// they are public, but nothing may call them once a document holds the
+// curve. From then on it is never modified: restyled versions are new
+// curves that share its geometry and its ID, so documents can share
+// curves freely.
 public class JSIPtCurve {
     
     public static final double MIN_DIST_BTWN_PTS = 5.0;
     private static final float MIN_STROKE_WIDTH = 1f;
+    private static final int INITIAL_PT_CAPACITY = 16;
+    private static final int MAX_LOD_NUM = 8;
+    // Finest level-of-detail tolerance as a fraction of the curve extent
+    private static final double FINEST_LOD_FRACTION = 1.0 / 512.0;
+    // Rough heap cost of the object, its bounding box, color and stroke
+    private static final long OBJECT_BYTES = 160L;
     
-    private ArrayList<Point2D.Double> mPts = null;
+    // Packed coordinates: x0, y0, x1, y1, ...
+    // Only the first 2 * mPtNum entries are valid.
+    private double[] mCoords = null;
+    private int mPtNum = 0;
     private Rectangle2D.Double mBoundingBox = null;
     private Color mColor = null;
     private Stroke mStroke = null;
+    // Simplified versions of the curve, finest first. mLodCoords[k]
+    // deviates from the full curve by at most mLodTolerances[k] in world
+    // units. Built once the curve is finished and shared by copies.
+    private double[][] mLodCoords = null;
+    private double[] mLodTolerances = null;
+    // Segment boxes for hit tests, built with the LODs and shared the
+    // same way
+    private JSISegmentTree mSegmentTree = null;
+    // Stable identity of a committed curve, kept by its restyled
+    // versions; selections refer to curves by it
+    private int mId = 0;
+    // Drawing order among committed curves; larger is drawn later
+    private long mZOrder = 0L;
+    // Stable hashes of the points, and of the points and style, computed
+    // on first use. 0 means not computed yet.
+    private long mGeometryHash = 0L;
+    private long mContentHash = 0L;
+    // Largest reach of a mitered join in half widths, over the points
+    // and the LODs, and the miter limit it holds for. NaN until computed.
+    private double mMiterRatio = Double.NaN;
+    private float mMiterRatioLimit = 0f;
     
+    public int getPtNum() {
+        return this.mPtNum;
+    }
+    
+    public double getX(int i) {
+        return this.mCoords[2 * i];
+    }
+    
+    public double getY(int i) {
+        return this.mCoords[2 * i + 1];
+    }
+    
+    public Point2D.Double getPt(int i) {
+        return new Point2D.Double(
+                this.mCoords[2 * i], 
+                this.mCoords[2 * i + 1]);
+    }
+    
+    // Backing array for allocation-free bulk iteration.
+    // Read-only for callers; valid up to index 2 * getPtNum().
+    public double[] getCoords() {
+        return this.mCoords;
+    }
+    
+    // Compatibility path only: builds a new list of boxed points on
+    // every call. Changes to the returned list do not affect the curve.
+    @Deprecated
     public ArrayList<Point2D.Double> getPts() {
-        return this.mPts;
+        ArrayList<Point2D.Double> pts =
+                new ArrayList<Point2D.Double>(this.mPtNum);
+        for (int i = 0; i < this.mPtNum; i++) {
+            pts.add(this.getPt(i));
+        }
+        return pts;
+    }
+    
+    // Index of the coarsest level of detail whose error is within
+    // maxError world units, or -1 for the full curve.
+    public int findLod(double maxError) {
+        int lod = -1;
+        if (this.mLodTolerances != null) {
+            for (int k = 0; k < this.mLodTolerances.length; k++) {
+                if (this.mLodTolerances[k] <= maxError) {
+                    lod = k;
+                }
+            }
+        }
+        return lod;
+    }
+    
+    public int getLodPtNum(int lod) {
+        if (lod < 0) {
+            return this.mPtNum;
+        }
+        return this.mLodCoords[lod].length / 2;
+    }
+    
+    public double[] getLodCoords(int lod) {
+        if (lod < 0) {
+            return this.mCoords;
+        }
+        return this.mLodCoords[lod];
+    }
+    
+    // Simplifies the finished curve at tolerances doubling from a small
+    // fraction of its extent, keeping only levels that drop many points.
+    // Only for a curve that is not committed yet.
+    public void buildLods() {
+        double extent = Math.max(
+                this.mBoundingBox.width, this.mBoundingBox.height);
+        ArrayList<double[]> lodCoords = new ArrayList<double[]>();
+        ArrayList<Double> lodTolerances = new ArrayList<Double>();
+        
+        int prevPtNum = this.mPtNum;
+        double tolerance = extent * JSIPtCurve.FINEST_LOD_FRACTION;
+        for (int k = 0; k < JSIPtCurve.MAX_LOD_NUM && 
+                prevPtNum > 2 && tolerance > 0.0; k++) {
+            double[] coords = JSICurveSimplifier.simplify(
+                    this.mCoords, this.mPtNum, tolerance);
+            int ptNum = coords.length / 2;
+            if (ptNum * 4 <= prevPtNum * 3) {
+                lodCoords.add(coords);
+                lodTolerances.add(tolerance);
+                prevPtNum = ptNum;
+            }
+            tolerance *= 2.0;
+        }
+        
+        this.mLodCoords = lodCoords.toArray(new double[0][]);
+        this.mMiterRatio = Double.NaN;
+        this.mLodTolerances = new double[lodTolerances.size()];
+        for (int k = 0; k < this.mLodTolerances.length; k++) {
+            this.mLodTolerances[k] = lodTolerances.get(k);
+        }
+        this.mSegmentTree = new JSISegmentTree(this.mCoords, this.mPtNum);
+    }
+    
+    // Whether any point of the curve lies inside the region. Logarithmic
+    // once the curve is finished, linear while it is being drawn.
+    public boolean hasPtIn(Shape region) {
+        if (this.mSegmentTree != null) {
+            return this.mSegmentTree.hasPtIn(region);
+        }
+        for (int i = 0; i < this.mPtNum; i++) {
+            if (region.contains(this.getX(i), this.getY(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Whether the polyline, ignoring the stroke width, passes through
+    // the rectangle
+    public boolean intersects(Rectangle2D r) {
+        if (this.mPtNum == 1) {
+            return r.contains(this.mCoords[0], this.mCoords[1]);
+        }
+        if (this.mSegmentTree != null) {
+            return this.mSegmentTree.intersects(r);
+        }
+        for (int i = 0; i + 1 < this.mPtNum; i++) {
+            if (r.intersectsLine(this.getX(i), this.getY(i), 
+                    this.getX(i + 1), this.getY(i + 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Distance from (x, y) to the polyline, or infinity if it is farther
+    // than maxDist
+    public double calcDistance(double x, double y, double maxDist) {
+        if (this.mPtNum == 1) {
+            double dist = Point2D.distance(
+                    x, y, this.mCoords[0], this.mCoords[1]);
+            return dist <= maxDist ? dist : Double.POSITIVE_INFINITY;
+        }
+        int i = this.findNearestSegment(x, y, maxDist);
+        if (i < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Line2D.ptSegDist(this.getX(i), this.getY(i), 
+                this.getX(i + 1), this.getY(i + 1), x, y);
+    }
+    
+    // Index of the segment nearest to (x, y), or -1 if none is within
+    // maxDist. Segment i joins points i and i + 1.
+    public int findNearestSegment(double x, double y, double maxDist) {
+        if (this.mSegmentTree != null) {
+            return this.mSegmentTree.findNearestSegment(x, y, maxDist);
+        }
+        int nearest = -1;
+        double nearestDistSq = maxDist * maxDist;
+        for (int i = 0; i + 1 < this.mPtNum; i++) {
+            double distSq = Line2D.ptSegDistSq(this.getX(i), this.getY(i), 
+                    this.getX(i + 1), this.getY(i + 1), x, y);
+            if (distSq <= nearestDistSq) {
+                nearestDistSq = distSq;
+                nearest = i;
+            }
+        }
+        return nearest;
     }
     
     public Rectangle2D.Double getBoundingBox() {
         return this.mBoundingBox;
     }
     
+    public int getId() {
+        return this.mId;
+    }
+    
+    // Only for a curve that is not committed yet
+    public void setId(int id) {
+        this.mId = id;
+    }
+    
+    public long getZOrder() {
+        return this.mZOrder;
+    }
+    
+    // Only for a curve that is not committed yet
+    public void setZOrder(long zOrder) {
+        this.mZOrder = zOrder;
+    }
+    
+    // How far the stroked outline can reach beyond the points: half the
+    // width, stretched by square caps and by the sharpest join that is
+    // actually mitered.
+    public double getStrokePadding() {
+        BasicStroke bs = (BasicStroke) this.mStroke;
+        double factor = 1.0;
+        if (bs.getEndCap() == BasicStroke.CAP_SQUARE) {
+            factor = Math.sqrt(2.0);
+        }
+        if (bs.getLineJoin() == BasicStroke.JOIN_MITER) {
+            factor = Math.max(
+                    factor, this.getMiterRatio(bs.getMiterLimit()));
+        }
+        return bs.getLineWidth() / 2.0 * factor;
+    }
+    
+    // Computed once per committed curve; LODs can have sharper joins
+    // than the full curve
+    private double getMiterRatio(float miterLimit) {
+        if (Double.isNaN(this.mMiterRatio) || 
+                this.mMiterRatioLimit != miterLimit) {
+            double ratio = JSIPtCurve.calcMiterRatio(
+                    this.mCoords, 0, this.mPtNum, miterLimit);
+            if (this.mLodCoords != null) {
+                for (double[] lodCoords : this.mLodCoords) {
+                    ratio = Math.max(ratio, JSIPtCurve.calcMiterRatio(
+                            lodCoords, 0, lodCoords.length / 2, miterLimit));
+                }
+            }
+            this.mMiterRatio = ratio;
+            this.mMiterRatioLimit = miterLimit;
+        }
+        return this.mMiterRatio;
+    }
+    
+    // Largest reach of the joins between points start and end - 1, in
+    // half widths. A join reaches 1 / sin(a / 2) for an angle a between
+    // its segments and is beveled to 1 beyond the miter limit. The
+    // stroker gives a zero-length segment a fixed device-space direction,
+    // so its joins may reach up to the limit.
+    private static double calcMiterRatio(
+            double[] coords, int start, int end, float miterLimit) {
+        double ratio = 1.0;
+        double ux = 0.0;
+        double uy = 0.0;
+        boolean hasDir = false;
+        for (int i = start + 1; i < end; i++) {
+            double dx = coords[2 * i] - coords[2 * i - 2];
+            double dy = coords[2 * i + 1] - coords[2 * i - 1];
+            double length = Math.sqrt(dx * dx + dy * dy);
+            if (length == 0.0) {
+                return Math.max(ratio, miterLimit);
+            }
+            dx /= length;
+            dy /= length;
+            if (hasDir) {
+                // 1 / sin(a / 2) = sqrt(2 / (1 - cos a)), cos a = -u.d
+                double joinRatio = 
+                        Math.sqrt(2.0 / (1.0 + ux * dx + uy * dy));
+                if (joinRatio <= miterLimit) {
+                    ratio = Math.max(ratio, joinRatio);
+                }
+            }
+            ux = dx;
+            uy = dy;
+            hasDir = true;
+        }
+        return ratio;
+    }
+    
+    // Takes the join at the second to last point into account, while the
+    // curve is being drawn
+    private void updateMiterRatio() {
+        if (!Double.isNaN(this.mMiterRatio) && this.mPtNum >= 3) {
+            this.mMiterRatio = Math.max(this.mMiterRatio, 
+                    JSIPtCurve.calcMiterRatio(
+                            this.mCoords, 
+                            this.mPtNum - 3, 
+                            this.mPtNum, 
+                            this.mMiterRatioLimit));
+        }
+    }
+    
+    public Rectangle2D.Double calcStrokedBoundingBox() {
+        double pad = this.getStrokePadding();
+        return new Rectangle2D.Double(
+                this.mBoundingBox.x - pad, 
+                this.mBoundingBox.y - pad, 
+                this.mBoundingBox.width + 2.0 * pad, 
+                this.mBoundingBox.height + 2.0 * pad);
+    }
+    
+    // Whether the stroked curve can touch the given world rectangle,
+    // judged by its bounding box grown by half the stroke width.
+    public boolean mayIntersect(Rectangle2D r) {
+        double pad = this.getStrokePadding();
+        Rectangle2D.Double box = this.mBoundingBox;
+        return box.x - pad <= r.getMaxX() && 
+                box.x + box.width + pad >= r.getMinX() && 
+                box.y - pad <= r.getMaxY() && 
+                box.y + box.height + pad >= r.getMinY();
+    }
+    
     public Color getColor() {
         return this.mColor;
     }
     
-    public void setColor(Color c) {
+    private void setColor(Color c) {
         this.mColor = new Color(
                 c.getRed(), 
                 c.getGreen(), 
@@ -39,7 +363,7 @@ public class JSIPtCurve {
         return this.mStroke;
     }
     
-    public void setStroke(Stroke s) {
+    private void setStroke(Stroke s) {
         BasicStroke bs = (BasicStroke) s;
         this.mStroke = new BasicStroke(
                 bs.getLineWidth(), 
@@ -47,7 +371,23 @@ public class JSIPtCurve {
                 bs.getLineJoin());
     }
     
-    public void adjustStrokeWidth(float delta) {
+    // New committed curve sharing the geometry of this one
+    public JSIPtCurve derive(Color c, Stroke s, int id, long zOrder) {
+        JSIPtCurve ptCurve = new JSIPtCurve(this, id, zOrder);
+        ptCurve.setColor(c);
+        ptCurve.setStroke(s);
+        return ptCurve;
+    }
+    
+    public JSIPtCurve withColor(Color c) {
+        return this.derive(c, this.mStroke, this.mId, this.mZOrder);
+    }
+    
+    public JSIPtCurve withStroke(Stroke s) {
+        return this.derive(this.mColor, s, this.mId, this.mZOrder);
+    }
+    
+    public JSIPtCurve withAdjustedStrokeWidth(float delta) {
         BasicStroke bs = (BasicStroke) this.mStroke;
         float newWidth = bs.getLineWidth() + delta;
         
@@ -55,23 +395,180 @@ public class JSIPtCurve {
             newWidth = MIN_STROKE_WIDTH;
         }
         
-        this.mStroke = new BasicStroke(
+        return this.withStroke(new BasicStroke(
                 newWidth, 
                 bs.getEndCap(), 
-                bs.getLineJoin());
+                bs.getLineJoin()));
     }
     
     public JSIPtCurve(Point2D.Double pt, Color c, Stroke s) {
-        this.mPts = new ArrayList<Point2D.Double>();
-        this.mPts.add(pt);
+        this.mCoords = new double[2 * JSIPtCurve.INITIAL_PT_CAPACITY];
+        this.mCoords[0] = pt.x;
+        this.mCoords[1] = pt.y;
+        this.mPtNum = 1;
         this.mBoundingBox = new Rectangle2D.Double(pt.x, pt.y, 0.0, 0.0);
         
         this.setColor(c);
         this.setStroke(s);
     }
     
+    // Rebuilds a committed curve from its coordinates
+    private JSIPtCurve(
+            double[] coords, Color c, Stroke s, int id, long zOrder) {
+        this.mCoords = coords;
+        this.mPtNum = coords.length / 2;
+        this.mBoundingBox = new Rectangle2D.Double();
+        JSICoordKernel.calcBounds(
+                this.mCoords, 0, this.mPtNum, this.mBoundingBox);
+        this.mId = id;
+        this.mZOrder = zOrder;
+        
+        this.setColor(c);
+        this.setStroke(s);
+        this.buildLods();
+    }
+    
+    // Shares the geometry and style of a committed curve
+    private JSIPtCurve(JSIPtCurve original, int id, long zOrder) {
+        this.mPtNum = original.mPtNum;
+        this.mCoords = original.mCoords;
+        this.mBoundingBox = original.mBoundingBox;
+        this.mLodCoords = original.mLodCoords;
+        this.mLodTolerances = original.mLodTolerances;
+        this.mSegmentTree = original.mSegmentTree;
+        this.mColor = original.mColor;
+        this.mStroke = original.mStroke;
+        this.mId = id;
+        this.mZOrder = zOrder;
+        this.mGeometryHash = original.mGeometryHash;
+        this.mMiterRatio = original.mMiterRatio;
+        this.mMiterRatioLimit = original.mMiterRatioLimit;
+    }
+    
+    // Drops samples that lie within the tolerance (in world units) of the
+    // remaining polyline. Must be done before the curve is indexed.
+    public void simplify(double tolerance) {
+        this.mCoords = JSICurveSimplifier.simplify(
+                this.mCoords, this.mPtNum, tolerance);
+        this.mPtNum = this.mCoords.length / 2;
+        this.mLodCoords = null;
+        this.mLodTolerances = null;
+        this.mSegmentTree = null;
+        this.mGeometryHash = 0L;
+        this.mContentHash = 0L;
+        this.mMiterRatio = Double.NaN;
+        
+        this.mBoundingBox = new Rectangle2D.Double();
+        JSICoordKernel.calcBounds(
+                this.mCoords, 0, this.mPtNum, this.mBoundingBox);
+    }
+    
+    // Hash of the points alone, stable across runs
+    public long getGeometryHash() {
+        if (this.mGeometryHash == 0L) {
+            long h = JSIPtCurve.mixHash(this.mPtNum);
+            for (int i = 0; i < 2 * this.mPtNum; i++) {
+                h = JSIPtCurve.mixHash(
+                        h ^ Double.doubleToLongBits(this.mCoords[i]));
+            }
+            this.mGeometryHash = h == 0L ? 1L : h;
+        }
+        return this.mGeometryHash;
+    }
+    
+    // Hash of the points and the style, but not of the z-order
+    public long getContentHash() {
+        if (this.mContentHash == 0L) {
+            BasicStroke bs = (BasicStroke) this.mStroke;
+            long h = JSIPtCurve.mixHash(
+                    this.getGeometryHash() ^ this.mColor.getRGB());
+            h = JSIPtCurve.mixHash(
+                    h ^ Float.floatToIntBits(bs.getLineWidth()));
+            h = JSIPtCurve.mixHash(
+                    h ^ (bs.getEndCap() << 8 | bs.getLineJoin()));
+            this.mContentHash = h == 0L ? 1L : h;
+        }
+        return this.mContentHash;
+    }
+    
+    // SplitMix64 finalizer
+    public static long mixHash(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    // Whether both curves draw the same: same ID, z-order, style and
+    // points.
+    // Differing hashes reject in O(1); shared geometry accepts in O(1).
+    public boolean hasSameContent(JSIPtCurve other) {
+        return this.mId == other.mId && 
+                this.mZOrder == other.mZOrder && 
+                this.getContentHash() == other.getContentHash() && 
+                this.mColor.equals(other.mColor) && 
+                this.mStroke.equals(other.mStroke) && 
+                this.hasSameGeometry(other);
+    }
+    
+    // Whether both curves have the same points
+    public boolean hasSameGeometry(JSIPtCurve other) {
+        int length = 2 * this.mPtNum;
+        return this.mPtNum == other.mPtNum && 
+                (this.mCoords == other.mCoords || Arrays.equals(
+                        this.mCoords, 0, length, other.mCoords, 0, length));
+    }
+    
+    // Approximate heap bytes of the curve, including its LOD pyramid and
+    // segment tree
+    public long calcByteSize() {
+        long bytes = JSIPtCurve.OBJECT_BYTES + 8L * this.mCoords.length;
+        if (this.mLodCoords != null) {
+            for (double[] lodCoords : this.mLodCoords) {
+                bytes += 8L * lodCoords.length + 8L;
+            }
+        }
+        if (this.mSegmentTree != null) {
+            bytes += this.mSegmentTree.calcByteSize();
+        }
+        return bytes;
+    }
+    
+    public void writeGeometryTo(DataOutput out) throws IOException {
+        out.writeInt(this.mPtNum);
+        for (int i = 0; i < 2 * this.mPtNum; i++) {
+            out.writeDouble(this.mCoords[i]);
+        }
+    }
+    
+    // Rebuilds a committed curve from geometry written by
+    // writeGeometryTo, including its LOD pyramid
+    public static JSIPtCurve readGeometryFrom(DataInput in, 
+            Color c, Stroke s, int id, long zOrder) throws IOException {
+        double[] coords = new double[2 * in.readInt()];
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = in.readDouble();
+        }
+        return new JSIPtCurve(coords, c, s, id, zOrder);
+    }
+    
     public void addPt(Point2D.Double pt) {
-        this.mPts.add(pt);
-        this.mBoundingBox.add(pt);
+        this.addPt(pt.x, pt.y);
+    }
+    
+    public void addPt(double x, double y) {
+        if (2 * this.mPtNum + 2 > this.mCoords.length) {
+            int newLength = Math.max(4, this.mCoords.length * 2);
+            this.mCoords = Arrays.copyOf(this.mCoords, newLength);
+        }
+        this.mCoords[2 * this.mPtNum] = x;
+        this.mCoords[2 * this.mPtNum + 1] = y;
+        this.mPtNum++;
+        this.mBoundingBox.add(x, y);
+        this.mLodCoords = null;
+        this.mLodTolerances = null;
+        this.mSegmentTree = null;
+        this.mGeometryHash = 0L;
+        this.mContentHash = 0L;
+        this.updateMiterRatio();
     }
 }
@@ -0,0 +1,258 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Immutable list of committed curves sorted by z-order. insert and remove
+// return a new list that shares all but O(log n) nodes with this one, so
+// keeping an old version as a snapshot costs O(1). Nodes form a treap
+// keyed by z-order, with priorities hashed from the key.
+// Curves in a list must not change their z-order.
+public class JSIPtCurveList implements Iterable<JSIPtCurve> {
+    
+    public static final JSIPtCurveList EMPTY = new JSIPtCurveList(null);
+    
+    private static final class Node {
+        private final JSIPtCurve mPtCurve;
+        private final long mKey;
+        private final long mPriority;
+        // Order-independent hash of the curves in the subtree
+        private final long mHash;
+        private final Node mLeft;
+        private final Node mRight;
+        private final int mSize;
+        
+        private Node(JSIPtCurve ptCurve, Node left, Node right) {
+            this.mPtCurve = ptCurve;
+            this.mKey = ptCurve.getZOrder();
+            this.mPriority = JSIPtCurveList.calcPriority(this.mKey);
+            this.mLeft = left;
+            this.mRight = right;
+            this.mSize = 1 + 
+                    JSIPtCurveList.sizeOf(left) + 
+                    JSIPtCurveList.sizeOf(right);
+            this.mHash = JSIPtCurve.mixHash(
+                    ptCurve.getContentHash() ^ this.mPriority) + 
+                    JSIPtCurveList.hashOf(left) + 
+                    JSIPtCurveList.hashOf(right);
+        }
+    }
+    
+    private final Node mRoot;
+    
+    private JSIPtCurveList(Node root) {
+        this.mRoot = root;
+    }
+    
+    public int size() {
+        return JSIPtCurveList.sizeOf(this.mRoot);
+    }
+    
+    // Hash of the z-orders and contents of all curves, kept up to date by
+    // insert and remove. Lists with the same curves have the same hash.
+    public long getContentHash() {
+        return JSIPtCurveList.hashOf(this.mRoot);
+    }
+    
+    public boolean isEmpty() {
+        return this.mRoot == null;
+    }
+    
+    // Whether both lists hold curves with the same content at the same
+    // z-orders. Differing hashes reject in O(1); otherwise the treaps
+    // are compared node by node, skipping shared subtrees.
+    public boolean hasSameContent(JSIPtCurveList other) {
+        if (this.mRoot == other.mRoot) {
+            return true;
+        }
+        if (this.size() != other.size() || 
+                this.getContentHash() != other.getContentHash()) {
+            return false;
+        }
+        if (JSIPtCurveList.hasSameNodes(this.mRoot, other.mRoot)) {
+            return true;
+        }
+        // Shapes differ only where priorities tie, so compare in order
+        Iterator<JSIPtCurve> it = other.iterator();
+        for (JSIPtCurve ptCurve : this) {
+            JSIPtCurve otherPtCurve = it.next();
+            if (ptCurve != otherPtCurve && 
+                    !ptCurve.hasSameContent(otherPtCurve)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public boolean contains(JSIPtCurve ptCurve) {
+        long key = ptCurve.getZOrder();
+        Node node = this.mRoot;
+        while (node != null) {
+            if (key < node.mKey) {
+                node = node.mLeft;
+            } else if (key > node.mKey) {
+                node = node.mRight;
+            } else {
+                return node.mPtCurve == ptCurve;
+            }
+        }
+        return false;
+    }
+    
+    // Curve of the given z-order, or null
+    public JSIPtCurve get(long zOrder) {
+        Node node = this.mRoot;
+        while (node != null) {
+            if (zOrder < node.mKey) {
+                node = node.mLeft;
+            } else if (zOrder > node.mKey) {
+                node = node.mRight;
+            } else {
+                return node.mPtCurve;
+            }
+        }
+        return null;
+    }
+    
+    // Returns a list with the curve added, replacing any curve of the
+    // same z-order.
+    public JSIPtCurveList insert(JSIPtCurve ptCurve) {
+        return new JSIPtCurveList(JSIPtCurveList.insert(this.mRoot, ptCurve));
+    }
+    
+    // Returns a list without the curve of the given curve's z-order
+    public JSIPtCurveList remove(JSIPtCurve ptCurve) {
+        Node root = JSIPtCurveList.remove(this.mRoot, ptCurve.getZOrder());
+        if (root == this.mRoot) {
+            return this;
+        }
+        return new JSIPtCurveList(root);
+    }
+    
+    // Iterates in ascending z-order, i.e. in drawing order
+    @Override
+    public Iterator<JSIPtCurve> iterator() {
+        return new Iterator<JSIPtCurve>() {
+            private final ArrayDeque<Node> mStack = this.pushLeft(
+                    new ArrayDeque<Node>(), JSIPtCurveList.this.mRoot);
+            
+            private ArrayDeque<Node> pushLeft(
+                    ArrayDeque<Node> stack, Node node) {
+                for (Node n = node; n != null; n = n.mLeft) {
+                    stack.push(n);
+                }
+                return stack;
+            }
+            
+            @Override
+            public boolean hasNext() {
+                return !this.mStack.isEmpty();
+            }
+            
+            @Override
+            public JSIPtCurve next() {
+                if (this.mStack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node node = this.mStack.pop();
+                this.pushLeft(this.mStack, node.mRight);
+                return node.mPtCurve;
+            }
+        };
+    }
+    
+    private static int sizeOf(Node node) {
+        return node == null ? 0 : node.mSize;
+    }
+    
+    private static long hashOf(Node node) {
+        return node == null ? 0L : node.mHash;
+    }
+    
+    // Whether both subtrees have the same shape and curve contents
+    private static boolean hasSameNodes(Node a, Node b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || 
+                a.mSize != b.mSize || 
+                a.mHash != b.mHash) {
+            return false;
+        }
+        return (a.mPtCurve == b.mPtCurve || 
+                a.mPtCurve.hasSameContent(b.mPtCurve)) && 
+                JSIPtCurveList.hasSameNodes(a.mLeft, b.mLeft) && 
+                JSIPtCurveList.hasSameNodes(a.mRight, b.mRight);
+    }
+    
+    // Increasing keys get random priorities
+    private static long calcPriority(long key) {
+        return JSIPtCurve.mixHash(key + 0x9E3779B97F4A7C15L);
+    }
+    
+    private static Node insert(Node node, JSIPtCurve ptCurve) {
+        if (node == null) {
+            return new Node(ptCurve, null, null);
+        }
+        long key = ptCurve.getZOrder();
+        if (key < node.mKey) {
+            Node left = JSIPtCurveList.insert(node.mLeft, ptCurve);
+            if (left.mPriority > node.mPriority) {
+                // Rotate right
+                return new Node(
+                        left.mPtCurve, 
+                        left.mLeft, 
+                        new Node(node.mPtCurve, left.mRight, node.mRight));
+            }
+            return new Node(node.mPtCurve, left, node.mRight);
+        } else if (key > node.mKey) {
+            Node right = JSIPtCurveList.insert(node.mRight, ptCurve);
+            if (right.mPriority > node.mPriority) {
+                // Rotate left
+                return new Node(
+                        right.mPtCurve, 
+                        new Node(node.mPtCurve, node.mLeft, right.mLeft), 
+                        right.mRight);
+            }
+            return new Node(node.mPtCurve, node.mLeft, right);
+        } else {
+            return new Node(ptCurve, node.mLeft, node.mRight);
+        }
+    }
+    
+    private static Node remove(Node node, long key) {
+        if (node == null) {
+            return null;
+        }
+        if (key < node.mKey) {
+            Node left = JSIPtCurveList.remove(node.mLeft, key);
+            if (left == node.mLeft) {
+                return node;
+            }
+            return new Node(node.mPtCurve, left, node.mRight);
+        } else if (key > node.mKey) {
+            Node right = JSIPtCurveList.remove(node.mRight, key);
+            if (right == node.mRight) {
+                return node;
+            }
+            return new Node(node.mPtCurve, node.mLeft, right);
+        } else {
+            return JSIPtCurveList.merge(node.mLeft, node.mRight);
+        }
+    }
+    
+    // Joins two treaps where every key of a is below every key of b
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.mPriority > b.mPriority) {
+            return new Node(
+                    a.mPtCurve, a.mLeft, JSIPtCurveList.merge(a.mRight, b));
+        }
+        return new Node(
+                b.mPtCurve, JSIPtCurveList.merge(a, b.mLeft), b.mRight);
+    }
+}
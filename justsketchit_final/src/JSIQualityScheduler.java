@@ -0,0 +1,73 @@
+import javax.swing.Timer;
+
+// Chooses between draft and full render quality. Input in the
+// interactive modes switches to draft at once. When input has been idle
+// for IDLE_DELAY_MS, quality returns to full and the refiner is called
+// once per REFINE_INTERVAL_MS to redraw the draft parts of the view bit
+// by bit, until it reports that none are left. Releasing a PAN or
+// ZOOM_ROTATE drag returns to full quality at once. Runs on the EDT.
+public class JSIQualityScheduler {
+    
+    public static final int IDLE_DELAY_MS = 150;
+    public static final int REFINE_INTERVAL_MS = 16;
+    
+    // Redraws part of the draft content at full quality and returns
+    // whether any is left
+    public interface Refiner {
+        public boolean refine();
+    }
+    
+    private Refiner mRefiner = null;
+    private boolean mIsDraft = false;
+    private Timer mIdleTimer = null;
+    private Timer mRefineTimer = null;
+    
+    public JSIQualityScheduler(Refiner refiner) {
+        this.mRefiner = refiner;
+        this.mIdleTimer = new Timer(
+                JSIQualityScheduler.IDLE_DELAY_MS, e -> this.endDraft());
+        this.mIdleTimer.setRepeats(false);
+        this.mRefineTimer = new Timer(
+                JSIQualityScheduler.REFINE_INTERVAL_MS, e -> this.refine());
+        this.mRefineTimer.setInitialDelay(0);
+    }
+    
+    public boolean isDraft() {
+        return this.mIsDraft;
+    }
+    
+    // Called for every input event of a drag in PAN, ZOOM_ROTATE or
+    // SELECT, and for the release of a SELECT drag
+    public void noteInteraction() {
+        this.mIsDraft = true;
+        this.mRefineTimer.stop();
+        this.mIdleTimer.restart();
+    }
+    
+    // Called when a PAN or ZOOM_ROTATE drag is released. Quality is full
+    // at once, so the view it ends on is rendered exactly.
+    public void endInteraction() {
+        this.mIdleTimer.stop();
+        this.mRefineTimer.stop();
+        this.mIsDraft = false;
+    }
+    
+    // Called when draft content is shown outside an interaction, e.g.
+    // draft tiles reused after the view jumped
+    public void startRefinement() {
+        if (!this.mIsDraft && !this.mRefineTimer.isRunning()) {
+            this.mRefineTimer.start();
+        }
+    }
+    
+    private void endDraft() {
+        this.mIsDraft = false;
+        this.mRefineTimer.start();
+    }
+    
+    private void refine() {
+        if (this.mIsDraft || !this.mRefiner.refine()) {
+            this.mRefineTimer.stop();
+        }
+    }
+}
@@ -0,0 +1,417 @@
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+
+// R-tree over the stroked bounding boxes of curves.
+// Supports STR bulk loading, incremental insert/delete and window queries.
+// A curve's geometry and stroke width must not change while it is indexed.
+public class JSIRTree {
+    
+    private static final int MAX_ENTRY_NUM = 16;
+    private static final int MIN_ENTRY_NUM = 6;
+    
+    private static class Node {
+        private boolean mIsLeaf = false;
+        private Node mParent = null;
+        // JSIPtCurve entries in leaves, Node entries otherwise
+        private ArrayList<Object> mEntries = null;
+        private double mMinX = Double.POSITIVE_INFINITY;
+        private double mMinY = Double.POSITIVE_INFINITY;
+        private double mMaxX = Double.NEGATIVE_INFINITY;
+        private double mMaxY = Double.NEGATIVE_INFINITY;
+        
+        private Node(boolean isLeaf) {
+            this.mIsLeaf = isLeaf;
+            this.mEntries = new ArrayList<Object>(MAX_ENTRY_NUM + 1);
+        }
+        
+        private void recalcBounds() {
+            this.mMinX = Double.POSITIVE_INFINITY;
+            this.mMinY = Double.POSITIVE_INFINITY;
+            this.mMaxX = Double.NEGATIVE_INFINITY;
+            this.mMaxY = Double.NEGATIVE_INFINITY;
+            for (Object entry : this.mEntries) {
+                this.mMinX = Math.min(this.mMinX, JSIRTree.minX(entry));
+                this.mMinY = Math.min(this.mMinY, JSIRTree.minY(entry));
+                this.mMaxX = Math.max(this.mMaxX, JSIRTree.maxX(entry));
+                this.mMaxY = Math.max(this.mMaxY, JSIRTree.maxY(entry));
+            }
+        }
+    }
+    
+    private Node mRoot = null;
+    private IdentityHashMap<JSIPtCurve, Node> mLeafOfCurve = null;
+    
+    public JSIRTree() {
+        this.mRoot = new Node(true);
+        this.mLeafOfCurve = new IdentityHashMap<JSIPtCurve, Node>();
+    }
+    
+    public int size() {
+        return this.mLeafOfCurve.size();
+    }
+    
+    public boolean contains(JSIPtCurve ptCurve) {
+        return this.mLeafOfCurve.containsKey(ptCurve);
+    }
+    
+    public void clear() {
+        this.mRoot = new Node(true);
+        this.mLeafOfCurve.clear();
+    }
+    
+    // ====================================================================
+    // Bulk Loading
+    // Sort-Tile-Recursive packing, bottom-up
+    // ====================================================================
+    
+    public void bulkLoad(Collection<JSIPtCurve> ptCurves) {
+        this.clear();
+        if (ptCurves.isEmpty()) {
+            return;
+        }
+        
+        ArrayList<Object> level = new ArrayList<Object>(ptCurves);
+        boolean isLeafLevel = true;
+        while (true) {
+            ArrayList<Object> nodes = this.packLevel(level, isLeafLevel);
+            if (nodes.size() == 1) {
+                this.mRoot = (Node) nodes.get(0);
+                break;
+            }
+            level = nodes;
+            isLeafLevel = false;
+        }
+    }
+    
+    private ArrayList<Object> packLevel(
+            ArrayList<Object> entries, boolean isLeafLevel) {
+        int entryNum = entries.size();
+        int nodeNum = (entryNum + MAX_ENTRY_NUM - 1) / MAX_ENTRY_NUM;
+        int sliceNum = (int) Math.ceil(Math.sqrt(nodeNum));
+        int sliceSize = sliceNum * MAX_ENTRY_NUM;
+        
+        entries.sort((a, b) -> Double.compare(
+                JSIRTree.minX(a) + JSIRTree.maxX(a),
+                JSIRTree.minX(b) + JSIRTree.maxX(b)));
+        
+        ArrayList<Object> nodes = new ArrayList<Object>(nodeNum);
+        for (int i = 0; i < entryNum; i += sliceSize) {
+            int sliceEnd = Math.min(i + sliceSize, entryNum);
+            entries.subList(i, sliceEnd).sort((a, b) -> Double.compare(
+                    JSIRTree.minY(a) + JSIRTree.maxY(a),
+                    JSIRTree.minY(b) + JSIRTree.maxY(b)));
+            
+            for (int j = i; j < sliceEnd; j += MAX_ENTRY_NUM) {
+                int nodeEnd = Math.min(j + MAX_ENTRY_NUM, sliceEnd);
+                Node node = new Node(isLeafLevel);
+                for (int k = j; k < nodeEnd; k++) {
+                    this.attach(node, entries.get(k));
+                }
+                node.recalcBounds();
+                nodes.add(node);
+            }
+        }
+        return nodes;
+    }
+    
+    // ====================================================================
+    // Incremental Updates
+    // Guttman insertion with quadratic split, deletion with condensing
+    // ====================================================================
+    
+    public void insert(JSIPtCurve ptCurve) {
+        if (this.mLeafOfCurve.containsKey(ptCurve)) {
+            return;
+        }
+        Node leaf = this.chooseLeaf(ptCurve);
+        this.attach(leaf, ptCurve);
+        this.adjustTree(leaf);
+    }
+    
+    public boolean remove(JSIPtCurve ptCurve) {
+        Node leaf = this.mLeafOfCurve.remove(ptCurve);
+        if (leaf == null) {
+            return false;
+        }
+        JSIRTree.removeEntry(leaf, ptCurve);
+        this.condenseTree(leaf);
+        return true;
+    }
+    
+    private Node chooseLeaf(JSIPtCurve ptCurve) {
+        Node node = this.mRoot;
+        while (!node.mIsLeaf) {
+            Node best = null;
+            double bestEnlargement = Double.POSITIVE_INFINITY;
+            double bestArea = Double.POSITIVE_INFINITY;
+            for (Object entry : node.mEntries) {
+                Node child = (Node) entry;
+                double area = JSIRTree.area(child);
+                double enlargement = JSIRTree.unionArea(child, ptCurve) - area;
+                if (enlargement < bestEnlargement ||
+                        (enlargement == bestEnlargement && area < bestArea)) {
+                    best = child;
+                    bestEnlargement = enlargement;
+                    bestArea = area;
+                }
+            }
+            node = best;
+        }
+        return node;
+    }
+    
+    private void adjustTree(Node node) {
+        while (node != null) {
+            Node sibling = null;
+            if (node.mEntries.size() > MAX_ENTRY_NUM) {
+                sibling = this.split(node);
+            }
+            node.recalcBounds();
+            
+            if (sibling != null) {
+                if (node == this.mRoot) {
+                    Node newRoot = new Node(false);
+                    this.attach(newRoot, node);
+                    this.attach(newRoot, sibling);
+                    newRoot.recalcBounds();
+                    this.mRoot = newRoot;
+                    return;
+                }
+                this.attach(node.mParent, sibling);
+            }
+            node = node.mParent;
+        }
+    }
+    
+    // Quadratic split: moves roughly half of the entries of the given
+    // node into a new sibling, which is returned.
+    private Node split(Node node) {
+        ArrayList<Object> entries = new ArrayList<Object>(node.mEntries);
+        node.mEntries.clear();
+        Node sibling = new Node(node.mIsLeaf);
+        
+        // Pick the pair of seeds that would waste the most area together
+        int seed0 = 0;
+        int seed1 = 1;
+        double maxWaste = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < entries.size(); i++) {
+            for (int j = i + 1; j < entries.size(); j++) {
+                Object a = entries.get(i);
+                Object b = entries.get(j);
+                double waste = JSIRTree.unionArea(a, b) -
+                        JSIRTree.area(a) - JSIRTree.area(b);
+                if (waste > maxWaste) {
+                    maxWaste = waste;
+                    seed0 = i;
+                    seed1 = j;
+                }
+            }
+        }
+        
+        Object entry1 = entries.remove(seed1);
+        Object entry0 = entries.remove(seed0);
+        this.attach(node, entry0);
+        this.attach(sibling, entry1);
+        node.recalcBounds();
+        sibling.recalcBounds();
+        
+        while (!entries.isEmpty()) {
+            int remaining = entries.size();
+            if (node.mEntries.size() + remaining <= MIN_ENTRY_NUM) {
+                this.attachAll(node, entries);
+                break;
+            }
+            if (sibling.mEntries.size() + remaining <= MIN_ENTRY_NUM) {
+                this.attachAll(sibling, entries);
+                break;
+            }
+            
+            // Assign the entry with the strongest group preference next
+            int bestIndex = 0;
+            double bestDiff = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < remaining; i++) {
+                Object entry = entries.get(i);
+                double d0 = JSIRTree.unionArea(node, entry) -
+                        JSIRTree.area(node);
+                double d1 = JSIRTree.unionArea(sibling, entry) -
+                        JSIRTree.area(sibling);
+                double diff = Math.abs(d0 - d1);
+                if (diff > bestDiff) {
+                    bestDiff = diff;
+                    bestIndex = i;
+                }
+            }
+            
+            Object entry = entries.remove(bestIndex);
+            double d0 = JSIRTree.unionArea(node, entry) - JSIRTree.area(node);
+            double d1 =
+                    JSIRTree.unionArea(sibling, entry) - JSIRTree.area(sibling);
+            Node target = null;
+            if (d0 != d1) {
+                target = d0 < d1 ? node : sibling;
+            } else if (JSIRTree.area(node) != JSIRTree.area(sibling)) {
+                target = JSIRTree.area(node) < JSIRTree.area(sibling) ?
+                        node : sibling;
+            } else {
+                target = node.mEntries.size() <= sibling.mEntries.size() ?
+                        node : sibling;
+            }
+            this.attach(target, entry);
+            target.recalcBounds();
+        }
+        
+        node.recalcBounds();
+        sibling.recalcBounds();
+        return sibling;
+    }
+    
+    private void condenseTree(Node leaf) {
+        ArrayList<JSIPtCurve> orphans = new ArrayList<JSIPtCurve>();
+        Node node = leaf;
+        while (node != this.mRoot) {
+            Node parent = node.mParent;
+            if (node.mEntries.size() < MIN_ENTRY_NUM) {
+                JSIRTree.removeEntry(parent, node);
+                this.collectCurves(node, orphans);
+            } else {
+                node.recalcBounds();
+            }
+            node = parent;
+        }
+        this.mRoot.recalcBounds();
+        
+        // Shorten the tree while the root has a single child
+        while (!this.mRoot.mIsLeaf && this.mRoot.mEntries.size() <= 1) {
+            if (this.mRoot.mEntries.isEmpty()) {
+                this.mRoot = new Node(true);
+            } else {
+                this.mRoot = (Node) this.mRoot.mEntries.get(0);
+                this.mRoot.mParent = null;
+            }
+        }
+        
+        for (JSIPtCurve orphan : orphans) {
+            this.mLeafOfCurve.remove(orphan);
+            this.insert(orphan);
+        }
+    }
+    
+    private void collectCurves(Node node, ArrayList<JSIPtCurve> out) {
+        for (Object entry : node.mEntries) {
+            if (node.mIsLeaf) {
+                out.add((JSIPtCurve) entry);
+            } else {
+                this.collectCurves((Node) entry, out);
+            }
+        }
+    }
+    
+    private void attach(Node node, Object entry) {
+        node.mEntries.add(entry);
+        if (node.mIsLeaf) {
+            this.mLeafOfCurve.put((JSIPtCurve) entry, node);
+        } else {
+            ((Node) entry).mParent = node;
+        }
+    }
+    
+    private void attachAll(Node node, ArrayList<Object> entries) {
+        for (Object entry : entries) {
+            this.attach(node, entry);
+        }
+        entries.clear();
+    }
+    
+    // Removes by identity, never by equals().
+    private static void removeEntry(Node node, Object entry) {
+        for (int i = 0; i < node.mEntries.size(); i++) {
+            if (node.mEntries.get(i) == entry) {
+                node.mEntries.remove(i);
+                return;
+            }
+        }
+    }
+    
+    // ====================================================================
+    // Queries
+    // ====================================================================
+    
+    // Appends every curve whose bounding box intersects the given
+    // rectangle (boundaries inclusive) to hits, in no particular order.
+    public void query(Rectangle2D r, ArrayList<JSIPtCurve> hits) {
+        this.query(
+                this.mRoot,
+                r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(),
+                hits);
+    }
+    
+    private void query(Node node,
+            double minX, double minY, double maxX, double maxY,
+            ArrayList<JSIPtCurve> hits) {
+        for (Object entry : node.mEntries) {
+            if (JSIRTree.minX(entry) > maxX || JSIRTree.maxX(entry) < minX ||
+                    JSIRTree.minY(entry) > maxY || JSIRTree.maxY(entry) < minY) {
+                continue;
+            }
+            if (node.mIsLeaf) {
+                hits.add((JSIPtCurve) entry);
+            } else {
+                this.query((Node) entry, minX, minY, maxX, maxY, hits);
+            }
+        }
+    }
+    
+    // ====================================================================
+    // Box Helpers
+    // Entries are either Nodes or JSIPtCurves keyed by their stroked bounds
+    // ====================================================================
+    
+    private static double minX(Object entry) {
+        if (entry instanceof Node) {
+            return ((Node) entry).mMinX;
+        }
+        JSIPtCurve ptCurve = (JSIPtCurve) entry;
+        return ptCurve.getBoundingBox().x - ptCurve.getStrokePadding();
+    }
+    
+    private static double minY(Object entry) {
+        if (entry instanceof Node) {
+            return ((Node) entry).mMinY;
+        }
+        JSIPtCurve ptCurve = (JSIPtCurve) entry;
+        return ptCurve.getBoundingBox().y - ptCurve.getStrokePadding();
+    }
+    
+    private static double maxX(Object entry) {
+        if (entry instanceof Node) {
+            return ((Node) entry).mMaxX;
+        }
+        JSIPtCurve ptCurve = (JSIPtCurve) entry;
+        Rectangle2D.Double box = ptCurve.getBoundingBox();
+        return box.x + box.width + ptCurve.getStrokePadding();
+    }
+    
+    private static double maxY(Object entry) {
+        if (entry instanceof Node) {
+            return ((Node) entry).mMaxY;
+        }
+        JSIPtCurve ptCurve = (JSIPtCurve) entry;
+        Rectangle2D.Double box = ptCurve.getBoundingBox();
+        return box.y + box.height + ptCurve.getStrokePadding();
+    }
+    
+    private static double area(Object entry) {
+        return (JSIRTree.maxX(entry) - JSIRTree.minX(entry)) *
+                (JSIRTree.maxY(entry) - JSIRTree.minY(entry));
+    }
+    
+    private static double unionArea(Object a, Object b) {
+        double w = Math.max(JSIRTree.maxX(a), JSIRTree.maxX(b)) -
+                Math.min(JSIRTree.minX(a), JSIRTree.minX(b));
+        double h = Math.max(JSIRTree.maxY(a), JSIRTree.maxY(b)) -
+                Math.min(JSIRTree.minY(a), JSIRTree.minY(b));
+        return w * h;
+    }
+}
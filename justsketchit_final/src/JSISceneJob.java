@@ -0,0 +1,274 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinTask;
+
+// Two passes over the tiles of one view that were missing from the
+// cache. The preview draws the visible curves largest first at draft
+// quality straight into the scene image, clipped to the tiles still
+// missing, so the shape of the drawing shows up early. The tiles are
+// then rendered exactly, a bounded piece per slice, and replace the
+// preview. Tiles invalidated meanwhile are rendered again. Runs on the
+// EDT.
+public class JSISceneJob {
+    
+    // Part of the progress given to the preview, which draws each curve
+    // once without antialiasing; the exact tiles take the rest
+    private static final double PREVIEW_PROGRESS_SHARE = 0.2;
+    
+    private final JSICanvas2D mCanvas2D;
+    private final JSI mJSI;
+    private final JSITileCache mTileCache;
+    private final JSIQualityScheduler mQualityScheduler;
+    private final AffineTransform mWorldToDeviceXform;
+    private final JSITileGrid mGrid;
+    private final int mOffsetX;
+    private final int mOffsetY;
+    private final int mTx0;
+    private final int mTy0;
+    private final int mColNum;
+    private final int mRowNum;
+    private ArrayList<JSIPtCurve> mPreviewPtCurves = null;
+    private int mPreviewPtCurveNum = 0;
+    // Tiles being rendered, at most one per worker
+    private final ArrayList<JSITileRendering> mTileRenderings;
+    // Tiles this job rendered, which count as done even if the cache
+    // evicts them before the end
+    private final boolean[] mIsTileDone;
+    private boolean mHasDraftTiles = false;
+    // Part of the scene image drawn in the last slice
+    private final Rectangle mDirtyDeviceRect = new Rectangle();
+    
+    public JSISceneJob(JSICanvas2D canvas2D, JSI jsi, 
+            JSITileCache tileCache, JSIQualityScheduler qualityScheduler, 
+            AffineTransform worldToDeviceXform, JSITileGrid grid, 
+            int offsetX, int offsetY, Rectangle gridRect) {
+        this.mCanvas2D = canvas2D;
+        this.mJSI = jsi;
+        this.mTileCache = tileCache;
+        this.mQualityScheduler = qualityScheduler;
+        this.mWorldToDeviceXform = new AffineTransform(worldToDeviceXform);
+        this.mGrid = grid;
+        this.mOffsetX = offsetX;
+        this.mOffsetY = offsetY;
+        Rectangle tileRange = 
+                JSITileGrid.calcTileRange(gridRect, new Rectangle());
+        this.mTx0 = tileRange.x;
+        this.mTy0 = tileRange.y;
+        this.mColNum = tileRange.width;
+        this.mRowNum = tileRange.height;
+        this.mTileRenderings = new ArrayList<JSITileRendering>();
+        this.mIsTileDone = new boolean[this.mColNum * this.mRowNum];
+    }
+    
+    public void setPreviewPtCurves(ArrayList<JSIPtCurve> ptCurves) {
+        this.mPreviewPtCurves = ptCurves;
+    }
+    
+    public boolean hasMissingTiles() {
+        return this.collectMissingTiles(new int[1]) > 0;
+    }
+    
+    // Writes up to indices.length missing tile indices, row by row, and
+    // returns how many were written. Outside an interaction, cached
+    // drafts count as missing.
+    private int collectMissingTiles(int[] indices) {
+        boolean isDraft = this.mQualityScheduler.isDraft();
+        int missingNum = 0;
+        int tileNum = this.mColNum * this.mRowNum;
+        for (int i = 0; i < tileNum && missingNum < indices.length; i++) {
+            int tx = this.mTx0 + i % this.mColNum;
+            int ty = this.mTy0 + i / this.mColNum;
+            if (!this.mIsTileDone[i] && 
+                    (this.mTileCache.get(this.mGrid, tx, ty) == null || 
+                    !isDraft && this.mTileCache.isDraft(this.mGrid, tx, ty))) {
+                indices[missingNum++] = i;
+            }
+        }
+        return missingNum;
+    }
+    
+    // Called when the curves in worldRect change. The tiles there are
+    // missing again, and those in progress start over.
+    public void invalidate(Rectangle2D worldRect) {
+        this.mTileRenderings.removeIf(
+                rendering -> rendering.intersects(worldRect));
+        for (int i = 0; i < this.mIsTileDone.length; i++) {
+            if (this.mGrid.intersectsTile(
+                    worldRect, 
+                    this.mTx0 + i % this.mColNum, 
+                    this.mTy0 + i / this.mColNum)) {
+                this.mIsTileDone[i] = false;
+            }
+        }
+    }
+    
+    public double calcProgress() {
+        int tileNum = this.mColNum * this.mRowNum;
+        double doneTileNum = 
+                tileNum - this.collectMissingTiles(new int[tileNum]);
+        for (JSITileRendering rendering : this.mTileRenderings) {
+            doneTileNum += rendering.calcProgress();
+        }
+        double previewProgress = this.mPreviewPtCurves.isEmpty() ? 
+                1.0 : 
+                (double) this.mPreviewPtCurveNum / 
+                        this.mPreviewPtCurves.size();
+        return JSISceneJob.PREVIEW_PROGRESS_SHARE * previewProgress + 
+                (1.0 - JSISceneJob.PREVIEW_PROGRESS_SHARE) * 
+                        doneTileNum / tileNum;
+    }
+    
+    // Every tile was drawn 1:1 in place as it finished, so only draft
+    // tiles are left to follow up on
+    public void finish() {
+        if (this.mHasDraftTiles) {
+            this.mQualityScheduler.startRefinement();
+        }
+    }
+    
+    public Rectangle getDirtyDeviceRect() {
+        return this.mDirtyDeviceRect;
+    }
+    
+    // Works on the scene image until the deadline, finishing at least
+    // one curve or one batch of tiles. Returns whether any work is left.
+    public boolean runSlice(BufferedImage sceneImage, long deadline) {
+        this.mDirtyDeviceRect.setBounds(0, 0, 0, 0);
+        Graphics2D sceneG2 = sceneImage.createGraphics();
+        boolean isWorkLeft = 
+                this.mPreviewPtCurveNum < this.mPreviewPtCurves.size() ? 
+                        this.drawPreview(sceneG2, deadline) : 
+                        this.renderMissingTiles(sceneG2, deadline);
+        sceneG2.dispose();
+        return isWorkLeft;
+    }
+    
+    private Rectangle calcTileDeviceRect(int tx, int ty) {
+        int size = JSITileCache.TILE_SIZE;
+        return new Rectangle(
+                this.mOffsetX + tx * size, 
+                this.mOffsetY + ty * size, 
+                size, 
+                size);
+    }
+    
+    private boolean drawPreview(Graphics2D sceneG2, long deadline) {
+        int[] indices = new int[this.mColNum * this.mRowNum];
+        int missingNum = this.collectMissingTiles(indices);
+        Path2D.Double missingDeviceArea = new Path2D.Double();
+        for (int j = 0; j < missingNum; j++) {
+            int i = indices[j];
+            missingDeviceArea.append(this.calcTileDeviceRect(
+                    this.mTx0 + i % this.mColNum, 
+                    this.mTy0 + i / this.mColNum), false);
+        }
+        
+        sceneG2.clip(missingDeviceArea);
+        this.mDirtyDeviceRect.setBounds(missingDeviceArea.getBounds());
+        sceneG2.transform(this.mWorldToDeviceXform);
+        sceneG2.setRenderingHint(
+                RenderingHints.KEY_ANTIALIASING, 
+                RenderingHints.VALUE_ANTIALIAS_OFF);
+        double pixelSize = this.mGrid.calcPixelSize();
+        JSISelection selection = this.mJSI.getDocument().getSelection();
+        while (missingNum > 0 && 
+                this.mPreviewPtCurveNum < this.mPreviewPtCurves.size()) {
+            JSICanvas2D.drawCommittedPtCurve(
+                    sceneG2, 
+                    selection, 
+                    this.mPreviewPtCurves.get(this.mPreviewPtCurveNum++), 
+                    pixelSize, 
+                    true);
+            if (System.nanoTime() >= deadline) {
+                return true;
+            }
+        }
+        // Done, or nothing left to preview over
+        this.mPreviewPtCurveNum = this.mPreviewPtCurves.size();
+        return true;
+    }
+    
+    // Renders missing tiles a bounded piece at a time, one per worker,
+    // and copies each finished one over the preview
+    private boolean renderMissingTiles(Graphics2D sceneG2, long deadline) {
+        sceneG2.setComposite(AlphaComposite.Src);
+        do {
+            this.startTileRenderings();
+            if (this.mTileRenderings.isEmpty()) {
+                return false;
+            }
+            ArrayList<ForkJoinTask<?>> tasks = 
+                    new ArrayList<ForkJoinTask<?>>();
+            for (JSITileRendering rendering : this.mTileRenderings) {
+                tasks.add(ForkJoinTask.adapt(() -> {
+                    rendering.drawUntil(deadline);
+                }));
+            }
+            JSITileRenderTask.POOL.invoke(ForkJoinTask.adapt(() -> {
+                ForkJoinTask.invokeAll(tasks);
+            }));
+            
+            Iterator<JSITileRendering> it = this.mTileRenderings.iterator();
+            while (it.hasNext()) {
+                JSITileRendering rendering = it.next();
+                if (!rendering.isDone()) {
+                    continue;
+                }
+                it.remove();
+                int tx = rendering.getTx();
+                int ty = rendering.getTy();
+                this.mIsTileDone[(ty - this.mTy0) * this.mColNum + 
+                        (tx - this.mTx0)] = true;
+                this.mHasDraftTiles |= rendering.isDraft();
+                this.mTileCache.put(this.mGrid, tx, ty, 
+                        rendering.getTile(), rendering.isDraft());
+                Rectangle r = this.calcTileDeviceRect(tx, ty);
+                sceneG2.drawImage(rendering.getTile(), r.x, r.y, null);
+                if (this.mDirtyDeviceRect.isEmpty()) {
+                    this.mDirtyDeviceRect.setBounds(r);
+                } else {
+                    this.mDirtyDeviceRect.add(r);
+                }
+            }
+        } while (System.nanoTime() < deadline);
+        return true;
+    }
+    
+    // Tops the tiles in progress up with missing ones, row by row
+    private void startTileRenderings() {
+        int workerNum = JSITileRenderTask.POOL.getParallelism();
+        int[] indices = new int[this.mColNum * this.mRowNum];
+        int missingNum = this.collectMissingTiles(indices);
+        for (int j = 0; j < missingNum && 
+                this.mTileRenderings.size() < workerNum; j++) {
+            int tx = this.mTx0 + indices[j] % this.mColNum;
+            int ty = this.mTy0 + indices[j] / this.mColNum;
+            if (!this.isTileRendering(tx, ty)) {
+                this.mTileRenderings.add(new JSITileRendering(
+                        this.mJSI, 
+                        this.mCanvas2D.getGraphicsConfiguration(), 
+                        this.mGrid, 
+                        this.mQualityScheduler.isDraft(), 
+                        tx, 
+                        ty));
+            }
+        }
+    }
+    
+    private boolean isTileRendering(int tx, int ty) {
+        for (JSITileRendering rendering : this.mTileRenderings) {
+            if (rendering.getTx() == tx && rendering.getTy() == ty) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,201 @@
+import java.awt.Shape;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+
+// Bounding box hierarchy over the segments of a finished curve, where
+// segment i joins points i and i + 1. Consecutive samples of a stroke lie
+// close together, so halving the segment range gives tight boxes.
+// Nodes are kept in preorder in flat arrays: the left child of node k is
+// k + 1. The tree reads the curve's coordinates, which must not change.
+public class JSISegmentTree {
+    
+    private static final int MAX_LEAF_SEGMENT_NUM = 8;
+    
+    private final double[] mCoords;
+    // minX, minY, maxX, maxY of each node
+    private final double[] mBoxes;
+    // Segment range [begin, end) of each node
+    private final int[] mBegins;
+    private final int[] mEnds;
+    // Right child of each node, or -1 for a leaf
+    private final int[] mRights;
+    private int mNodeNum = 0;
+    
+    public JSISegmentTree(double[] coords, int ptNum) {
+        this.mCoords = coords;
+        int segmentNum = Math.max(0, ptNum - 1);
+        // Leaves hold at least half the maximum, except a lone root
+        int maxNodeNum = 4 *
+                (segmentNum / JSISegmentTree.MAX_LEAF_SEGMENT_NUM + 1);
+        this.mBoxes = new double[4 * maxNodeNum];
+        this.mBegins = new int[maxNodeNum];
+        this.mEnds = new int[maxNodeNum];
+        this.mRights = new int[maxNodeNum];
+        // A single point still gets a leaf for point queries
+        if (ptNum > 0) {
+            this.build(0, segmentNum);
+        }
+    }
+    
+    // Approximate heap bytes of the node arrays
+    public long calcByteSize() {
+        return 8L * this.mBoxes.length + 12L * this.mBegins.length;
+    }
+    
+    // Whether any point of the curve lies inside the region
+    public boolean hasPtIn(Shape region) {
+        return this.mNodeNum > 0 &&
+                this.hasPtIn(0, region, region.getBounds2D());
+    }
+    
+    // Whether any segment of the curve passes through the rectangle
+    public boolean intersects(Rectangle2D r) {
+        return this.mNodeNum > 0 && this.intersects(0, r);
+    }
+    
+    // Index of the segment nearest to (x, y), or -1 if none is within
+    // maxDist. Subtrees whose boxes are farther than the best segment so
+    // far are skipped.
+    public int findNearestSegment(double x, double y, double maxDist) {
+        double[] bestDistSq = { maxDist * maxDist };
+        int[] best = { -1 };
+        if (this.mNodeNum > 0) {
+            this.findNearestSegment(0, x, y, bestDistSq, best);
+        }
+        return best[0];
+    }
+    
+    private int build(int begin, int end) {
+        int k = this.mNodeNum++;
+        this.mBegins[k] = begin;
+        this.mEnds[k] = end;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        
+        if (end - begin <= JSISegmentTree.MAX_LEAF_SEGMENT_NUM) {
+            this.mRights[k] = -1;
+            // The last segment ends at point end
+            for (int i = begin; i <= end; i++) {
+                minX = Math.min(minX, this.mCoords[2 * i]);
+                minY = Math.min(minY, this.mCoords[2 * i + 1]);
+                maxX = Math.max(maxX, this.mCoords[2 * i]);
+                maxY = Math.max(maxY, this.mCoords[2 * i + 1]);
+            }
+        } else {
+            int mid = (begin + end) >>> 1;
+            int left = this.build(begin, mid);
+            int right = this.build(mid, end);
+            this.mRights[k] = right;
+            for (int child : new int[] { left, right }) {
+                minX = Math.min(minX, this.mBoxes[4 * child]);
+                minY = Math.min(minY, this.mBoxes[4 * child + 1]);
+                maxX = Math.max(maxX, this.mBoxes[4 * child + 2]);
+                maxY = Math.max(maxY, this.mBoxes[4 * child + 3]);
+            }
+        }
+        
+        this.mBoxes[4 * k] = minX;
+        this.mBoxes[4 * k + 1] = minY;
+        this.mBoxes[4 * k + 2] = maxX;
+        this.mBoxes[4 * k + 3] = maxY;
+        return k;
+    }
+    
+    private boolean hasPtIn(int k, Shape region, Rectangle2D bounds) {
+        if (!this.meets(k, bounds)) {
+            return false;
+        }
+        double minX = this.mBoxes[4 * k];
+        double minY = this.mBoxes[4 * k + 1];
+        double width = this.mBoxes[4 * k + 2] - minX;
+        double height = this.mBoxes[4 * k + 3] - minY;
+        if (width > 0.0 && height > 0.0 &&
+                region.contains(minX, minY, width, height)) {
+            return true;
+        }
+        
+        if (this.mRights[k] < 0) {
+            for (int i = this.mBegins[k]; i <= this.mEnds[k]; i++) {
+                if (region.contains(
+                        this.mCoords[2 * i], this.mCoords[2 * i + 1])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return this.hasPtIn(k + 1, region, bounds) ||
+                this.hasPtIn(this.mRights[k], region, bounds);
+    }
+    
+    private boolean intersects(int k, Rectangle2D r) {
+        if (!this.meets(k, r)) {
+            return false;
+        }
+        if (this.mRights[k] < 0) {
+            for (int i = this.mBegins[k]; i < this.mEnds[k]; i++) {
+                if (r.intersectsLine(
+                        this.mCoords[2 * i],
+                        this.mCoords[2 * i + 1],
+                        this.mCoords[2 * i + 2],
+                        this.mCoords[2 * i + 3])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return this.intersects(k + 1, r) ||
+                this.intersects(this.mRights[k], r);
+    }
+    
+    private void findNearestSegment(int k, double x, double y,
+            double[] bestDistSq, int[] best) {
+        if (this.calcBoxDistSq(k, x, y) > bestDistSq[0]) {
+            return;
+        }
+        if (this.mRights[k] < 0) {
+            for (int i = this.mBegins[k]; i < this.mEnds[k]; i++) {
+                double distSq = Line2D.ptSegDistSq(
+                        this.mCoords[2 * i],
+                        this.mCoords[2 * i + 1],
+                        this.mCoords[2 * i + 2],
+                        this.mCoords[2 * i + 3],
+                        x,
+                        y);
+                if (distSq <= bestDistSq[0]) {
+                    bestDistSq[0] = distSq;
+                    best[0] = i;
+                }
+            }
+            return;
+        }
+        
+        // Nearer child first, so the farther one is more likely skipped
+        int left = k + 1;
+        int right = this.mRights[k];
+        if (this.calcBoxDistSq(right, x, y) <
+                this.calcBoxDistSq(left, x, y)) {
+            left = right;
+            right = k + 1;
+        }
+        this.findNearestSegment(left, x, y, bestDistSq, best);
+        this.findNearestSegment(right, x, y, bestDistSq, best);
+    }
+    
+    // Whether the node's box meets the rectangle, boundaries inclusive
+    private boolean meets(int k, Rectangle2D r) {
+        return this.mBoxes[4 * k] <= r.getMaxX() &&
+                this.mBoxes[4 * k + 2] >= r.getMinX() &&
+                this.mBoxes[4 * k + 1] <= r.getMaxY() &&
+                this.mBoxes[4 * k + 3] >= r.getMinY();
+    }
+    
+    private double calcBoxDistSq(int k, double x, double y) {
+        double dx = Math.max(0.0, Math.max(
+                this.mBoxes[4 * k] - x, x - this.mBoxes[4 * k + 2]));
+        double dy = Math.max(0.0, Math.max(
+                this.mBoxes[4 * k + 1] - y, y - this.mBoxes[4 * k + 3]));
+        return dx * dx + dy * dy;
+    }
+}
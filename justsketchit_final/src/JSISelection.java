@@ -0,0 +1,261 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+// Immutable set of curve IDs, kept as a bitset. The bit words sit in the
+// leaves of a 32-way trie, so contains, add, remove and toggle touch one
+// short path, constant time for any realistic number of curves, and an
+// edit copies only that path. Versions share all other nodes, so a
+// document can keep its selection as cheaply as its curves.
+public class JSISelection {
+    
+    public static final JSISelection EMPTY = new JSISelection(null, 0, 0, 0L);
+    
+    private static final int BRANCH_BITS = 5;
+    private static final int BRANCH_NUM = 1 << JSISelection.BRANCH_BITS;
+    private static final int BRANCH_MASK = JSISelection.BRANCH_NUM - 1;
+    // IDs covered by one leaf of BRANCH_NUM 64-bit words
+    private static final long LEAF_CAPACITY = 64L * JSISelection.BRANCH_NUM;
+    // Returned by findNodeAtDepth when the IDs do not fit that depth
+    private static final Object NOT_FOUND = new Object();
+    
+    // long[] at depth 0, otherwise Object[] of children; null when empty
+    private final Object mRoot;
+    private final int mDepth;
+    private final int mSize;
+    // Sum of the mixed IDs, so equal sets hash equally in any history
+    private final long mHash;
+    
+    private JSISelection(Object root, int depth, int size, long hash) {
+        this.mRoot = root;
+        this.mDepth = depth;
+        this.mSize = size;
+        this.mHash = hash;
+    }
+    
+    public int size() {
+        return this.mSize;
+    }
+    
+    public boolean isEmpty() {
+        return this.mSize == 0;
+    }
+    
+    public long getContentHash() {
+        return this.mHash;
+    }
+    
+    public boolean contains(int id) {
+        if (id < 0 || this.mRoot == null ||
+                id >= JSISelection.calcCapacity(this.mDepth)) {
+            return false;
+        }
+        int word = id >>> 6;
+        Object node = this.mRoot;
+        for (int level = this.mDepth; level > 0; level--) {
+            node = ((Object[]) node)[JSISelection.calcBranch(word, level)];
+            if (node == null) {
+                return false;
+            }
+        }
+        long[] words = (long[]) node;
+        return (words[word & JSISelection.BRANCH_MASK] & (1L << id)) != 0L;
+    }
+    
+    public JSISelection add(int id) {
+        if (id < 0 || this.contains(id)) {
+            return this;
+        }
+        Object root = this.mRoot;
+        int depth = this.mDepth;
+        while (id >= JSISelection.calcCapacity(depth)) {
+            if (root != null) {
+                Object[] children = new Object[JSISelection.BRANCH_NUM];
+                children[0] = root;
+                root = children;
+            }
+            depth++;
+        }
+        return new JSISelection(
+                JSISelection.setBit(root, depth, id, true),
+                depth,
+                this.mSize + 1,
+                this.mHash + JSISelection.hashOf(id));
+    }
+    
+    public JSISelection remove(int id) {
+        if (!this.contains(id)) {
+            return this;
+        }
+        if (this.mSize == 1) {
+            return JSISelection.EMPTY;
+        }
+        return new JSISelection(
+                JSISelection.setBit(this.mRoot, this.mDepth, id, false),
+                this.mDepth,
+                this.mSize - 1,
+                this.mHash - JSISelection.hashOf(id));
+    }
+    
+    public JSISelection toggle(int id) {
+        return this.contains(id) ? this.remove(id) : this.add(id);
+    }
+    
+    public boolean contains(JSIPtCurve ptCurve) {
+        return this.contains(ptCurve.getId());
+    }
+    
+    // Calls action with every ID in ascending order. Only non-empty
+    // nodes and set bits are visited.
+    public void forEachId(IntConsumer action) {
+        if (this.mRoot != null) {
+            JSISelection.forEachId(this.mRoot, this.mDepth, 0L, action);
+        }
+    }
+    
+    // Whether both selections hold the same IDs. Differing hashes reject
+    // in O(1); otherwise the tries are compared word by word, skipping
+    // shared nodes.
+    public boolean hasSameContent(JSISelection other) {
+        if (this == other) {
+            return true;
+        }
+        if (this.mSize != other.mSize || this.mHash != other.mHash) {
+            return false;
+        }
+        Object a = JSISelection.findNodeAtDepth(
+                this.mRoot, this.mDepth, other.mDepth);
+        Object b = JSISelection.findNodeAtDepth(
+                other.mRoot, other.mDepth, this.mDepth);
+        int depth = Math.min(this.mDepth, other.mDepth);
+        return a != JSISelection.NOT_FOUND &&
+                b != JSISelection.NOT_FOUND &&
+                JSISelection.hasSameBits(a, b, depth);
+    }
+    
+    // Copies the path to the bit and sets or clears it
+    private static Object setBit(
+            Object node, int level, int id, boolean isSet) {
+        int word = id >>> 6;
+        if (level == 0) {
+            long[] words = node == null ?
+                    new long[JSISelection.BRANCH_NUM] :
+                    ((long[]) node).clone();
+            int i = word & JSISelection.BRANCH_MASK;
+            if (isSet) {
+                words[i] |= 1L << id;
+            } else {
+                words[i] &= ~(1L << id);
+            }
+            return words;
+        }
+        Object[] children = node == null ?
+                new Object[JSISelection.BRANCH_NUM] :
+                ((Object[]) node).clone();
+        int i = JSISelection.calcBranch(word, level);
+        children[i] = JSISelection.setBit(children[i], level - 1, id, isSet);
+        return children;
+    }
+    
+    // firstWord is the index of the first bit word under the node
+    private static void forEachId(
+            Object node, int level, long firstWord, IntConsumer action) {
+        if (level == 0) {
+            long[] words = (long[]) node;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0L) {
+                    action.accept((int) (64L * (firstWord + i) +
+                            Long.numberOfTrailingZeros(word)));
+                    word &= word - 1L;
+                }
+            }
+            return;
+        }
+        Object[] children = (Object[]) node;
+        int shift = JSISelection.BRANCH_BITS * level;
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] != null) {
+                JSISelection.forEachId(
+                        children[i],
+                        level - 1,
+                        firstWord + ((long) i << shift),
+                        action);
+            }
+        }
+    }
+    
+    // The node covering the first IDs at the given depth, found by
+    // following first children down from the root. NOT_FOUND if any
+    // other child on the way holds an ID.
+    private static Object findNodeAtDepth(
+            Object node, int level, int depth) {
+        for (; level > depth && node != null; level--) {
+            Object[] children = (Object[]) node;
+            for (int i = 1; i < children.length; i++) {
+                if (!JSISelection.isEmptyNode(children[i], level - 1)) {
+                    return JSISelection.NOT_FOUND;
+                }
+            }
+            node = children[0];
+        }
+        return node;
+    }
+    
+    private static boolean hasSameBits(Object a, Object b, int level) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return JSISelection.isEmptyNode(a == null ? b : a, level);
+        }
+        if (level == 0) {
+            return Arrays.equals((long[]) a, (long[]) b);
+        }
+        Object[] aChildren = (Object[]) a;
+        Object[] bChildren = (Object[]) b;
+        for (int i = 0; i < JSISelection.BRANCH_NUM; i++) {
+            if (!JSISelection.hasSameBits(
+                    aChildren[i], bChildren[i], level - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Removing IDs clears bits but keeps the nodes
+    private static boolean isEmptyNode(Object node, int level) {
+        if (node == null) {
+            return true;
+        }
+        if (level == 0) {
+            for (long word : (long[]) node) {
+                if (word != 0L) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (Object child : (Object[]) node) {
+            if (!JSISelection.isEmptyNode(child, level - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Offset so that ID 0, which mixes to 0, still changes the hash
+    private static long hashOf(int id) {
+        return JSIPtCurve.mixHash(id + 0x9E3779B97F4A7C15L);
+    }
+    
+    // Child of a node at the given level on the path to the word
+    private static int calcBranch(int word, int level) {
+        return (word >>> (JSISelection.BRANCH_BITS * level)) &
+                JSISelection.BRANCH_MASK;
+    }
+    
+    private static long calcCapacity(int depth) {
+        return JSISelection.LEAF_CAPACITY <<
+                (JSISelection.BRANCH_BITS * depth);
+    }
+}
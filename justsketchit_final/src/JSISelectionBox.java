@@ -1,17 +1,63 @@
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.util.ArrayList;
 
 public class JSISelectionBox extends Rectangle {
     
     private Point mAnchorPt = null;
+    // The box before the last update
+    private Rectangle mPrevRect = null;
     
     public JSISelectionBox(Point pt) {
         super(pt);
         this.mAnchorPt = pt;
+        this.mPrevRect = new Rectangle(pt);
     }
     
     public void update(Point pt) {
+        this.mPrevRect.setBounds(this);
         this.setRect(this.mAnchorPt.x, this.mAnchorPt.y, 0, 0);
         this.add(pt);
     }
+    
+    // Screen area the box covers now but did not before the last update
+    public ArrayList<Rectangle> calcGainedRects() {
+        return JSISelectionBox.subtract(this, this.mPrevRect);
+    }
+    
+    // Screen area the box covered before the last update but not now
+    public ArrayList<Rectangle> calcLostRects() {
+        return JSISelectionBox.subtract(this.mPrevRect, this);
+    }
+    
+    // The part of r outside cut, as up to four rectangles
+    private static ArrayList<Rectangle> subtract(Rectangle r, Rectangle cut) {
+        ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
+        if (r.isEmpty()) {
+            return rects;
+        }
+        Rectangle overlap = r.intersection(cut);
+        if (overlap.isEmpty()) {
+            rects.add(new Rectangle(r));
+            return rects;
+        }
+        
+        // Full-width bands above and below the overlap, then the parts
+        // left and right of it
+        Rectangle[] parts = {
+            new Rectangle(r.x, r.y, r.width, overlap.y - r.y), 
+            new Rectangle(r.x, overlap.y + overlap.height, r.width, 
+                    r.y + r.height - overlap.y - overlap.height), 
+            new Rectangle(r.x, overlap.y, overlap.x - r.x, overlap.height), 
+            new Rectangle(overlap.x + overlap.width, overlap.y, 
+                    r.x + r.width - overlap.x - overlap.width, 
+                    overlap.height)
+        };
+        for (Rectangle part : parts) {
+            if (!part.isEmpty()) {
+                rects.add(part);
+            }
+        }
+        return rects;
+    }
 }
@@ -0,0 +1,145 @@
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// LRU cache of rasterized tiles, keyed by tile grid and tile coordinates
+// and bounded by a memory budget in bytes. Tile (grid, tx, ty) is
+// rendered at the exact device transform of grid, see JSITileGrid, and
+// is TILE_SIZE pixels wide.
+// Tiles rendered at draft quality during interaction are marked, so they
+// can be found and replaced later.
+public class JSITileCache {
+    
+    public static final int TILE_SIZE = 256;
+    public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024L * 1024L;
+    private static final int BYTES_PER_PIXEL = 4;
+    
+    private static final class Key {
+        private final JSITileGrid mGrid;
+        private final int mTx;
+        private final int mTy;
+        
+        private Key(JSITileGrid grid, int tx, int ty) {
+            this.mGrid = grid;
+            this.mTx = tx;
+            this.mTy = ty;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return this.mGrid.equals(k.mGrid) &&
+                    this.mTx == k.mTx &&
+                    this.mTy == k.mTy;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (this.mGrid.hashCode() * 31 + this.mTx) * 31 + this.mTy;
+        }
+    }
+    
+    // Access-ordered, so iteration starts at the least recently used tile
+    private LinkedHashMap<Key, BufferedImage> mTiles = null;
+    private HashSet<Key> mDraftKeys = null;
+    private long mMemoryBudget = 0L;
+    private long mMemoryUsage = 0L;
+    
+    public JSITileCache() {
+        this(JSITileCache.DEFAULT_MEMORY_BUDGET);
+    }
+    
+    public JSITileCache(long memoryBudget) {
+        this.mTiles = new LinkedHashMap<Key, BufferedImage>(64, 0.75f, true);
+        this.mDraftKeys = new HashSet<Key>();
+        this.mMemoryBudget = memoryBudget;
+        this.mMemoryUsage = 0L;
+    }
+    
+    public long getMemoryUsage() {
+        return this.mMemoryUsage;
+    }
+    
+    public long getMemoryBudget() {
+        return this.mMemoryBudget;
+    }
+    
+    public int size() {
+        return this.mTiles.size();
+    }
+    
+    public BufferedImage get(JSITileGrid grid, int tx, int ty) {
+        return this.mTiles.get(new Key(grid, tx, ty));
+    }
+    
+    // Whether the cached tile was rendered at draft quality
+    public boolean isDraft(JSITileGrid grid, int tx, int ty) {
+        return !this.mDraftKeys.isEmpty() && 
+                this.mDraftKeys.contains(new Key(grid, tx, ty));
+    }
+    
+    public void put(JSITileGrid grid, int tx, int ty, BufferedImage tile) {
+        this.put(grid, tx, ty, tile, false);
+    }
+    
+    public void put(JSITileGrid grid, int tx, int ty, BufferedImage tile, 
+            boolean isDraft) {
+        Key key = new Key(grid, tx, ty);
+        BufferedImage old = this.mTiles.put(key, tile);
+        if (old != null) {
+            this.mMemoryUsage -= JSITileCache.calcBytes(old);
+        }
+        if (isDraft) {
+            this.mDraftKeys.add(key);
+        } else {
+            this.mDraftKeys.remove(key);
+        }
+        this.mMemoryUsage += JSITileCache.calcBytes(tile);
+        this.evictToBudget();
+    }
+    
+    // Drops every tile, in any grid, that overlaps the world rectangle
+    // grown by one tile pixel (the antialiasing fringe).
+    public void invalidate(Rectangle2D worldRect) {
+        Iterator<Map.Entry<Key, BufferedImage>> it =
+                this.mTiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, BufferedImage> entry = it.next();
+            Key key = entry.getKey();
+            if (key.mGrid.intersectsTile(worldRect, key.mTx, key.mTy)) {
+                this.mMemoryUsage -= JSITileCache.calcBytes(entry.getValue());
+                this.mDraftKeys.remove(key);
+                it.remove();
+            }
+        }
+    }
+    
+    public void clear() {
+        this.mTiles.clear();
+        this.mDraftKeys.clear();
+        this.mMemoryUsage = 0L;
+    }
+    
+    private void evictToBudget() {
+        Iterator<Map.Entry<Key, BufferedImage>> it = 
+                this.mTiles.entrySet().iterator();
+        while (this.mMemoryUsage > this.mMemoryBudget && it.hasNext()) {
+            Map.Entry<Key, BufferedImage> entry = it.next();
+            this.mMemoryUsage -= JSITileCache.calcBytes(entry.getValue());
+            this.mDraftKeys.remove(entry.getKey());
+            it.remove();
+        }
+    }
+    
+    private static long calcBytes(BufferedImage tile) {
+        return (long) tile.getWidth() *
+                (long) tile.getHeight() *
+                JSITileCache.BYTES_PER_PIXEL;
+    }
+}
@@ -0,0 +1,139 @@
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+
+// Device-aligned tiling of the world for one zoom and rotation. A grid
+// keeps the linear part of a world-to-device transform and the fraction
+// of a pixel in its translation; the whole pixels are left out. Grid
+// space is therefore device space shifted by a whole-pixel offset, and
+// every view that differs only by such a shift, e.g. after a pan, shares
+// the grid and draws its tiles 1:1 without resampling.
+// Tile (tx, ty) covers the grid-space square starting at
+// (tx, ty) * JSITileCache.TILE_SIZE.
+public class JSITileGrid {
+    
+    // Sub-pixel phases are rounded to this many steps per pixel, so that
+    // rounding noise in the translation does not split the grid
+    private static final double PHASE_STEP_NUM = 64.0;
+    
+    private final double mM00;
+    private final double mM10;
+    private final double mM01;
+    private final double mM11;
+    private final double mPhaseX;
+    private final double mPhaseY;
+    
+    public JSITileGrid(AffineTransform worldToDeviceXform) {
+        this.mM00 = worldToDeviceXform.getScaleX();
+        this.mM10 = worldToDeviceXform.getShearY();
+        this.mM01 = worldToDeviceXform.getShearX();
+        this.mM11 = worldToDeviceXform.getScaleY();
+        this.mPhaseX = JSITileGrid.calcPhase(
+                worldToDeviceXform.getTranslateX());
+        this.mPhaseY = JSITileGrid.calcPhase(
+                worldToDeviceXform.getTranslateY());
+    }
+    
+    // Whole-pixel offset from grid space to device space for a
+    // translation component of the world-to-device transform
+    public static int calcOffset(double translation) {
+        return (int) Math.round(
+                translation - JSITileGrid.calcPhase(translation));
+    }
+    
+    private static double calcPhase(double translation) {
+        double phase = Math.round(
+                (translation - Math.floor(translation)) *
+                JSITileGrid.PHASE_STEP_NUM) / JSITileGrid.PHASE_STEP_NUM;
+        return phase < 1.0 ? phase : 0.0;
+    }
+    
+    public AffineTransform createWorldToGridXform() {
+        return new AffineTransform(
+                this.mM00,
+                this.mM10,
+                this.mM01,
+                this.mM11,
+                this.mPhaseX,
+                this.mPhaseY);
+    }
+    
+    // World length of one grid pixel
+    public double calcPixelSize() {
+        return 1.0 / Math.sqrt(
+                Math.abs(this.mM00 * this.mM11 - this.mM01 * this.mM10));
+    }
+    
+    // Whether the world rectangle, grown by one pixel for the
+    // antialiasing fringe, overlaps tile (tx, ty)
+    public boolean intersectsTile(Rectangle2D worldRect, int tx, int ty) {
+        Rectangle2D gridRect = JSIXform.calcTransformedBounds(
+                this.createWorldToGridXform(),
+                worldRect,
+                new Rectangle2D.Double());
+        int size = JSITileCache.TILE_SIZE;
+        return gridRect.getMinX() - 1.0 <= (tx + 1) * size &&
+                gridRect.getMaxX() + 1.0 >= tx * size &&
+                gridRect.getMinY() - 1.0 <= (ty + 1) * size &&
+                gridRect.getMaxY() + 1.0 >= ty * size;
+    }
+    
+    // World bounds of tile (tx, ty) grown by padding grid pixels, written
+    // into dst and returned. Empty if the grid is degenerate.
+    public Rectangle2D calcTileWorldBounds(
+            int tx, int ty, double padding, Rectangle2D dst) {
+        int size = JSITileCache.TILE_SIZE;
+        Rectangle2D.Double tileRect = new Rectangle2D.Double(
+                tx * size - padding,
+                ty * size - padding,
+                size + 2.0 * padding,
+                size + 2.0 * padding);
+        try {
+            return JSIXform.calcTransformedBounds(
+                    this.createWorldToGridXform().createInverse(),
+                    tileRect,
+                    dst);
+        } catch (NoninvertibleTransformException ex) {
+            dst.setRect(0.0, 0.0, 0.0, 0.0);
+            return dst;
+        }
+    }
+    
+    // Tiles overlapping a grid-space rectangle, as (tx0, ty0, colNum,
+    // rowNum), written into dst and returned
+    public static Rectangle calcTileRange(Rectangle gridRect, Rectangle dst) {
+        int size = JSITileCache.TILE_SIZE;
+        int tx0 = Math.floorDiv(gridRect.x, size);
+        int ty0 = Math.floorDiv(gridRect.y, size);
+        int tx1 = Math.floorDiv(gridRect.x + gridRect.width - 1, size);
+        int ty1 = Math.floorDiv(gridRect.y + gridRect.height - 1, size);
+        dst.setBounds(tx0, ty0, tx1 - tx0 + 1, ty1 - ty0 + 1);
+        return dst;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof JSITileGrid)) {
+            return false;
+        }
+        JSITileGrid g = (JSITileGrid) o;
+        return this.mM00 == g.mM00 &&
+                this.mM10 == g.mM10 &&
+                this.mM01 == g.mM01 &&
+                this.mM11 == g.mM11 &&
+                this.mPhaseX == g.mPhaseX &&
+                this.mPhaseY == g.mPhaseY;
+    }
+    
+    @Override
+    public int hashCode() {
+        long h = Double.doubleToLongBits(this.mM00);
+        h = h * 31 + Double.doubleToLongBits(this.mM10);
+        h = h * 31 + Double.doubleToLongBits(this.mM01);
+        h = h * 31 + Double.doubleToLongBits(this.mM11);
+        h = h * 31 + Double.doubleToLongBits(this.mPhaseX);
+        h = h * 31 + Double.doubleToLongBits(this.mPhaseY);
+        return (int) (h ^ (h >>> 32));
+    }
+}
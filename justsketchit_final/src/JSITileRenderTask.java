@@ -0,0 +1,71 @@
+import java.awt.GraphicsConfiguration;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Renders the tiles at indices [start, end) of a colNum-wide block of
+// tiles starting at (tx0, ty0) into tiles, splitting the range until
+// single tiles are rendered concurrently on POOL
+public class JSITileRenderTask extends RecursiveAction {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public static final ForkJoinPool POOL = 
+            new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    
+    private final transient JSI mJSI;
+    private final transient GraphicsConfiguration mGC;
+    private final transient JSITileGrid mGrid;
+    private final boolean mIsDraft;
+    private final int mTx0;
+    private final int mTy0;
+    private final int mColNum;
+    private final int[] mIndices;
+    private final transient BufferedImage[] mTiles;
+    private final int mStart;
+    private final int mEnd;
+    
+    public JSITileRenderTask(JSI jsi, GraphicsConfiguration gc, 
+            JSITileGrid grid, boolean isDraft, 
+            int tx0, int ty0, int colNum, 
+            int[] indices, BufferedImage[] tiles, int start, int end) {
+        this.mJSI = jsi;
+        this.mGC = gc;
+        this.mGrid = grid;
+        this.mIsDraft = isDraft;
+        this.mTx0 = tx0;
+        this.mTy0 = ty0;
+        this.mColNum = colNum;
+        this.mIndices = indices;
+        this.mTiles = tiles;
+        this.mStart = start;
+        this.mEnd = end;
+    }
+    
+    @Override
+    protected void compute() {
+        if (this.mEnd - this.mStart <= 1) {
+            for (int j = this.mStart; j < this.mEnd; j++) {
+                int i = this.mIndices[j];
+                this.mTiles[i] = JSITileRendering.render(
+                        this.mJSI, 
+                        this.mGC, 
+                        this.mGrid, 
+                        this.mIsDraft, 
+                        this.mTx0 + i % this.mColNum, 
+                        this.mTy0 + i / this.mColNum);
+            }
+            return;
+        }
+        int mid = (this.mStart + this.mEnd) >>> 1;
+        RecursiveAction.invokeAll(
+                this.createSubtask(this.mStart, mid), 
+                this.createSubtask(mid, this.mEnd));
+    }
+    
+    private JSITileRenderTask createSubtask(int start, int end) {
+        return new JSITileRenderTask(this.mJSI, this.mGC, this.mGrid, 
+                this.mIsDraft, this.mTx0, this.mTy0, this.mColNum, 
+                this.mIndices, this.mTiles, start, end);
+    }
+}
@@ -0,0 +1,113 @@
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+// A tile whose curves are drawn over one or more calls of drawUntil.
+// The curves under it are fixed when it starts, so it has to be dropped
+// if any of them changes before it is done. Safe to use from any thread
+// as long as the document is not modified meanwhile. Draft tiles skip
+// antialiasing, joins and detail.
+public class JSITileRendering {
+    
+    private final JSITileGrid mGrid;
+    private final boolean mIsDraft;
+    private final int mTx;
+    private final int mTy;
+    private final BufferedImage mTile;
+    private final Graphics2D mTileG2;
+    private final double mPixelSize;
+    private final ArrayList<JSIPtCurve> mPtCurves;
+    private final JSISelection mSelection;
+    private int mPtCurveNum = 0;
+    
+    public JSITileRendering(JSI jsi, GraphicsConfiguration gc, 
+            JSITileGrid grid, boolean isDraft, int tx, int ty) {
+        this.mGrid = grid;
+        this.mIsDraft = isDraft;
+        this.mTx = tx;
+        this.mTy = ty;
+        int size = JSITileCache.TILE_SIZE;
+        this.mTile = JSICanvas2D.createTranslucentImage(gc, size, size);
+        
+        this.mTileG2 = this.mTile.createGraphics();
+        this.mTileG2.setRenderingHint(
+                RenderingHints.KEY_ANTIALIASING, 
+                isDraft ? 
+                        RenderingHints.VALUE_ANTIALIAS_OFF : 
+                        RenderingHints.VALUE_ANTIALIAS_ON);
+        this.mTileG2.translate(-tx * size, -ty * size);
+        this.mTileG2.transform(grid.createWorldToGridXform());
+        
+        // Grow by one tile pixel to catch antialiasing fringes
+        this.mPixelSize = grid.calcPixelSize();
+        Rectangle2D tileWorldRect = grid.calcTileWorldBounds(
+                tx, ty, 1.0, new Rectangle2D.Double());
+        this.mPtCurves = new ArrayList<JSIPtCurve>();
+        jsi.getPtCurveIndex().query(tileWorldRect, this.mPtCurves);
+        this.mPtCurves.sort(JSICanvas2D.Z_ORDER_COMPARATOR);
+        this.mSelection = jsi.getDocument().getSelection();
+    }
+    
+    // Renders a whole tile at once
+    public static BufferedImage render(JSI jsi, GraphicsConfiguration gc, 
+            JSITileGrid grid, boolean isDraft, int tx, int ty) {
+        JSITileRendering rendering = 
+                new JSITileRendering(jsi, gc, grid, isDraft, tx, ty);
+        rendering.drawUntil(Long.MAX_VALUE);
+        return rendering.getTile();
+    }
+    
+    public int getTx() {
+        return this.mTx;
+    }
+    
+    public int getTy() {
+        return this.mTy;
+    }
+    
+    public boolean isDraft() {
+        return this.mIsDraft;
+    }
+    
+    public BufferedImage getTile() {
+        return this.mTile;
+    }
+    
+    public boolean isDone() {
+        return this.mPtCurveNum == this.mPtCurves.size();
+    }
+    
+    public double calcProgress() {
+        return this.mPtCurves.isEmpty() ? 
+                1.0 : 
+                (double) this.mPtCurveNum / this.mPtCurves.size();
+    }
+    
+    public boolean intersects(Rectangle2D worldRect) {
+        return this.mGrid.intersectsTile(worldRect, this.mTx, this.mTy);
+    }
+    
+    // Draws curves in z-order until the deadline, at least one, and
+    // returns whether the tile is done
+    public boolean drawUntil(long deadline) {
+        while (this.mPtCurveNum < this.mPtCurves.size()) {
+            JSICanvas2D.drawCommittedPtCurve(
+                    this.mTileG2, 
+                    this.mSelection, 
+                    this.mPtCurves.get(this.mPtCurveNum++), 
+                    this.mPixelSize, 
+                    this.mIsDraft);
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        if (!this.isDone()) {
+            return false;
+        }
+        this.mTileG2.dispose();
+        return true;
+    }
+}
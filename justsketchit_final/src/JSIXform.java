@@ -2,6 +2,7 @@ import java.awt.Point;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 
 public class JSIXform {
     
@@ -11,8 +12,13 @@ public class JSIXform {
     private AffineTransform mCurXformFromWorldToScreen = null;
     private AffineTransform mCurXformFromScreenToWorld = null;
     private AffineTransform mStartXformFromWorldToScreen = null;
+    private AffineTransform mStartXformFromScreenToWorld = null;
     private Point mStartScreenPt = null;
     
+    // Scratch storage, so that conversions during a drag allocate nothing
+    private Point2D.Double mWorldPt0 = null;
+    private Point2D.Double mWorldPt1 = null;
+    
     public AffineTransform getCurXformFromWorldToScreen() {
         return this.mCurXformFromWorldToScreen;
     }
@@ -21,22 +27,44 @@ public class JSIXform {
         return this.mCurXformFromScreenToWorld;
     }
     
+    // Zoom factor of the current transform, i.e. screen length per
+    // world length
+    public double getCurScale() {
+        return Math.sqrt(
+                Math.abs(this.mCurXformFromWorldToScreen.getDeterminant()));
+    }
+    
     public void setStartScreenPt(Point pt) {
         this.mStartScreenPt = pt;
         this.mStartXformFromWorldToScreen.setTransform(
                 this.mCurXformFromWorldToScreen);
+        this.mStartXformFromScreenToWorld.setTransform(
+                this.mCurXformFromScreenToWorld);
     }
     
     public JSIXform() {
         this.mCurXformFromWorldToScreen = new AffineTransform();
         this.mCurXformFromScreenToWorld = new AffineTransform();
         this.mStartXformFromWorldToScreen = new AffineTransform();
+        this.mStartXformFromScreenToWorld = new AffineTransform();
+        this.mWorldPt0 = new Point2D.Double();
+        this.mWorldPt1 = new Point2D.Double();
     }
     
+    // Inverts into the retained matrix, so the object returned by
+    // getCurXformFromScreenToWorld stays the same. A singular transform
+    // keeps the previous inverse.
     public void updateCurXformFromScreenToWorld() {
+        double det = this.mCurXformFromWorldToScreen.getDeterminant();
+        if (Math.abs(det) <= Double.MIN_VALUE) {
+            System.err.println(
+                    "Failed to invert transformation: Determinant is " + det);
+            return;
+        }
+        this.mCurXformFromScreenToWorld.setTransform(
+                this.mCurXformFromWorldToScreen);
         try {
-            this.mCurXformFromScreenToWorld =
-                    this.mCurXformFromWorldToScreen.createInverse();
+            this.mCurXformFromScreenToWorld.invert();
         } catch (NoninvertibleTransformException ex) {
             System.err.println(
                     "Failed to invert transformation: " + ex.getMessage());
@@ -45,31 +73,93 @@ public class JSIXform {
     
     public Point calcPtFromWorldToScreen(Point2D.Double worldPt) {
         Point screenPt = new Point();
-        this.mCurXformFromWorldToScreen.transform(worldPt, screenPt);
+        this.calcPtFromWorldToScreen(worldPt, screenPt);
         return screenPt;
     }
     
     public Point2D.Double calcPtFromScreenToWorld(Point screenPt) {
         Point2D.Double worldPt = new Point2D.Double();
-        this.mCurXformFromScreenToWorld.transform(screenPt, worldPt);
+        this.calcPtFromScreenToWorld(screenPt, worldPt);
         return worldPt;
     }
+    
+    // In-place variants: the result goes into the caller's point, which
+    // is returned. A Point destination rounds to the nearest pixel.
+    public Point2D calcPtFromWorldToScreen(
+            Point2D worldPt, Point2D screenPt) {
+        return this.mCurXformFromWorldToScreen.transform(worldPt, screenPt);
+    }
+    
+    public Point2D calcPtFromScreenToWorld(
+            Point2D screenPt, Point2D worldPt) {
+        return this.mCurXformFromScreenToWorld.transform(screenPt, worldPt);
+    }
+    
+    // Bulk variants over packed (x, y) pairs, e.g. JSIPtCurve.getCoords(),
+    // vectorized for long runs. src and dst may be the same array.
+    public void calcPtsFromWorldToScreen(double[] src, int srcOffset, 
+            double[] dst, int dstOffset, int ptNum) {
+        JSICoordKernel.transform(this.mCurXformFromWorldToScreen, 
+                src, srcOffset, dst, dstOffset, ptNum);
+    }
+    
+    public void calcPtsFromScreenToWorld(double[] src, int srcOffset, 
+            double[] dst, int dstOffset, int ptNum) {
+        JSICoordKernel.transform(this.mCurXformFromScreenToWorld, 
+                src, srcOffset, dst, dstOffset, ptNum);
+    }
+    
+    // Bounds of the transformed rectangle, written into dst and returned
+    public Rectangle2D calcRectFromWorldToScreen(
+            Rectangle2D worldRect, Rectangle2D screenRect) {
+        return JSIXform.calcTransformedBounds(
+                this.mCurXformFromWorldToScreen, worldRect, screenRect);
+    }
+    
+    public Rectangle2D calcRectFromScreenToWorld(
+            Rectangle2D screenRect, Rectangle2D worldRect) {
+        return JSIXform.calcTransformedBounds(
+                this.mCurXformFromScreenToWorld, screenRect, worldRect);
+    }
+    
+    // Same result as at.createTransformedShape(src).getBounds2D(), or
+    // getBounds() for a Rectangle dst, without the intermediate path.
+    // The corners are the transformed min corner plus the images of the
+    // width and height vectors.
+    public static Rectangle2D calcTransformedBounds(
+            AffineTransform at, Rectangle2D src, Rectangle2D dst) {
+        double x = src.getMinX();
+        double y = src.getMinY();
+        double x0 = at.getScaleX() * x + at.getShearX() * y + 
+                at.getTranslateX();
+        double y0 = at.getShearY() * x + at.getScaleY() * y + 
+                at.getTranslateY();
+        double wx = at.getScaleX() * src.getWidth();
+        double wy = at.getShearY() * src.getWidth();
+        double hx = at.getShearX() * src.getHeight();
+        double hy = at.getScaleY() * src.getHeight();
+        double minX = x0 + Math.min(0.0, wx) + Math.min(0.0, hx);
+        double minY = y0 + Math.min(0.0, wy) + Math.min(0.0, hy);
+        double maxX = x0 + Math.max(0.0, wx) + Math.max(0.0, hx);
+        double maxY = y0 + Math.max(0.0, wy) + Math.max(0.0, hy);
+        dst.setRect(minX, minY, maxX - minX, maxY - minY);
+        return dst;
+    }
 
     public boolean translateTo(Point pt) {
         if (this.mStartScreenPt == null) {
             return false;
         }
         
+        // Both points are mapped by the transform at the drag start
+        this.mStartXformFromScreenToWorld.transform(
+                this.mStartScreenPt, this.mWorldPt0);
+        this.mStartXformFromScreenToWorld.transform(pt, this.mWorldPt1);
+        double dx = this.mWorldPt1.x - this.mWorldPt0.x;
+        double dy = this.mWorldPt1.y - this.mWorldPt0.y;
+        
         this.mCurXformFromWorldToScreen.setTransform(
                 this.mStartXformFromWorldToScreen);
-        this.updateCurXformFromScreenToWorld();
-        
-        Point2D.Double worldPt0 = 
-                this.calcPtFromScreenToWorld(this.mStartScreenPt);
-        Point2D.Double worldPt1 = this.calcPtFromScreenToWorld(pt);
-        double dx = worldPt1.x - worldPt0.x;
-        double dy = worldPt1.y - worldPt0.y;
-        
         this.mCurXformFromWorldToScreen.translate(dx, dy);
         this.updateCurXformFromScreenToWorld();
         
@@ -83,14 +173,14 @@ public class JSIXform {
         
         this.mCurXformFromWorldToScreen.setTransform(
                 this.mStartXformFromWorldToScreen);
-        this.updateCurXformFromScreenToWorld();
         
         double startAngle = this.calcAngleFromPivot(this.mStartScreenPt);
         double endAngle = this.calcAngleFromPivot(pt);
         double deltaAngle = endAngle - startAngle;
         
-        Point2D.Double worldPivotPt = 
-                this.calcPtFromScreenToWorld(JSIXform.PIVOT_PT);
+        Point2D.Double worldPivotPt = this.mWorldPt0;
+        this.mStartXformFromScreenToWorld.transform(
+                JSIXform.PIVOT_PT, worldPivotPt);
         
         this.mCurXformFromWorldToScreen.translate(
                 worldPivotPt.x, worldPivotPt.y);
@@ -116,10 +206,11 @@ public class JSIXform {
         
         this.mCurXformFromWorldToScreen.setTransform(
                 this.mStartXformFromWorldToScreen);
-        this.updateCurXformFromScreenToWorld();
         
         double startDistance = JSIXform.PIVOT_PT.distance(this.mStartScreenPt);
         if (startDistance < JSIXform.MIN_START_ARM_LENGTH_FOR_SCALING) {
+            this.mCurXformFromScreenToWorld.setTransform(
+                    this.mStartXformFromScreenToWorld);
             return false;
         }
         
@@ -130,8 +221,9 @@ public class JSIXform {
         double endAngle = this.calcAngleFromPivot(pt);
         double deltaAngle = endAngle - startAngle;
         
-        Point2D.Double worldPivotPt = 
-                this.calcPtFromScreenToWorld(JSIXform.PIVOT_PT);
+        Point2D.Double worldPivotPt = this.mWorldPt0;
+        this.mStartXformFromScreenToWorld.transform(
+                JSIXform.PIVOT_PT, worldPivotPt);
         
         this.mCurXformFromWorldToScreen.translate(
                 worldPivotPt.x, worldPivotPt.y);
@@ -0,0 +1,101 @@
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class JSICoordKernelTest {
+    
+    // General transforms, so every matrix term takes part
+    private static final AffineTransform[] XFORMS = {
+        new AffineTransform(1.3, 0.4, -0.7, 2.1, 15.5, -8.25),
+        new AffineTransform(0.001, -3.0, 3.0, 0.001, 1e6, -1e6),
+        new AffineTransform(-1.0, 1e-9, 2.5, 1.0, 0.0, 0.1)
+    };
+    
+    // Coordinates of mixed magnitudes, with space around them for offsets
+    private static double[] createCoords(int ptNum) {
+        double[] coords = new double[2 * ptNum + 6];
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = Math.sin(i * 1.7) * Math.pow(10.0, i % 7 - 2);
+        }
+        return coords;
+    }
+    
+    private static void assertBitwiseEquals(
+            double[] expected, double[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("coordinate " + i, 
+                    Double.doubleToLongBits(expected[i]), 
+                    Double.doubleToLongBits(actual[i]));
+        }
+    }
+    
+    // Runs of 32 points and more take the vector loop when the module is
+    // present, shorter ones and the tails take the scalar loop. All must
+    // round exactly like the JDK, between arrays and in place.
+    @Test
+    public void testTransformMatchesJdk() {
+        for (AffineTransform at : JSICoordKernelTest.XFORMS) {
+            for (int ptNum : new int[] { 0, 1, 7, 31, 32, 33, 100, 257 }) {
+                double[] src = JSICoordKernelTest.createCoords(ptNum);
+                for (int dstOffset = 0; dstOffset <= 6; dstOffset += 2) {
+                    double[] expected = new double[src.length];
+                    at.transform(src, 2, expected, dstOffset, ptNum);
+                    double[] actual = new double[src.length];
+                    JSICoordKernel.transform(
+                            at, src, 2, actual, dstOffset, ptNum);
+                    JSICoordKernelTest.assertBitwiseEquals(expected, actual);
+                    
+                    expected = src.clone();
+                    at.transform(expected, 2, expected, dstOffset, ptNum);
+                    actual = src.clone();
+                    JSICoordKernel.transform(
+                            at, actual, 2, actual, dstOffset, ptNum);
+                    JSICoordKernelTest.assertBitwiseEquals(expected, actual);
+                }
+            }
+        }
+    }
+    
+    // One long run against the same points done three at a time, which
+    // never reaches the vector loop
+    @Test
+    public void testVectorMatchesScalar() {
+        int ptNum = 1001;
+        double[] src = JSICoordKernelTest.createCoords(ptNum);
+        for (AffineTransform at : JSICoordKernelTest.XFORMS) {
+            double[] whole = new double[src.length];
+            JSICoordKernel.transform(at, src, 0, whole, 0, ptNum);
+            double[] pieces = new double[src.length];
+            for (int k = 0; k < ptNum; k += 3) {
+                JSICoordKernel.transform(at, 
+                        src, 2 * k, pieces, 2 * k, Math.min(3, ptNum - k));
+            }
+            JSICoordKernelTest.assertBitwiseEquals(pieces, whole);
+        }
+    }
+    
+    @Test
+    public void testCalcBounds() {
+        for (int ptNum : new int[] { 1, 5, 32, 63, 500 }) {
+            double[] coords = JSICoordKernelTest.createCoords(ptNum);
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < ptNum; k++) {
+                minX = Math.min(minX, coords[2 + 2 * k]);
+                minY = Math.min(minY, coords[2 + 2 * k + 1]);
+                maxX = Math.max(maxX, coords[2 + 2 * k]);
+                maxY = Math.max(maxY, coords[2 + 2 * k + 1]);
+            }
+            Rectangle2D bounds = JSICoordKernel.calcBounds(
+                    coords, 2, ptNum, new Rectangle2D.Double());
+            assertEquals(minX, bounds.getMinX(), 0.0);
+            assertEquals(minY, bounds.getMinY(), 0.0);
+            assertEquals(maxX - minX, bounds.getWidth(), 0.0);
+            assertEquals(maxY - minY, bounds.getHeight(), 0.0);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.awt.geom.Line2D;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JSICurveSimplifierTest {
+    
+    // Largest distance from an original point to the simplified polyline
+    private static double calcMaxDeviation(
+            double[] coords, int ptNum, double[] kept) {
+        double maxDist = 0.0;
+        for (int i = 0; i < ptNum; i++) {
+            double dist = Double.POSITIVE_INFINITY;
+            for (int k = 0; k + 3 < kept.length; k += 2) {
+                dist = Math.min(dist, Line2D.ptSegDist(
+                        kept[k], kept[k + 1], kept[k + 2], kept[k + 3],
+                        coords[2 * i], coords[2 * i + 1]));
+            }
+            maxDist = Math.max(maxDist, dist);
+        }
+        return maxDist;
+    }
+    
+    @Test
+    public void testCollinearPointsCollapse() {
+        double[] coords = { 0, 0, 1, 1, 2, 2, 3, 3, 10, 10 };
+        double[] kept = JSICurveSimplifier.simplify(coords, 5, 0.01);
+        assertArrayEquals(new double[] { 0, 0, 10, 10 }, kept, 0.0);
+    }
+    
+    // A corner sticking out further than the tolerance survives
+    @Test
+    public void testCornerIsKept() {
+        double[] coords = { 0, 0, 5, 2.6, 10, 5, 15, 2.4, 20, 0 };
+        double[] kept = JSICurveSimplifier.simplify(coords, 5, 1.0);
+        assertArrayEquals(new double[] { 0, 0, 10, 5, 20, 0 }, kept, 0.0);
+    }
+    
+    // Only the samples that fit in the capacity-padded array are read
+    @Test
+    public void testShortAndUntouchedInputsAreCopied() {
+        double[] coords = { 1, 2, 3, 4, 99, 99 };
+        assertArrayEquals(new double[] { 1, 2, 3, 4 },
+                JSICurveSimplifier.simplify(coords, 2, 5.0), 0.0);
+        double[] zigzag = { 0, 0, 1, 5, 2, 0, 3, 5 };
+        assertArrayEquals(zigzag,
+                JSICurveSimplifier.simplify(zigzag, 4, 0.0), 0.0);
+    }
+    
+    // A long wavy stroke keeps its end points and stays within the
+    // tolerance everywhere
+    @Test
+    public void testDeviationWithinTolerance() {
+        int ptNum = 2000;
+        double[] coords = new double[2 * ptNum];
+        for (int i = 0; i < ptNum; i++) {
+            coords[2 * i] = i * 0.5;
+            coords[2 * i + 1] = 20.0 * Math.sin(i * 0.01) +
+                    Math.sin(i * 0.7);
+        }
+        for (double tolerance : new double[] { 0.25, 1.0, 4.0 }) {
+            double[] kept = JSICurveSimplifier.simplify(
+                    coords, ptNum, tolerance);
+            assertTrue(kept.length < coords.length);
+            assertEquals(coords[0], kept[0], 0.0);
+            assertEquals(coords[2 * ptNum - 1], kept[kept.length - 1], 0.0);
+            assertTrue(JSICurveSimplifierTest.calcMaxDeviation(
+                    coords, ptNum, kept) <= tolerance);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JSICurveStoreTest {
+    
+    // A wobbly arc whose shape depends on the seed; coordinates are not
+    // round numbers, so any precision lost on disk shows
+    private static JSIPtCurve createArc(int ptNum, double seed) {
+        JSIPtCurve ptCurve = new JSIPtCurve(
+                new Point2D.Double(seed, -seed / 3.0), 
+                Color.BLACK, 
+                new BasicStroke(2f));
+        for (int i = 1; i < ptNum; i++) {
+            double a = i * 0.1 + seed;
+            double r = 100.0 + 7.3 * Math.sin(i * seed);
+            ptCurve.addPt(r * Math.cos(a), r * Math.sin(a));
+        }
+        ptCurve.buildLods();
+        return ptCurve;
+    }
+    
+    private static JSIPtCurve writeAndRead(
+            JSICurveStore store, JSIPtCurve ptCurve) throws IOException {
+        return store.readPtCurve(JSICurveStoreTest.toInput(
+                JSICurveStoreTest.write(store, ptCurve)));
+    }
+    
+    private static byte[] write(JSICurveStore store, JSIPtCurve ptCurve)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        store.writePtCurve(ptCurve, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+    
+    private static DataInputStream toInput(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+    
+    private static void assertSamePtCurve(
+            JSIPtCurve expected, JSIPtCurve actual) {
+        assertEquals(expected.getZOrder(), actual.getZOrder());
+        assertEquals(expected.getColor(), actual.getColor());
+        assertEquals(expected.getStroke(), actual.getStroke());
+        assertEquals(expected.getPtNum(), actual.getPtNum());
+        int coordNum = 2 * expected.getPtNum();
+        assertArrayEquals(
+                Arrays.copyOf(expected.getCoords(), coordNum), 
+                Arrays.copyOf(actual.getCoords(), coordNum), 
+                0.0);
+        assertTrue(expected.hasSameContent(actual));
+    }
+    
+    // Single points, short curves and curves long enough to have LODs,
+    // in translucent colors and every cap and join
+    @Test
+    public void testWriteReadIdentity() throws IOException {
+        JSICurveStore store = new JSICurveStore();
+        int[] ptNums = {1, 2, 3, 64, 500};
+        int[] caps = {
+            BasicStroke.CAP_BUTT, BasicStroke.CAP_ROUND, BasicStroke.CAP_SQUARE
+        };
+        int[] joins = {
+            BasicStroke.JOIN_MITER, BasicStroke.JOIN_ROUND, 
+            BasicStroke.JOIN_BEVEL
+        };
+        int n = 0;
+        for (int ptNum : ptNums) {
+            for (int cap : caps) {
+                for (int join : joins) {
+                    JSIPtCurve ptCurve = JSICurveStoreTest.createArc(
+                            ptNum, 0.37 * (n + 1))
+                            .withColor(new Color(40 * n % 256, 200, 17, 
+                                    128 + n))
+                            .withStroke(new BasicStroke(1.5f + n, cap, join));
+                    ptCurve.setZOrder(1000L + n);
+                    JSICurveStoreTest.assertSamePtCurve(ptCurve, 
+                            JSICurveStoreTest.writeAndRead(store, ptCurve));
+                    n++;
+                }
+            }
+        }
+        assertEquals(n, store.size());
+    }
+    
+    // Curves that differ only in style share one geometry record
+    @Test
+    public void testSameGeometryIsStoredOnce() throws IOException {
+        JSICurveStore store = new JSICurveStore();
+        JSIPtCurve ptCurve = JSICurveStoreTest.createArc(40, 1.0);
+        JSIPtCurve restyled = ptCurve.withColor(Color.RED).withStroke(
+                new BasicStroke(5f));
+        restyled.setZOrder(8L);
+        JSICurveStoreTest.writeAndRead(store, ptCurve);
+        long diskUsage = store.getDiskUsage();
+        JSIPtCurve read = JSICurveStoreTest.writeAndRead(store, restyled);
+        
+        assertEquals(1, store.size());
+        assertEquals(diskUsage, store.getDiskUsage());
+        JSICurveStoreTest.assertSamePtCurve(restyled, read);
+        
+        JSICurveStoreTest.writeAndRead(
+                store, JSICurveStoreTest.createArc(40, 2.0));
+        assertEquals(2, store.size());
+        assertTrue(store.getDiskUsage() > diskUsage);
+    }
+    
+    // A record lives as long as any reference to it, and the file shrinks
+    // once most of its records are released
+    @Test
+    public void testReleasedRecordsAreCompacted() throws IOException {
+        JSICurveStore store = new JSICurveStore();
+        ArrayList<byte[]> refs = new ArrayList<byte[]>();
+        ArrayList<byte[]> keptRefs = new ArrayList<byte[]>();
+        for (int i = 0; i < 200; i++) {
+            JSIPtCurve ptCurve = JSICurveStoreTest.createArc(500, 0.1 + i);
+            refs.add(JSICurveStoreTest.write(store, ptCurve));
+            if (i % 5 == 0) {
+                keptRefs.add(JSICurveStoreTest.write(store, ptCurve));
+            }
+        }
+        long diskUsage = store.getDiskUsage();
+        assertTrue(diskUsage > 1024L * 1024L);
+        assertEquals(200, store.size());
+        
+        for (byte[] ref : refs) {
+            store.releasePtCurve(JSICurveStoreTest.toInput(ref));
+        }
+        assertEquals(40, store.size());
+        assertTrue(store.getDiskUsage() <= diskUsage / 2L);
+        
+        // The moved records still read back, from disk once the written
+        // curves are collected
+        System.gc();
+        for (int i = 0; i < keptRefs.size(); i++) {
+            JSIPtCurve ptCurve = store.readPtCurve(
+                    JSICurveStoreTest.toInput(keptRefs.get(i)));
+            JSICurveStoreTest.assertSamePtCurve(
+                    JSICurveStoreTest.createArc(500, 0.1 + 5 * i), ptCurve);
+        }
+        for (byte[] ref : keptRefs) {
+            store.releasePtCurve(JSICurveStoreTest.toInput(ref));
+        }
+        assertEquals(0, store.size());
+        assertEquals(0L, store.getDiskUsage());
+    }
+    
+    // A released reference no longer reads, and writing the geometry
+    // again stores it anew
+    @Test
+    public void testReleasedGeometryIsWrittenAgain() throws IOException {
+        JSICurveStore store = new JSICurveStore();
+        JSIPtCurve ptCurve = JSICurveStoreTest.createArc(30, 4.2);
+        byte[] ref = JSICurveStoreTest.write(store, ptCurve);
+        store.releasePtCurve(JSICurveStoreTest.toInput(ref));
+        assertEquals(0, store.size());
+        boolean isRead = true;
+        try {
+            store.readPtCurve(JSICurveStoreTest.toInput(ref));
+        } catch (IOException ex) {
+            isRead = false;
+        }
+        assertFalse(isRead);
+        
+        JSICurveStoreTest.assertSamePtCurve(ptCurve, 
+                JSICurveStoreTest.writeAndRead(store, ptCurve));
+        assertEquals(1, store.size());
+    }
+}
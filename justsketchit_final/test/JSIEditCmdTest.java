@@ -0,0 +1,315 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// The test is the editor: it edits its document the way JSI does and
+// records what undo and redo invalidate
+public class JSIEditCmdTest implements JSIEditCmd.Editor {
+    
+    private JSIDocument mDocument = JSIDocument.EMPTY;
+    private final JSIRTree mPtCurveIndex = new JSIRTree();
+    private final JSICurveStore mCurveStore = new JSICurveStore();
+    private final ArrayList<JSIPtCurve> mInvalidated = 
+            new ArrayList<JSIPtCurve>();
+    private JSIEditCmd mCmd = null;
+    
+    @Override
+    public JSIDocument getDocument() {
+        return this.mDocument;
+    }
+    
+    @Override
+    public void setDocument(JSIDocument document) {
+        this.mDocument = document;
+    }
+    
+    @Override
+    public JSIRTree getPtCurveIndex() {
+        return this.mPtCurveIndex;
+    }
+    
+    @Override
+    public void invalidatePtCurve(JSIPtCurve ptCurve) {
+        this.mInvalidated.add(ptCurve);
+    }
+    
+    @Override
+    public void invalidatePtCurveSelection(JSIPtCurve ptCurve) {
+        this.mInvalidated.add(ptCurve);
+    }
+    
+    // A horizontal stroke at height id, so every curve has its own
+    // geometry
+    private static JSIPtCurve createPtCurve(int id) {
+        JSIPtCurve ptCurve = new JSIPtCurve(
+                new Point2D.Double(0.0, 10.0 * id), 
+                Color.BLACK, 
+                new BasicStroke(3f));
+        ptCurve.addPt(50.0, 10.0 * id);
+        ptCurve.addPt(100.0, 10.0 * id + 1.0);
+        ptCurve.setId(id);
+        ptCurve.setZOrder(id);
+        return ptCurve;
+    }
+    
+    private void begin() {
+        this.mCmd = new JSIEditCmd(this, this.mCurveStore, this.mDocument);
+    }
+    
+    private JSIEditCmd commit() {
+        JSIEditCmd cmd = this.mCmd;
+        cmd.setNewDocument(this.mDocument);
+        this.mCmd = null;
+        return cmd;
+    }
+    
+    private void add(JSIPtCurve ptCurve) {
+        this.mDocument = this.mDocument.withPtCurves(
+                this.mDocument.getPtCurves().insert(ptCurve));
+        this.mPtCurveIndex.insert(ptCurve);
+        this.mCmd.noteAdded(ptCurve);
+    }
+    
+    private void remove(JSIPtCurve ptCurve) {
+        this.mDocument = this.mDocument.withPtCurves(
+                this.mDocument.getPtCurves().remove(ptCurve));
+        this.mPtCurveIndex.remove(ptCurve);
+        this.mCmd.noteRemoved(ptCurve);
+    }
+    
+    private void select(JSIPtCurve ptCurve) {
+        this.mDocument = this.mDocument.withSelection(
+                this.mDocument.getSelection().add(ptCurve.getId()));
+        this.mCmd.noteSelected(ptCurve);
+    }
+    
+    private void deselect(JSIPtCurve ptCurve) {
+        this.mDocument = this.mDocument.withSelection(
+                this.mDocument.getSelection().remove(ptCurve.getId()));
+        this.mCmd.noteDeselected(ptCurve);
+    }
+    
+    // The edit as the history reads it back after a spill
+    private JSIEditCmd spill(JSIEditCmd cmd) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        cmd.writeTo(new DataOutputStream(bytes));
+        return JSIEditCmd.readFrom(
+                new DataInputStream(
+                        new ByteArrayInputStream(bytes.toByteArray())), 
+                this, 
+                this.mCurveStore);
+    }
+    
+    private void assertIndexMatchesDocument() {
+        assertEquals(this.mDocument.getPtCurves().size(), 
+                this.mPtCurveIndex.size());
+        for (JSIPtCurve ptCurve : this.mDocument.getPtCurves()) {
+            assertTrue(this.mPtCurveIndex.contains(ptCurve));
+        }
+    }
+    
+    // Undo and redo right after the edit swap the snapshots back in
+    @Test
+    public void testUndoRedoSwapsSnapshots() {
+        JSIPtCurve a = JSIEditCmdTest.createPtCurve(1);
+        JSIPtCurve b = JSIEditCmdTest.createPtCurve(2);
+        this.begin();
+        this.add(a);
+        this.add(b);
+        JSIEditCmd addCmd = this.commit();
+        JSIDocument added = this.mDocument;
+        this.begin();
+        this.remove(a);
+        this.select(b);
+        JSIEditCmd editCmd = this.commit();
+        JSIDocument edited = this.mDocument;
+        
+        editCmd.undo();
+        assertSame(added, this.mDocument);
+        this.assertIndexMatchesDocument();
+        addCmd.undo();
+        assertSame(JSIDocument.EMPTY, this.mDocument);
+        this.assertIndexMatchesDocument();
+        
+        this.mInvalidated.clear();
+        addCmd.redo();
+        editCmd.redo();
+        assertSame(edited, this.mDocument);
+        this.assertIndexMatchesDocument();
+        assertTrue(this.mInvalidated.contains(a));
+        assertTrue(this.mInvalidated.contains(b));
+    }
+    
+    // Read back from disk, an edit has new curve objects and no
+    // snapshots, and replays a restyle and a selection by z-order and ID
+    @Test
+    public void testReplayAfterReadBack() throws IOException {
+        JSIPtCurve a = JSIEditCmdTest.createPtCurve(1);
+        JSIPtCurve b = JSIEditCmdTest.createPtCurve(2);
+        this.begin();
+        this.add(a);
+        this.add(b);
+        this.commit();
+        JSIDocument before = this.mDocument;
+        this.begin();
+        this.remove(b);
+        this.add(b.withColor(Color.RED));
+        this.select(a);
+        JSIEditCmd cmd = this.spill(this.commit());
+        JSIDocument after = this.mDocument;
+        
+        cmd.undo();
+        assertTrue(before.hasSameContent(this.mDocument));
+        assertEquals(Color.BLACK, 
+                this.mDocument.getPtCurves().get(2L).getColor());
+        assertFalse(this.mDocument.getSelection().contains(1));
+        this.assertIndexMatchesDocument();
+        
+        cmd.redo();
+        assertTrue(after.hasSameContent(this.mDocument));
+        assertEquals(Color.RED, 
+                this.mDocument.getPtCurves().get(2L).getColor());
+        assertTrue(this.mDocument.getSelection().contains(1));
+        this.assertIndexMatchesDocument();
+    }
+    
+    // Small edits update the index curve by curve, large ones rebuild it;
+    // queries must find the same curves either way
+    @Test
+    public void testIndexFollowsSmallAndLargeEdits() throws IOException {
+        this.begin();
+        for (int id = 0; id < 40; id++) {
+            this.add(JSIEditCmdTest.createPtCurve(id));
+        }
+        JSIEditCmd addCmd = this.commit();
+        this.begin();
+        this.remove(this.mDocument.getPtCurves().get(7L));
+        JSIEditCmd removeCmd = this.spill(this.commit());
+        
+        removeCmd.undo();
+        this.assertIndexMatchesDocument();
+        addCmd.undo();
+        this.assertIndexMatchesDocument();
+        addCmd.redo();
+        removeCmd.redo();
+        this.assertIndexMatchesDocument();
+        
+        ArrayList<JSIPtCurve> hits = new ArrayList<JSIPtCurve>();
+        this.mPtCurveIndex.query(
+                new Rectangle2D.Double(40.0, 55.0, 20.0, 30.0), hits);
+        assertEquals(2, hits.size());
+        for (JSIPtCurve ptCurve : hits) {
+            long zOrder = ptCurve.getZOrder();
+            assertTrue(zOrder >= 6L && zOrder <= 8L && zOrder != 7L);
+        }
+    }
+    
+    // A replay that finds a curve already gone skips it instead of
+    // failing the whole edit
+    @Test
+    public void testReplaySkipsMissingCurve() throws IOException {
+        JSIPtCurve a = JSIEditCmdTest.createPtCurve(1);
+        JSIPtCurve b = JSIEditCmdTest.createPtCurve(2);
+        this.begin();
+        this.add(a);
+        this.add(b);
+        this.commit();
+        this.begin();
+        this.remove(a);
+        this.remove(b);
+        JSIEditCmd cmd = this.spill(this.commit());
+        cmd.undo();
+        
+        this.begin();
+        this.remove(this.mDocument.getPtCurves().get(1L));
+        this.commit();
+        cmd.redo();
+        assertTrue(this.mDocument.getPtCurves().isEmpty());
+        this.assertIndexMatchesDocument();
+    }
+    
+    // A merged edit undoes and redoes both edits as one step
+    @Test
+    public void testMergeKeepsNetChanges() {
+        JSIPtCurve a = JSIEditCmdTest.createPtCurve(1);
+        this.begin();
+        this.add(a);
+        JSIEditCmd cmd = this.commit();
+        this.begin();
+        this.remove(a);
+        this.add(a.withColor(Color.BLUE));
+        this.select(a);
+        assertTrue(cmd.mergeWith(this.commit()));
+        JSIDocument merged = this.mDocument;
+        
+        cmd.undo();
+        assertSame(JSIDocument.EMPTY, this.mDocument);
+        this.assertIndexMatchesDocument();
+        cmd.redo();
+        assertSame(merged, this.mDocument);
+        assertEquals(Color.BLUE, 
+                this.mDocument.getPtCurves().get(1L).getColor());
+        this.assertIndexMatchesDocument();
+    }
+    
+    // Restyling to the same style and selecting then deselecting change
+    // nothing, with snapshots and without
+    @Test
+    public void testNoOpEdits() throws IOException {
+        JSIPtCurve a = JSIEditCmdTest.createPtCurve(1);
+        this.begin();
+        this.add(a);
+        assertFalse(this.commit().isNoOp());
+        
+        this.begin();
+        this.remove(a);
+        this.add(a.withColor(Color.BLACK));
+        JSIEditCmd restyleCmd = this.commit();
+        assertTrue(restyleCmd.isNoOp());
+        assertTrue(this.spill(restyleCmd).isNoOp());
+        
+        a = this.mDocument.getPtCurves().get(1L);
+        this.begin();
+        this.select(a);
+        JSIEditCmd selectCmd = this.commit();
+        assertFalse(selectCmd.isNoOp());
+        this.begin();
+        this.deselect(a);
+        assertTrue(selectCmd.mergeWith(this.commit()));
+        assertTrue(selectCmd.isNoOp());
+        assertTrue(this.spill(selectCmd).isNoOp());
+    }
+    
+    // Releasing a spilled edit releases every curve it wrote, however
+    // many of its groups hold the curve
+    @Test
+    public void testReleaseFreesWrittenCurves() throws IOException {
+        JSIPtCurve a = JSIEditCmdTest.createPtCurve(1);
+        JSIPtCurve b = JSIEditCmdTest.createPtCurve(2);
+        this.begin();
+        this.add(a);
+        this.add(b);
+        this.select(b);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        this.commit().writeTo(new DataOutputStream(bytes));
+        assertEquals(2, this.mCurveStore.size());
+        
+        JSIEditCmd.releaseFrom(
+                new DataInputStream(
+                        new ByteArrayInputStream(bytes.toByteArray())), 
+                this.mCurveStore);
+        assertEquals(0, this.mCurveStore.size());
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JSIHistoryTest {
+    
+    // Adds a delta to a shared counter
+    private final class AddCmd implements JSICmd {
+        private final int[] mCounter;
+        private int mDelta;
+        
+        private AddCmd(int[] counter, int delta) {
+            this.mCounter = counter;
+            this.mDelta = delta;
+        }
+        
+        // Applies the command and returns it, ready to be pushed
+        private AddCmd apply() {
+            this.redo();
+            return this;
+        }
+        
+        @Override
+        public void undo() {
+            this.mCounter[0] -= this.mDelta;
+        }
+        
+        @Override
+        public void redo() {
+            this.mCounter[0] += this.mDelta;
+        }
+        
+        @Override
+        public boolean isNoOp() {
+            return this.mDelta == 0;
+        }
+        
+        @Override
+        public boolean mergeWith(JSICmd next) {
+            if (!(next instanceof AddCmd)) {
+                return false;
+            }
+            this.mDelta += ((AddCmd) next).mDelta;
+            return true;
+        }
+        
+        @Override
+        public long calcByteSize() {
+            return JSIHistoryTest.CMD_BYTE_SIZE;
+        }
+        
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeInt(this.mDelta);
+            JSIHistoryTest.this.mWrittenNum++;
+        }
+    }
+    
+    private static final long CMD_BYTE_SIZE = 100L;
+    
+    private final int[] mCounter = new int[1];
+    // Records the history wrote and released
+    private int mWrittenNum = 0;
+    private int mReleasedNum = 0;
+    
+    private JSIHistory createHistory(int maxDepth, long memoryBudget) {
+        return new JSIHistory(maxDepth, memoryBudget, new JSIHistory.Reader() {
+            @Override
+            public JSICmd read(DataInput in) throws IOException {
+                return new AddCmd(JSIHistoryTest.this.mCounter, in.readInt());
+            }
+            
+            @Override
+            public void release(DataInput in) throws IOException {
+                in.readInt();
+                JSIHistoryTest.this.mReleasedNum++;
+            }
+        });
+    }
+    
+    // A budget of a few commands forces most of them to disk; undo and
+    // redo page them back in and must replay every delta exactly.
+    @Test
+    public void testSpillAndPageIn() {
+        JSIHistory history = this.createHistory(
+                1000, 5L * JSIHistoryTest.CMD_BYTE_SIZE);
+        int sum = 0;
+        for (int i = 1; i <= 200; i++) {
+            history.push(new AddCmd(this.mCounter, i).apply());
+            sum += i;
+        }
+        assertEquals(sum, this.mCounter[0]);
+        assertTrue(history.getDiskUsage() > 0L);
+        assertTrue(history.getMemoryUsage() <= history.getMemoryBudget());
+        
+        for (int i = 200; i >= 1; i--) {
+            assertTrue(history.undo());
+            sum -= i;
+            assertEquals(sum, this.mCounter[0]);
+        }
+        assertFalse(history.undo());
+        assertEquals(0, this.mCounter[0]);
+        assertEquals(200, history.getRedoNum());
+        
+        while (history.redo()) {
+        }
+        assertEquals(200 * 201 / 2, this.mCounter[0]);
+        assertEquals(200, history.getUndoNum());
+        assertTrue(history.getMemoryUsage() <= history.getMemoryBudget());
+        history.clear();
+        assertEquals(this.mWrittenNum, this.mReleasedNum);
+    }
+    
+    @Test
+    public void testDepthLimit() {
+        JSIHistory history = this.createHistory(
+                10, JSIHistory.DEFAULT_MEMORY_BUDGET);
+        for (int i = 0; i < 15; i++) {
+            history.push(new AddCmd(this.mCounter, 1).apply());
+        }
+        assertEquals(10, history.getUndoNum());
+        assertEquals(5, history.getForgottenNum());
+        while (history.undo()) {
+        }
+        assertEquals(5, this.mCounter[0]);
+    }
+    
+    // Every written record is released once, whether its command is
+    // forgotten at the depth limit, dropped from the redo side or cleared
+    @Test
+    public void testWrittenRecordsAreReleased() {
+        JSIHistory history = this.createHistory(
+                50, 3L * JSIHistoryTest.CMD_BYTE_SIZE);
+        for (int i = 0; i < 80; i++) {
+            history.push(new AddCmd(this.mCounter, 1).apply());
+        }
+        assertEquals(30, history.getForgottenNum());
+        assertTrue(this.mReleasedNum > 0);
+        assertTrue(this.mReleasedNum < this.mWrittenNum);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(history.undo());
+        }
+        int releasedNum = this.mReleasedNum;
+        history.push(new AddCmd(this.mCounter, 2).apply());
+        assertTrue(this.mReleasedNum > releasedNum);
+        history.clear();
+        assertEquals(this.mWrittenNum, this.mReleasedNum);
+        assertEquals(0L, history.getDiskUsage());
+    }
+    
+    // A push after an undo drops the undone commands
+    @Test
+    public void testPushClearsRedo() {
+        JSIHistory history = this.createHistory(
+                100, JSIHistory.DEFAULT_MEMORY_BUDGET);
+        history.push(new AddCmd(this.mCounter, 1).apply());
+        history.push(new AddCmd(this.mCounter, 2).apply());
+        assertTrue(history.undo());
+        assertEquals(1, history.getRedoNum());
+        
+        history.push(new AddCmd(this.mCounter, 4).apply());
+        assertEquals(0, history.getRedoNum());
+        assertFalse(history.redo());
+        assertEquals(5, this.mCounter[0]);
+    }
+    
+    @Test
+    public void testMergeWithSameKey() {
+        JSIHistory history = this.createHistory(
+                100, JSIHistory.DEFAULT_MEMORY_BUDGET);
+        history.push(new AddCmd(this.mCounter, 1).apply(), "width");
+        history.push(new AddCmd(this.mCounter, 2).apply(), "width");
+        history.push(new AddCmd(this.mCounter, 4).apply(), "color");
+        assertEquals(2, history.getUndoNum());
+        
+        assertTrue(history.undo());
+        assertEquals(3, this.mCounter[0]);
+        assertTrue(history.undo());
+        assertEquals(0, this.mCounter[0]);
+        assertFalse(history.undo());
+    }
+    
+    // No-op commands are not recorded, and a merge that cancels out the
+    // last command drops it
+    @Test
+    public void testNoOpIsDropped() {
+        JSIHistory history = this.createHistory(
+                100, JSIHistory.DEFAULT_MEMORY_BUDGET);
+        history.push(new AddCmd(this.mCounter, 0).apply());
+        assertEquals(0, history.getUndoNum());
+        
+        history.push(new AddCmd(this.mCounter, 7).apply());
+        history.push(new AddCmd(this.mCounter, 3).apply(), "width");
+        history.push(new AddCmd(this.mCounter, -3).apply(), "width");
+        assertEquals(1, history.getUndoNum());
+        assertEquals(7, this.mCounter[0]);
+        
+        // The dropped entry cannot be merged into anymore
+        history.push(new AddCmd(this.mCounter, 5).apply(), "width");
+        assertEquals(2, history.getUndoNum());
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.ArrayList;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JSIInputRingTest {
+    
+    // Collects drained samples as "x,y@when"
+    private final ArrayList<String> mSamples = new ArrayList<String>();
+    
+    private void accept(int x, int y, long when) {
+        this.mSamples.add(x + "," + y + "@" + when);
+    }
+    
+    @Test
+    public void testDrainKeepsOrder() {
+        JSIInputRing ring = new JSIInputRing(8);
+        assertTrue(ring.isEmpty());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(ring.offer(i, -i, 100L + i));
+        }
+        assertFalse(ring.isEmpty());
+        assertEquals(5, ring.drainTo((x, y, when) -> this.accept(x, y, when)));
+        assertEquals("0,0@100", this.mSamples.get(0));
+        assertEquals("4,-4@104", this.mSamples.get(4));
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.drainTo((x, y, when) -> this.accept(x, y, when)));
+    }
+    
+    // A full ring refuses samples instead of overwriting old ones
+    @Test
+    public void testFullRingRefuses() {
+        JSIInputRing ring = new JSIInputRing(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i, i, i));
+        }
+        assertFalse(ring.offer(9, 9, 9L));
+        ring.drainTo((x, y, when) -> this.accept(x, y, when));
+        assertEquals(4, this.mSamples.size());
+        assertEquals("3,3@3", this.mSamples.get(3));
+        assertTrue(ring.offer(9, 9, 9L));
+    }
+    
+    // Only the newest sample is passed on, but all are consumed
+    @Test
+    public void testDrainLatest() {
+        JSIInputRing ring = new JSIInputRing(16);
+        for (int i = 0; i < 10; i++) {
+            ring.offer(i, i * 2, 1000L + i);
+        }
+        assertEquals(10, 
+                ring.drainLatestTo((x, y, when) -> this.accept(x, y, when)));
+        assertEquals(1, this.mSamples.size());
+        assertEquals("9,18@1009", this.mSamples.get(0));
+        assertTrue(ring.isEmpty());
+        assertEquals(0, 
+                ring.drainLatestTo((x, y, when) -> this.accept(x, y, when)));
+    }
+    
+    // Sequence numbers wrap around the slots many times
+    @Test
+    public void testWrapAround() {
+        JSIInputRing ring = new JSIInputRing(5);
+        long when = 0L;
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(ring.offer(round, i, when++));
+            }
+            this.mSamples.clear();
+            ring.drainTo((x, y, w) -> this.accept(x, y, w));
+            assertEquals(round + ",2@" + (when - 1), this.mSamples.get(2));
+        }
+    }
+}
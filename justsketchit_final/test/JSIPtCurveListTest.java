@@ -0,0 +1,129 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JSIPtCurveListTest {
+    
+    private static JSIPtCurve createPtCurve(long zOrder) {
+        JSIPtCurve ptCurve = new JSIPtCurve(
+                new Point2D.Double(zOrder, 0.0), 
+                Color.BLACK, 
+                new BasicStroke(2f));
+        ptCurve.addPt(zOrder, 10.0);
+        ptCurve.setZOrder(zOrder);
+        return ptCurve;
+    }
+    
+    private static ArrayList<Long> getZOrders(JSIPtCurveList list) {
+        ArrayList<Long> zOrders = new ArrayList<Long>();
+        for (JSIPtCurve ptCurve : list) {
+            zOrders.add(ptCurve.getZOrder());
+        }
+        return zOrders;
+    }
+    
+    // Curves come out in z-order whatever order they went in
+    @Test
+    public void testIteratesInZOrder() {
+        JSIPtCurveList list = JSIPtCurveList.EMPTY;
+        ArrayList<Long> expected = new ArrayList<Long>();
+        for (long i = 0; i < 500; i++) {
+            // A permutation of 0..499, as 7 and 500 are coprime
+            list = list.insert(JSIPtCurveListTest.createPtCurve(i * 7 % 500));
+            expected.add(i);
+        }
+        assertEquals(500, list.size());
+        assertEquals(expected, JSIPtCurveListTest.getZOrders(list));
+    }
+    
+    @Test
+    public void testInsertReplacesSameZOrder() {
+        JSIPtCurve a = JSIPtCurveListTest.createPtCurve(5L);
+        JSIPtCurve b = JSIPtCurveListTest.createPtCurve(5L);
+        JSIPtCurveList list = JSIPtCurveList.EMPTY.insert(a).insert(b);
+        assertEquals(1, list.size());
+        assertTrue(list.contains(b));
+        assertFalse(list.contains(a));
+    }
+    
+    // Removal goes by z-order, so a restyled copy removes its original
+    @Test
+    public void testRemove() {
+        JSIPtCurveList list = JSIPtCurveList.EMPTY;
+        for (long i = 0; i < 100; i++) {
+            list = list.insert(JSIPtCurveListTest.createPtCurve(i));
+        }
+        for (long i = 0; i < 100; i += 3) {
+            list = list.remove(JSIPtCurveListTest.createPtCurve(i));
+        }
+        assertEquals(66, list.size());
+        for (long zOrder : JSIPtCurveListTest.getZOrders(list)) {
+            assertTrue(zOrder % 3 != 0);
+        }
+        JSIPtCurveList same = list.remove(
+                JSIPtCurveListTest.createPtCurve(300L));
+        assertSame(list, same);
+        
+        for (long i = 0; i < 100; i++) {
+            list = list.remove(JSIPtCurveListTest.createPtCurve(i));
+        }
+        assertTrue(list.isEmpty());
+        assertFalse(list.iterator().hasNext());
+    }
+    
+    // Edits leave the versions they started from intact
+    @Test
+    public void testOldVersionsAreKept() {
+        JSIPtCurve a = JSIPtCurveListTest.createPtCurve(1L);
+        JSIPtCurve b = JSIPtCurveListTest.createPtCurve(2L);
+        JSIPtCurveList ab = JSIPtCurveList.EMPTY.insert(a).insert(b);
+        JSIPtCurveList bOnly = ab.remove(a);
+        JSIPtCurveList abc = ab.insert(JSIPtCurveListTest.createPtCurve(3L));
+        assertEquals(2, ab.size());
+        assertTrue(ab.contains(a));
+        assertEquals(1, bOnly.size());
+        assertFalse(bOnly.contains(a));
+        assertEquals(3, abc.size());
+        assertTrue(abc.contains(a) && abc.contains(b));
+    }
+    
+    @Test
+    public void testGet() {
+        JSIPtCurve a = JSIPtCurveListTest.createPtCurve(10L);
+        JSIPtCurveList list = JSIPtCurveList.EMPTY
+                .insert(JSIPtCurveListTest.createPtCurve(3L))
+                .insert(a);
+        assertSame(a, list.get(10L));
+        assertNull(list.get(4L));
+    }
+    
+    // Lists built in different orders, from equal but distinct curves,
+    // have the same content
+    @Test
+    public void testHasSameContent() {
+        JSIPtCurveList forward = JSIPtCurveList.EMPTY;
+        JSIPtCurveList backward = JSIPtCurveList.EMPTY;
+        for (long i = 0; i < 100; i++) {
+            forward = forward.insert(JSIPtCurveListTest.createPtCurve(i));
+            backward = backward.insert(
+                    JSIPtCurveListTest.createPtCurve(99L - i));
+        }
+        assertTrue(forward.hasSameContent(backward));
+        assertEquals(forward.getContentHash(), backward.getContentHash());
+        
+        JSIPtCurve moved = JSIPtCurveListTest.createPtCurve(50L);
+        moved.addPt(70.0, 70.0);
+        assertFalse(forward.hasSameContent(forward.insert(moved)));
+        assertFalse(forward.hasSameContent(forward.remove(moved)));
+        assertTrue(forward.hasSameContent(
+                forward.remove(moved).insert(
+                        JSIPtCurveListTest.createPtCurve(50L))));
+    }
+}
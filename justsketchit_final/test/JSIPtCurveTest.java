@@ -0,0 +1,89 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JSIPtCurveTest {
+    
+    // A slow spiral with many samples, which simplifies well
+    private static JSIPtCurve createSpiral(int ptNum) {
+        JSIPtCurve ptCurve = new JSIPtCurve(
+                new Point2D.Double(0.0, 0.0), 
+                Color.BLACK, 
+                new BasicStroke(2f));
+        for (int i = 1; i < ptNum; i++) {
+            double r = 0.05 * i;
+            ptCurve.addPt(r * Math.cos(i * 0.02), r * Math.sin(i * 0.02));
+        }
+        return ptCurve;
+    }
+    
+    // Largest distance from a point of the full curve to the polyline of
+    // the given level of detail
+    private static double calcMaxDeviation(JSIPtCurve ptCurve, int lod) {
+        double[] lodCoords = ptCurve.getLodCoords(lod);
+        int lodPtNum = ptCurve.getLodPtNum(lod);
+        double maxDist = 0.0;
+        for (int i = 0; i < ptCurve.getPtNum(); i++) {
+            double dist = Double.POSITIVE_INFINITY;
+            for (int k = 0; k + 1 < lodPtNum; k++) {
+                dist = Math.min(dist, Line2D.ptSegDist(
+                        lodCoords[2 * k], lodCoords[2 * k + 1],
+                        lodCoords[2 * k + 2], lodCoords[2 * k + 3],
+                        ptCurve.getX(i), ptCurve.getY(i)));
+            }
+            maxDist = Math.max(maxDist, dist);
+        }
+        return maxDist;
+    }
+    
+    @Test
+    public void testUnfinishedCurveHasOnlyFullDetail() {
+        JSIPtCurve ptCurve = JSIPtCurveTest.createSpiral(500);
+        assertEquals(-1, ptCurve.findLod(1000.0));
+        assertEquals(500, ptCurve.getLodPtNum(-1));
+        assertSame(ptCurve.getCoords(), ptCurve.getLodCoords(-1));
+    }
+    
+    // Coarser levels have fewer points, and the level chosen for an error
+    // budget never deviates from the curve by more than that budget
+    @Test
+    public void testLodChoiceRespectsMaxError() {
+        JSIPtCurve ptCurve = JSIPtCurveTest.createSpiral(3000);
+        ptCurve.buildLods();
+        int coarsestLod = ptCurve.findLod(Double.POSITIVE_INFINITY);
+        assertTrue(coarsestLod > 0);
+        assertEquals(-1, ptCurve.findLod(0.0));
+        
+        int prevPtNum = ptCurve.getPtNum();
+        for (int lod = 0; lod <= coarsestLod; lod++) {
+            assertTrue(ptCurve.getLodPtNum(lod) < prevPtNum);
+            prevPtNum = ptCurve.getLodPtNum(lod);
+        }
+        
+        int prevLod = -1;
+        for (double maxError = 0.01; maxError < 200.0; maxError *= 1.5) {
+            int lod = ptCurve.findLod(maxError);
+            assertTrue(lod >= prevLod);
+            assertTrue(JSIPtCurveTest.calcMaxDeviation(ptCurve, lod) <= 
+                    maxError);
+            prevLod = lod;
+        }
+    }
+    
+    // Nothing to drop from a two-point stroke
+    @Test
+    public void testShortCurveHasNoLods() {
+        JSIPtCurve ptCurve = new JSIPtCurve(
+                new Point2D.Double(0.0, 0.0), 
+                Color.BLACK, 
+                new BasicStroke(2f));
+        ptCurve.addPt(100.0, 50.0);
+        ptCurve.buildLods();
+        assertEquals(-1, ptCurve.findLod(Double.POSITIVE_INFINITY));
+    }
+}
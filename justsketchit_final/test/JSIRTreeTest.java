@@ -0,0 +1,135 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashSet;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JSIRTreeTest {
+    
+    // Curves sit one per cell of a grid of CELL_SIZE squares, well inside
+    // their cell, so a query whose edges lie on cell borders hits exactly
+    // the curves of the cells it covers
+    private static final int GRID_SIZE = 30;
+    private static final double CELL_SIZE = 100.0;
+    
+    private final JSIPtCurve[][] mPtCurves = 
+            new JSIPtCurve[JSIRTreeTest.GRID_SIZE][JSIRTreeTest.GRID_SIZE];
+    
+    public JSIRTreeTest() {
+        for (int i = 0; i < JSIRTreeTest.GRID_SIZE; i++) {
+            for (int j = 0; j < JSIRTreeTest.GRID_SIZE; j++) {
+                double x = i * JSIRTreeTest.CELL_SIZE;
+                double y = j * JSIRTreeTest.CELL_SIZE;
+                JSIPtCurve ptCurve = new JSIPtCurve(
+                        new Point2D.Double(x + 20.0, y + 30.0), 
+                        Color.BLACK, 
+                        new BasicStroke(2f));
+                ptCurve.addPt(x + 50.0, y + 70.0);
+                ptCurve.addPt(x + 80.0, y + 40.0);
+                this.mPtCurves[i][j] = ptCurve;
+            }
+        }
+    }
+    
+    private ArrayList<JSIPtCurve> getPtCurves() {
+        ArrayList<JSIPtCurve> ptCurves = new ArrayList<JSIPtCurve>();
+        for (JSIPtCurve[] column : this.mPtCurves) {
+            for (JSIPtCurve ptCurve : column) {
+                ptCurves.add(ptCurve);
+            }
+        }
+        return ptCurves;
+    }
+    
+    // Checks the query over cells [i0, i1) x [j0, j1), skipping the
+    // curves of removed columns
+    private void assertQuery(JSIRTree tree, 
+            int i0, int j0, int i1, int j1, boolean isOddColumnRemoved) {
+        ArrayList<JSIPtCurve> hits = new ArrayList<JSIPtCurve>();
+        tree.query(new Rectangle2D.Double(
+                i0 * JSIRTreeTest.CELL_SIZE, 
+                j0 * JSIRTreeTest.CELL_SIZE, 
+                (i1 - i0) * JSIRTreeTest.CELL_SIZE, 
+                (j1 - j0) * JSIRTreeTest.CELL_SIZE), 
+                hits);
+        HashSet<JSIPtCurve> expected = new HashSet<JSIPtCurve>();
+        int n = JSIRTreeTest.GRID_SIZE;
+        for (int i = Math.max(0, i0); i < Math.min(i1, n); i++) {
+            for (int j = Math.max(0, j0); j < Math.min(j1, n); j++) {
+                if (!isOddColumnRemoved || i % 2 == 0) {
+                    expected.add(this.mPtCurves[i][j]);
+                }
+            }
+        }
+        assertEquals(expected.size(), hits.size());
+        assertEquals(expected, new HashSet<JSIPtCurve>(hits));
+    }
+    
+    private void assertQueries(JSIRTree tree, boolean isOddColumnRemoved) {
+        int n = JSIRTreeTest.GRID_SIZE;
+        for (int i0 = -2; i0 < n; i0 += 3) {
+            for (int j0 = -1; j0 < n; j0 += 4) {
+                this.assertQuery(tree, i0, j0, i0 + 1, j0 + 1, 
+                        isOddColumnRemoved);
+                this.assertQuery(tree, i0, j0, i0 + 7, j0 + 3, 
+                        isOddColumnRemoved);
+            }
+        }
+        this.assertQuery(tree, -5, -5, n + 5, n + 5, isOddColumnRemoved);
+    }
+    
+    @Test
+    public void testBulkLoadedQueries() {
+        JSIRTree tree = new JSIRTree();
+        tree.bulkLoad(this.getPtCurves());
+        assertEquals(JSIRTreeTest.GRID_SIZE * JSIRTreeTest.GRID_SIZE, 
+                tree.size());
+        this.assertQueries(tree, false);
+    }
+    
+    // Removing every other column empties and condenses many nodes
+    @Test
+    public void testInsertRemoveQueries() {
+        JSIRTree tree = new JSIRTree();
+        for (JSIPtCurve ptCurve : this.getPtCurves()) {
+            tree.insert(ptCurve);
+        }
+        this.assertQueries(tree, false);
+        for (int i = 1; i < JSIRTreeTest.GRID_SIZE; i += 2) {
+            for (JSIPtCurve ptCurve : this.mPtCurves[i]) {
+                assertTrue(tree.remove(ptCurve));
+                assertFalse(tree.contains(ptCurve));
+            }
+        }
+        assertEquals(JSIRTreeTest.GRID_SIZE * JSIRTreeTest.GRID_SIZE / 2, 
+                tree.size());
+        this.assertQueries(tree, true);
+        assertFalse(tree.remove(this.mPtCurves[1][1]));
+    }
+    
+    // A bulk load replaces what the tree held before
+    @Test
+    public void testBulkLoadReplacesContents() {
+        JSIRTree tree = new JSIRTree();
+        tree.insert(this.mPtCurves[3][3]);
+        ArrayList<JSIPtCurve> ptCurves = new ArrayList<JSIPtCurve>();
+        for (int i = 0; i < JSIRTreeTest.GRID_SIZE; i += 2) {
+            for (JSIPtCurve ptCurve : this.mPtCurves[i]) {
+                ptCurves.add(ptCurve);
+            }
+        }
+        tree.bulkLoad(ptCurves);
+        assertFalse(tree.contains(this.mPtCurves[3][3]));
+        this.assertQueries(tree, true);
+        tree.clear();
+        assertEquals(0, tree.size());
+        ArrayList<JSIPtCurve> hits = new ArrayList<JSIPtCurve>();
+        tree.query(new Rectangle2D.Double(-1.0, -1.0, 1e6, 1e6), hits);
+        assertTrue(hits.isEmpty());
+    }
+}
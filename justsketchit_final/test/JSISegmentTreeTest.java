@@ -0,0 +1,88 @@
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JSISegmentTreeTest {
+    
+    // A staircase of ptNum points: right 10, up 10, right 10, ...
+    private static double[] createStaircase(int ptNum) {
+        double[] coords = new double[2 * ptNum];
+        for (int i = 0; i < ptNum; i++) {
+            coords[2 * i] = 10.0 * ((i + 1) / 2);
+            coords[2 * i + 1] = 10.0 * (i / 2);
+        }
+        return coords;
+    }
+    
+    @Test
+    public void testHasPtIn() {
+        double[] coords = JSISegmentTreeTest.createStaircase(1000);
+        JSISegmentTree tree = new JSISegmentTree(coords, 1000);
+        // Corner (2500, 2490) is point 499
+        assertTrue(tree.hasPtIn(new Ellipse2D.Double(2495, 2485, 10, 10)));
+        // On the stairs but between two corners
+        assertFalse(tree.hasPtIn(new Ellipse2D.Double(2502, 2487, 6, 6)));
+        assertFalse(tree.hasPtIn(new Rectangle2D.Double(-50, 100, 40, 40)));
+        // A box containing whole leaves
+        assertTrue(tree.hasPtIn(new Rectangle2D.Double(-1, -1, 5000, 5000)));
+    }
+    
+    // A rectangle crossing a segment intersects it even with no sample
+    // point inside
+    @Test
+    public void testIntersects() {
+        double[] coords = JSISegmentTreeTest.createStaircase(1000);
+        JSISegmentTree tree = new JSISegmentTree(coords, 1000);
+        Rectangle2D crossing = new Rectangle2D.Double(3002, 2998, 4, 4);
+        assertFalse(tree.hasPtIn(crossing));
+        assertTrue(tree.intersects(crossing));
+        assertFalse(tree.intersects(
+                new Rectangle2D.Double(3002, 3002, 4, 4)));
+    }
+    
+    // The nearest segment agrees with a linear scan
+    @Test
+    public void testFindNearestSegment() {
+        int ptNum = 777;
+        double[] coords = JSISegmentTreeTest.createStaircase(ptNum);
+        JSISegmentTree tree = new JSISegmentTree(coords, ptNum);
+        for (double x = -20.0; x < 4000.0; x += 37.3) {
+            double y = x + 3.1;
+            int expected = -1;
+            double bestDist = 15.0;
+            for (int i = 0; i + 1 < ptNum; i++) {
+                double dist = Line2D.ptSegDist(
+                        coords[2 * i], coords[2 * i + 1],
+                        coords[2 * i + 2], coords[2 * i + 3], x, y);
+                if (dist < bestDist) {
+                    bestDist = dist;
+                    expected = i;
+                }
+            }
+            int actual = tree.findNearestSegment(x, y, 15.0);
+            if (expected < 0) {
+                assertEquals(-1, actual);
+            } else {
+                assertEquals(bestDist, Line2D.ptSegDist(
+                        coords[2 * actual], coords[2 * actual + 1],
+                        coords[2 * actual + 2], coords[2 * actual + 3], 
+                        x, y), 1e-12);
+            }
+        }
+    }
+    
+    // A curve of one sample still answers point queries
+    @Test
+    public void testSinglePoint() {
+        JSISegmentTree tree = new JSISegmentTree(new double[] { 5, 5 }, 1);
+        assertTrue(tree.hasPtIn(new Rectangle2D.Double(4, 4, 2, 2)));
+        assertFalse(tree.intersects(new Rectangle2D.Double(4, 4, 2, 2)));
+        assertEquals(-1, tree.findNearestSegment(5, 5, 100.0));
+        JSISegmentTree empty = new JSISegmentTree(new double[0], 0);
+        assertFalse(empty.hasPtIn(new Rectangle2D.Double(4, 4, 2, 2)));
+    }
+}
@@ -0,0 +1,99 @@
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JSISelectionBoxTest {
+    
+    private static int calcArea(ArrayList<Rectangle> rects) {
+        int area = 0;
+        for (Rectangle r : rects) {
+            area += r.width * r.height;
+        }
+        return area;
+    }
+    
+    // The pieces must not overlap each other or the other box, and must
+    // together cover exactly the area of a minus b
+    private static void assertPartition(
+            ArrayList<Rectangle> rects, Rectangle a, Rectangle b) {
+        for (int i = 0; i < rects.size(); i++) {
+            Rectangle r = rects.get(i);
+            assertFalse(r.isEmpty());
+            assertTrue(a.contains(r));
+            assertFalse(r.intersects(b));
+            for (int j = i + 1; j < rects.size(); j++) {
+                assertFalse(r.intersects(rects.get(j)));
+            }
+        }
+        Rectangle overlap = a.intersection(b);
+        int overlapArea = overlap.isEmpty() ? 
+                0 : overlap.width * overlap.height;
+        assertEquals(a.width * a.height - overlapArea, 
+                JSISelectionBoxTest.calcArea(rects));
+    }
+    
+    @Test
+    public void testGrowingBoxOnlyGains() {
+        JSISelectionBox box = new JSISelectionBox(new Point(10, 10));
+        box.update(new Point(50, 40));
+        Rectangle prev = new Rectangle(box);
+        box.update(new Point(60, 45));
+        
+        ArrayList<Rectangle> gained = box.calcGainedRects();
+        JSISelectionBoxTest.assertPartition(gained, box, prev);
+        // A band on the right and a band along the bottom
+        assertEquals(2, gained.size());
+        assertTrue(box.calcLostRects().isEmpty());
+    }
+    
+    @Test
+    public void testShrinkingBoxOnlyLoses() {
+        JSISelectionBox box = new JSISelectionBox(new Point(10, 10));
+        box.update(new Point(60, 60));
+        Rectangle prev = new Rectangle(box);
+        box.update(new Point(30, 60));
+        
+        assertTrue(box.calcGainedRects().isEmpty());
+        ArrayList<Rectangle> lost = box.calcLostRects();
+        JSISelectionBoxTest.assertPartition(lost, prev, box);
+        assertEquals(new Rectangle(30, 10, 30, 50), lost.get(0));
+    }
+    
+    // Dragging across the anchor flips the box to the other side, so
+    // the old and the new box do not overlap at all
+    @Test
+    public void testFlipAcrossAnchor() {
+        JSISelectionBox box = new JSISelectionBox(new Point(100, 100));
+        box.update(new Point(130, 120));
+        Rectangle prev = new Rectangle(box);
+        box.update(new Point(70, 80));
+        
+        assertEquals(new Rectangle(70, 80, 30, 20), box);
+        ArrayList<Rectangle> gained = box.calcGainedRects();
+        ArrayList<Rectangle> lost = box.calcLostRects();
+        assertEquals(1, gained.size());
+        assertEquals(1, lost.size());
+        JSISelectionBoxTest.assertPartition(gained, box, prev);
+        JSISelectionBoxTest.assertPartition(lost, prev, box);
+    }
+    
+    // Moving the far corner diagonally gains and loses L-shaped areas
+    @Test
+    public void testDiagonalMove() {
+        JSISelectionBox box = new JSISelectionBox(new Point(0, 0));
+        for (int i = 1; i <= 20; i++) {
+            Rectangle prev = new Rectangle(box);
+            box.update(new Point(
+                    (int) (40 + 30 * Math.cos(i)), 
+                    (int) (40 + 30 * Math.sin(i))));
+            JSISelectionBoxTest.assertPartition(
+                    box.calcGainedRects(), box, prev);
+            JSISelectionBoxTest.assertPartition(
+                    box.calcLostRects(), prev, box);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JSISelectionTest {
+    
+    // IDs on both sides of every word, leaf and trie level boundary
+    private static final int[] EDGE_IDS = {
+        0, 1, 63, 64, 2047, 2048, 65535, 65536, 2097151, 2097152, 
+        Integer.MAX_VALUE
+    };
+    
+    @Test
+    public void testEdgeIds() {
+        JSISelection selection = JSISelection.EMPTY;
+        for (int id : JSISelectionTest.EDGE_IDS) {
+            selection = selection.add(id);
+        }
+        assertEquals(JSISelectionTest.EDGE_IDS.length, selection.size());
+        for (int id : JSISelectionTest.EDGE_IDS) {
+            assertTrue(selection.contains(id));
+        }
+        assertFalse(selection.contains(2));
+        assertFalse(selection.contains(2049));
+        assertFalse(selection.contains(65537));
+        assertFalse(selection.contains(-1));
+        
+        for (int id : JSISelectionTest.EDGE_IDS) {
+            selection = selection.remove(id);
+            assertFalse(selection.contains(id));
+        }
+        assertTrue(selection.isEmpty());
+        assertEquals(0, selection.size());
+    }
+    
+    // Toggling every multiple of 3 and then every multiple of 5 leaves
+    // the IDs that are multiples of exactly one of them
+    @Test
+    public void testToggle() {
+        JSISelection selection = JSISelection.EMPTY;
+        for (int id = 0; id < 10000; id += 3) {
+            selection = selection.toggle(id);
+        }
+        for (int id = 0; id < 10000; id += 5) {
+            selection = selection.toggle(id);
+        }
+        int size = 0;
+        for (int id = 0; id < 10005; id++) {
+            boolean expected = (id < 10000) && 
+                    ((id % 3 == 0) != (id % 5 == 0));
+            assertEquals(expected, selection.contains(id));
+            size += expected ? 1 : 0;
+        }
+        assertEquals(size, selection.size());
+    }
+    
+    // Edits leave the versions they started from intact
+    @Test
+    public void testOldVersionsAreKept() {
+        JSISelection a = JSISelection.EMPTY.add(10).add(5000);
+        JSISelection b = a.remove(10).add(70000);
+        assertEquals(2, a.size());
+        assertTrue(a.contains(10));
+        assertFalse(a.contains(70000));
+        assertEquals(2, b.size());
+        assertFalse(b.contains(10));
+        assertTrue(b.contains(5000) && b.contains(70000));
+    }
+    
+    @Test
+    public void testUnchangedSelectionIsReturned() {
+        JSISelection selection = JSISelection.EMPTY.add(3);
+        assertSame(selection, selection.add(3));
+        assertSame(selection, selection.remove(4));
+        assertSame(selection, selection.add(-1));
+        assertSame(JSISelection.EMPTY, selection.remove(3));
+    }
+    
+    // Equal sets reached by different edits compare equal, including
+    // ID 0 and sets left with empty nodes by removals
+    @Test
+    public void testHasSameContent() {
+        JSISelection a = JSISelection.EMPTY.add(0).add(5).add(100000);
+        JSISelection b = JSISelection.EMPTY.add(100000).add(7).add(5)
+                .remove(7).add(0);
+        assertTrue(a.hasSameContent(b));
+        assertEquals(a.getContentHash(), b.getContentHash());
+        
+        JSISelection withoutZero = a.remove(0);
+        assertFalse(a.hasSameContent(withoutZero));
+        assertFalse(a.getContentHash() == withoutZero.getContentHash());
+        
+        JSISelection small = JSISelection.EMPTY.add(5).add(0);
+        JSISelection shrunk = a.remove(100000);
+        assertTrue(small.hasSameContent(shrunk));
+        assertTrue(shrunk.hasSameContent(small));
+    }
+    
+    @Test
+    public void testForEachIdIsAscending() {
+        JSISelection selection = JSISelection.EMPTY;
+        for (int i = JSISelectionTest.EDGE_IDS.length - 1; i >= 0; i--) {
+            selection = selection.add(JSISelectionTest.EDGE_IDS[i]);
+        }
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        selection.forEachId(id -> ids.add(id));
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (int id : JSISelectionTest.EDGE_IDS) {
+            expected.add(id);
+        }
+        assertEquals(expected, ids);
+    }
+}
@@ -0,0 +1,71 @@
+import java.awt.geom.AffineTransform;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JSITileGridTest {
+    
+    private static AffineTransform createXform(
+            double scale, double theta, double tx, double ty) {
+        AffineTransform at = AffineTransform.getTranslateInstance(tx, ty);
+        at.rotate(theta);
+        at.scale(scale, scale);
+        return at;
+    }
+    
+    // A pan by whole pixels keeps the grid, so cached tiles are reused
+    @Test
+    public void testWholePixelPanSharesGrid() {
+        JSITileGrid grid = new JSITileGrid(
+                JSITileGridTest.createXform(1.5, 0.3, 10.25, -3.5));
+        JSITileGrid panned = new JSITileGrid(
+                JSITileGridTest.createXform(1.5, 0.3, 17.25, 40.5));
+        assertTrue(grid.equals(panned));
+        assertEquals(grid.hashCode(), panned.hashCode());
+        assertEquals(10, JSITileGrid.calcOffset(10.25));
+        assertEquals(17, JSITileGrid.calcOffset(17.25));
+        assertEquals(-4, JSITileGrid.calcOffset(-3.5));
+    }
+    
+    // Phases are rounded to 1/64 pixel, so translation noise well below
+    // that does not split the grid, while a real sub-pixel shift does
+    @Test
+    public void testPhaseQuantization() {
+        JSITileGrid grid = new JSITileGrid(
+                AffineTransform.getTranslateInstance(5.25, 0.0));
+        JSITileGrid noisy = new JSITileGrid(
+                AffineTransform.getTranslateInstance(5.25 + 1e-9, -1e-9));
+        JSITileGrid shifted = new JSITileGrid(
+                AffineTransform.getTranslateInstance(5.25 + 1.0 / 64.0, 0.0));
+        assertTrue(grid.equals(noisy));
+        assertFalse(grid.equals(shifted));
+    }
+    
+    // A phase that rounds up to a whole pixel becomes phase 0 of the next
+    // pixel, so the offset and the phase still add up to the translation
+    @Test
+    public void testPhaseWrapsToNextPixel() {
+        double tx = 7.0 - 1e-6;
+        assertEquals(7, JSITileGrid.calcOffset(tx));
+        assertTrue(new JSITileGrid(
+                AffineTransform.getTranslateInstance(tx, 0.0)).equals(
+                new JSITileGrid(new AffineTransform())));
+        AffineTransform worldToGrid = new JSITileGrid(
+                AffineTransform.getTranslateInstance(-2.75, 0.0))
+                .createWorldToGridXform();
+        assertEquals(0.25, worldToGrid.getTranslateX(), 0.0);
+        assertEquals(-3, JSITileGrid.calcOffset(-2.75));
+    }
+    
+    @Test
+    public void testZoomAndRotationSplitGrid() {
+        JSITileGrid grid = new JSITileGrid(
+                JSITileGridTest.createXform(2.0, 0.0, 0.0, 0.0));
+        assertFalse(grid.equals(new JSITileGrid(
+                JSITileGridTest.createXform(2.5, 0.0, 0.0, 0.0))));
+        assertFalse(grid.equals(new JSITileGrid(
+                JSITileGridTest.createXform(2.0, 0.1, 0.0, 0.0))));
+        assertEquals(0.5, grid.calcPixelSize(), 1e-12);
+    }
+}